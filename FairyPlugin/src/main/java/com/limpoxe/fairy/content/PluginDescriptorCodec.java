@@ -0,0 +1,433 @@
+package com.limpoxe.fairy.content;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInput;
+import java.io.DataInputStream;
+import java.io.DataOutput;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * PluginDescriptor的紧凑二进制编码
+ *
+ * 用来替代ObjectOutputStream + Base64，字段按固定顺序写入，不携带类描述信息，
+ * 编码后的体积和解码耗时都远小于java序列化。
+ * 字段有增减时必须同时提升FORMAT_VERSION。
+ */
+public final class PluginDescriptorCodec {
+
+    public static final int FORMAT_VERSION = 1;
+
+    /**
+     * 编码时可以只写部分字段, 没有写入的字段按null编码, 格式不变, 解码方式也不变
+     * PROJECTION_SUMMARY只包含包名、版本、是否启用、安装路径等基本信息
+     */
+    public static final int PROJECTION_SUMMARY = 0;
+    //metaData
+    public static final int PROJECTION_META_DATA = 1;
+    //fragment、localservice、组件及其IntentFilter
+    public static final int PROJECTION_COMPONENTS = 1 << 1;
+    public static final int PROJECTION_ALL = PROJECTION_META_DATA | PROJECTION_COMPONENTS;
+
+    private PluginDescriptorCodec() {
+    }
+
+    public static byte[] encode(PluginDescriptor descriptor) throws IOException {
+        return encode(descriptor, PROJECTION_ALL);
+    }
+
+    public static byte[] encode(PluginDescriptor descriptor, int projection) throws IOException {
+        ByteArrayOutputStream byteArrayOutputStream = new ByteArrayOutputStream(4 * 1024);
+        DataOutputStream out = new DataOutputStream(byteArrayOutputStream);
+        encode(descriptor, out, projection);
+        out.flush();
+        return byteArrayOutputStream.toByteArray();
+    }
+
+    public static PluginDescriptor decode(byte[] data) throws IOException {
+        return decode(new DataInputStream(new ByteArrayInputStream(data)));
+    }
+
+    public static byte[] encodeList(Collection<PluginDescriptor> list, int projection) throws IOException {
+        ByteArrayOutputStream byteArrayOutputStream = new ByteArrayOutputStream(list.size() * 4 * 1024);
+        DataOutputStream out = new DataOutputStream(byteArrayOutputStream);
+        out.writeInt(list.size());
+        for (PluginDescriptor descriptor : list) {
+            encode(descriptor, out, projection);
+        }
+        out.flush();
+        return byteArrayOutputStream.toByteArray();
+    }
+
+    public static ArrayList<PluginDescriptor> decodeList(byte[] data) throws IOException {
+        DataInputStream in = new DataInputStream(new ByteArrayInputStream(data));
+        int size = in.readInt();
+        ArrayList<PluginDescriptor> list = new ArrayList<PluginDescriptor>(size);
+        for (int i = 0; i < size; i++) {
+            list.add(decode(in));
+        }
+        return list;
+    }
+
+    public static void encode(PluginDescriptor pd, DataOutput out) throws IOException {
+        encode(pd, out, PROJECTION_ALL);
+    }
+
+    public static void encode(PluginDescriptor pd, DataOutput out, int projection) throws IOException {
+        boolean withMetaData = (projection & PROJECTION_META_DATA) != 0;
+        boolean withComponents = (projection & PROJECTION_COMPONENTS) != 0;
+
+        writeString(out, pd.getPackageName());
+        writeString(out, pd.getPlatformBuildVersionCode());
+        writeString(out, pd.getPlatformBuildVersionName());
+        writeString(out, pd.getMinSdkVersion());
+        writeString(out, pd.getTargetSdkVersion());
+        writeString(out, pd.getVersionCode());
+        writeString(out, pd.getVersionName());
+        writeString(out, pd.getRequiredHostVersionName());
+        writeString(out, pd.getDescription());
+        out.writeBoolean(pd.isStandalone());
+        out.writeBoolean(pd.isEnabled());
+        writeString(out, pd.getApplicationName());
+        out.writeInt(pd.getApplicationIcon());
+        out.writeInt(pd.getApplicationLogo());
+        out.writeInt(pd.getApplicationTheme());
+        out.writeBoolean(pd.isUseHostPackageName());
+        writeString(out, pd.getInstalledPath());
+        out.writeLong(pd.getInstallationTime());
+        writeStringArray(out, pd.getDependencies());
+        writeStringList(out, pd.getMuliDexList());
+
+        writeStringMap(out, withMetaData ? pd.getMetaDataString() : null);
+        writeIntegerMap(out, withMetaData ? pd.getMetaDataResource() : null);
+        writeStringMap(out, withMetaData ? pd.getMetaDataTobeInflate() : null);
+        writeStringMap(out, withComponents ? pd.getFragments() : null);
+        writeStringMap(out, withComponents ? pd.getFunctions() : null);
+        writeStringMap(out, withComponents ? pd.getServiceInfos() : null);
+
+        writeFilterMap(out, withComponents ? pd.getActivitys() : null);
+        writeFilterMap(out, withComponents ? pd.getServices() : null);
+        writeFilterMap(out, withComponents ? pd.getReceivers() : null);
+
+        HashMap<String, PluginActivityInfo> activityInfos = withComponents ? pd.getActivityInfos() : null;
+        out.writeInt(activityInfos == null ? -1 : activityInfos.size());
+        if (activityInfos != null) {
+            Iterator<Map.Entry<String, PluginActivityInfo>> itr = activityInfos.entrySet().iterator();
+            while (itr.hasNext()) {
+                Map.Entry<String, PluginActivityInfo> entry = itr.next();
+                writeString(out, entry.getKey());
+                writeActivityInfo(out, entry.getValue());
+            }
+        }
+
+        HashMap<String, PluginProviderInfo> providerInfos = withComponents ? pd.getProviderInfos() : null;
+        out.writeInt(providerInfos == null ? -1 : providerInfos.size());
+        if (providerInfos != null) {
+            Iterator<Map.Entry<String, PluginProviderInfo>> itr = providerInfos.entrySet().iterator();
+            while (itr.hasNext()) {
+                Map.Entry<String, PluginProviderInfo> entry = itr.next();
+                writeString(out, entry.getKey());
+                writeProviderInfo(out, entry.getValue());
+            }
+        }
+    }
+
+    public static PluginDescriptor decode(DataInput in) throws IOException {
+        PluginDescriptor pd = new PluginDescriptor();
+        pd.setPackageName(readString(in));
+        pd.setPlatformBuildVersionCode(readString(in));
+        pd.setPlatformBuildVersionName(readString(in));
+        pd.setMinSdkVersion(readString(in));
+        pd.setTargetSdkVersion(readString(in));
+        pd.setVersionCode(readString(in));
+        pd.setVersionName(readString(in));
+        pd.setRequiredHostVersionName(readString(in));
+        pd.setDescription(readString(in));
+        pd.setStandalone(in.readBoolean());
+        pd.setEnabled(in.readBoolean());
+        pd.setApplicationName(readString(in));
+        pd.setApplicationIcon(in.readInt());
+        pd.setApplicationLogo(in.readInt());
+        pd.setApplicationTheme(in.readInt());
+        pd.setUseHostPackageName(in.readBoolean());
+        pd.setInstalledPath(readString(in));
+        pd.setInstallationTime(in.readLong());
+        pd.setDependencies(readStringArray(in));
+        pd.setMuliDexList(readStringList(in));
+
+        pd.setMetaDataString(readStringMap(in));
+        pd.setMetaDataResource(readIntegerMap(in));
+        pd.setMetaDataTobeInflate(readStringMap(in));
+        pd.setfragments(readStringMap(in));
+        pd.setFunctions(readStringMap(in));
+        pd.setServiceInfos(readStringMap(in));
+
+        pd.setActivitys(readFilterMap(in));
+        pd.setServices(readFilterMap(in));
+        pd.setReceivers(readFilterMap(in));
+
+        int size = in.readInt();
+        if (size >= 0) {
+            HashMap<String, PluginActivityInfo> activityInfos = new HashMap<String, PluginActivityInfo>(capacity(size));
+            for (int i = 0; i < size; i++) {
+                String key = readString(in);
+                activityInfos.put(key, readActivityInfo(in));
+            }
+            pd.setActivityInfos(activityInfos);
+        } else {
+            pd.setActivityInfos(null);
+        }
+
+        size = in.readInt();
+        if (size >= 0) {
+            HashMap<String, PluginProviderInfo> providerInfos = new HashMap<String, PluginProviderInfo>(capacity(size));
+            for (int i = 0; i < size; i++) {
+                String key = readString(in);
+                providerInfos.put(key, readProviderInfo(in));
+            }
+            pd.setProviderInfos(providerInfos);
+        } else {
+            pd.setProviderInfos(null);
+        }
+
+        return pd;
+    }
+
+    private static void writeActivityInfo(DataOutput out, PluginActivityInfo info) throws IOException {
+        out.writeBoolean(info != null);
+        if (info == null) {
+            return;
+        }
+        writeString(out, info.getName());
+        writeString(out, info.getWindowSoftInputMode());
+        writeString(out, info.getHardwareAccelerated());
+        writeString(out, info.getLaunchMode());
+        writeString(out, info.getScreenOrientation());
+        writeString(out, info.getTheme());
+        writeString(out, info.getImmersive());
+        writeString(out, info.getUiOptions());
+        out.writeInt(info.getConfigChanges());
+        out.writeBoolean(info.isUseHostPackageName());
+    }
+
+    private static PluginActivityInfo readActivityInfo(DataInput in) throws IOException {
+        if (!in.readBoolean()) {
+            return null;
+        }
+        PluginActivityInfo info = new PluginActivityInfo();
+        info.setName(readString(in));
+        info.setWindowSoftInputMode(readString(in));
+        info.setHardwareAccelerated(readString(in));
+        info.setLaunchMode(readString(in));
+        info.setScreenOrientation(readString(in));
+        info.setTheme(readString(in));
+        info.setImmersive(readString(in));
+        info.setUiOptions(readString(in));
+        info.setConfigChanges(in.readInt());
+        info.setUseHostPackageName(in.readBoolean());
+        return info;
+    }
+
+    private static void writeProviderInfo(DataOutput out, PluginProviderInfo info) throws IOException {
+        out.writeBoolean(info != null);
+        if (info == null) {
+            return;
+        }
+        writeString(out, info.getName());
+        writeString(out, info.getPackageName());
+        writeString(out, info.getProcessName());
+        out.writeBoolean(info.isEnabled());
+        out.writeBoolean(info.isExported());
+        writeString(out, info.getAuthority());
+        writeString(out, info.getReadPermission());
+        writeString(out, info.getWritePermission());
+        out.writeBoolean(info.isGrantUriPermissions());
+        out.writeBoolean(info.isMultiprocess());
+        out.writeInt(info.getInitOrder());
+    }
+
+    private static PluginProviderInfo readProviderInfo(DataInput in) throws IOException {
+        if (!in.readBoolean()) {
+            return null;
+        }
+        PluginProviderInfo info = new PluginProviderInfo();
+        info.setName(readString(in));
+        info.setPackageName(readString(in));
+        info.setProcessName(readString(in));
+        info.setEnabled(in.readBoolean());
+        info.setExported(in.readBoolean());
+        info.setAuthority(readString(in));
+        info.setReadPermission(readString(in));
+        info.setWritePermission(readString(in));
+        info.setGrantUriPermissions(in.readBoolean());
+        info.setMultiprocess(in.readBoolean());
+        info.setInitOrder(in.readInt());
+        return info;
+    }
+
+    private static void writeFilterMap(DataOutput out, HashMap<String, ArrayList<PluginIntentFilter>> map) throws IOException {
+        out.writeInt(map == null ? -1 : map.size());
+        if (map == null) {
+            return;
+        }
+        Iterator<Map.Entry<String, ArrayList<PluginIntentFilter>>> itr = map.entrySet().iterator();
+        while (itr.hasNext()) {
+            Map.Entry<String, ArrayList<PluginIntentFilter>> entry = itr.next();
+            writeString(out, entry.getKey());
+            ArrayList<PluginIntentFilter> filters = entry.getValue();
+            out.writeInt(filters == null ? -1 : filters.size());
+            if (filters != null) {
+                for (PluginIntentFilter filter : filters) {
+                    filter.writeToStream(out);
+                }
+            }
+        }
+    }
+
+    private static HashMap<String, ArrayList<PluginIntentFilter>> readFilterMap(DataInput in) throws IOException {
+        int size = in.readInt();
+        if (size < 0) {
+            return null;
+        }
+        HashMap<String, ArrayList<PluginIntentFilter>> map = new HashMap<String, ArrayList<PluginIntentFilter>>(capacity(size));
+        for (int i = 0; i < size; i++) {
+            String key = readString(in);
+            int count = in.readInt();
+            ArrayList<PluginIntentFilter> filters = null;
+            if (count >= 0) {
+                filters = new ArrayList<PluginIntentFilter>(count);
+                for (int j = 0; j < count; j++) {
+                    filters.add(new PluginIntentFilter(in));
+                }
+            }
+            map.put(key, filters);
+        }
+        return map;
+    }
+
+    public static void writeStringMap(DataOutput out, HashMap<String, String> map) throws IOException {
+        out.writeInt(map == null ? -1 : map.size());
+        if (map == null) {
+            return;
+        }
+        Iterator<Map.Entry<String, String>> itr = map.entrySet().iterator();
+        while (itr.hasNext()) {
+            Map.Entry<String, String> entry = itr.next();
+            writeString(out, entry.getKey());
+            writeString(out, entry.getValue());
+        }
+    }
+
+    public static HashMap<String, String> readStringMap(DataInput in) throws IOException {
+        int size = in.readInt();
+        if (size < 0) {
+            return null;
+        }
+        HashMap<String, String> map = new HashMap<String, String>(capacity(size));
+        for (int i = 0; i < size; i++) {
+            String key = readString(in);
+            map.put(key, readString(in));
+        }
+        return map;
+    }
+
+    private static void writeIntegerMap(DataOutput out, HashMap<String, Integer> map) throws IOException {
+        out.writeInt(map == null ? -1 : map.size());
+        if (map == null) {
+            return;
+        }
+        Iterator<Map.Entry<String, Integer>> itr = map.entrySet().iterator();
+        while (itr.hasNext()) {
+            Map.Entry<String, Integer> entry = itr.next();
+            writeString(out, entry.getKey());
+            Integer value = entry.getValue();
+            out.writeBoolean(value != null);
+            if (value != null) {
+                out.writeInt(value);
+            }
+        }
+    }
+
+    private static HashMap<String, Integer> readIntegerMap(DataInput in) throws IOException {
+        int size = in.readInt();
+        if (size < 0) {
+            return null;
+        }
+        HashMap<String, Integer> map = new HashMap<String, Integer>(capacity(size));
+        for (int i = 0; i < size; i++) {
+            String key = readString(in);
+            map.put(key, in.readBoolean() ? Integer.valueOf(in.readInt()) : null);
+        }
+        return map;
+    }
+
+    private static void writeStringArray(DataOutput out, String[] array) throws IOException {
+        out.writeInt(array == null ? -1 : array.length);
+        if (array != null) {
+            for (String item : array) {
+                writeString(out, item);
+            }
+        }
+    }
+
+    private static String[] readStringArray(DataInput in) throws IOException {
+        int size = in.readInt();
+        if (size < 0) {
+            return null;
+        }
+        String[] array = new String[size];
+        for (int i = 0; i < size; i++) {
+            array[i] = readString(in);
+        }
+        return array;
+    }
+
+    public static void writeStringList(DataOutput out, List<String> list) throws IOException {
+        out.writeInt(list == null ? -1 : list.size());
+        if (list != null) {
+            for (String item : list) {
+                writeString(out, item);
+            }
+        }
+    }
+
+    public static ArrayList<String> readStringList(DataInput in) throws IOException {
+        int size = in.readInt();
+        if (size < 0) {
+            return null;
+        }
+        ArrayList<String> list = new ArrayList<String>(size);
+        for (int i = 0; i < size; i++) {
+            list.add(readString(in));
+        }
+        return list;
+    }
+
+    /**
+     * writeUTF不支持null，这里多写一个标记位
+     */
+    public static void writeString(DataOutput out, String value) throws IOException {
+        out.writeBoolean(value != null);
+        if (value != null) {
+            out.writeUTF(value);
+        }
+    }
+
+    public static String readString(DataInput in) throws IOException {
+        if (in.readBoolean()) {
+            return in.readUTF();
+        }
+        return null;
+    }
+
+    private static int capacity(int size) {
+        return Math.max(4, (int) (size / 0.75f) + 1);
+    }
+}
@@ -8,6 +8,8 @@ import android.util.AndroidException;
 import org.xmlpull.v1.XmlPullParser;
 import org.xmlpull.v1.XmlPullParserException;
 
+import java.io.DataInput;
+import java.io.DataOutput;
 import java.io.IOException;
 import java.io.Serializable;
 import java.util.ArrayList;
@@ -255,6 +257,84 @@ public class PluginIntentFilter implements Serializable {
         mHasPartialTypes = o.mHasPartialTypes;
     }
 
+    /**
+     * Read a filter written by {@link #writeToStream}, the counterpart of
+     * the Parcel constructor in the SDK.
+     */
+    public PluginIntentFilter(DataInput in) throws IOException {
+        mPriority = in.readInt();
+        ArrayList<String> actions = PluginDescriptorCodec.readStringList(in);
+        mActions = actions != null ? actions : new ArrayList<String>();
+        mCategories = PluginDescriptorCodec.readStringList(in);
+        mDataSchemes = PluginDescriptorCodec.readStringList(in);
+        mDataTypes = PluginDescriptorCodec.readStringList(in);
+        mDataSchemeSpecificParts = readMatchers(in);
+        mDataPaths = readMatchers(in);
+        int N = in.readInt();
+        if (N >= 0) {
+            mDataAuthorities = new ArrayList<AuthorityEntry>(N);
+            for (int i = 0; i < N; i++) {
+                String host = PluginDescriptorCodec.readString(in);
+                int port = in.readInt();
+                mDataAuthorities.add(new AuthorityEntry(host, port < 0 ? null : String.valueOf(port)));
+            }
+        }
+        mHasPartialTypes = in.readBoolean();
+    }
+
+    /**
+     * Write this filter in the compact binary format used by
+     * {@link PluginDescriptorCodec}, the counterpart of writeToParcel in the SDK.
+     */
+    public void writeToStream(DataOutput out) throws IOException {
+        out.writeInt(mPriority);
+        PluginDescriptorCodec.writeStringList(out, mActions);
+        PluginDescriptorCodec.writeStringList(out, mCategories);
+        PluginDescriptorCodec.writeStringList(out, mDataSchemes);
+        PluginDescriptorCodec.writeStringList(out, mDataTypes);
+        writeMatchers(out, mDataSchemeSpecificParts);
+        writeMatchers(out, mDataPaths);
+        if (mDataAuthorities != null) {
+            final int N = mDataAuthorities.size();
+            out.writeInt(N);
+            for (int i = 0; i < N; i++) {
+                AuthorityEntry ent = mDataAuthorities.get(i);
+                PluginDescriptorCodec.writeString(out, ent.getHost());
+                out.writeInt(ent.getPort());
+            }
+        } else {
+            out.writeInt(-1);
+        }
+        out.writeBoolean(mHasPartialTypes);
+    }
+
+    private static void writeMatchers(DataOutput out, ArrayList<PluginPatternMatcher> matchers) throws IOException {
+        if (matchers != null) {
+            final int N = matchers.size();
+            out.writeInt(N);
+            for (int i = 0; i < N; i++) {
+                PluginPatternMatcher matcher = matchers.get(i);
+                PluginDescriptorCodec.writeString(out, matcher.getPath());
+                out.writeInt(matcher.getType());
+            }
+        } else {
+            out.writeInt(-1);
+        }
+    }
+
+    private static ArrayList<PluginPatternMatcher> readMatchers(DataInput in) throws IOException {
+        final int N = in.readInt();
+        if (N < 0) {
+            return null;
+        }
+        ArrayList<PluginPatternMatcher> matchers = new ArrayList<PluginPatternMatcher>(N);
+        for (int i = 0; i < N; i++) {
+            String pattern = PluginDescriptorCodec.readString(in);
+            matchers.add(new PluginPatternMatcher(pattern, in.readInt()));
+        }
+        return matchers;
+    }
+
     /**
      * Modify priority of this filter.  The default priority is 0. Positive
      * values will be before the default, lower values will be after it.
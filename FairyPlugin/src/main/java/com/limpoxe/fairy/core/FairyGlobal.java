@@ -1,6 +1,7 @@
 package com.limpoxe.fairy.core;
 
 import android.app.Application;
+import android.os.Build;
 
 import com.limpoxe.fairy.manager.mapping.StubMappingProcessor;
 import com.limpoxe.fairy.util.LogUtil;
@@ -14,9 +15,15 @@ public class FairyGlobal {
     private static int sLoadingResId;
     private static long sMinLoadingTime = 400;
     private static boolean sIsNeedVerifyPluginSign = true;
+    private static boolean sIsVerifyBySigningBlock = false;
     private static boolean sSupportRemoteViews = true;
     private static ArrayList<StubMappingProcessor> mappingProcessors = new ArrayList<StubMappingProcessor>();
     private static boolean sFakePluginProcessName = true;
+    private static boolean sIpcPayloadMetricsEnable = false;
+    private static boolean sPluginPreloadEnable = false;
+    private static boolean sPreloadPluginApplication = false;
+    private static int sMaxRunningPlugins = 0;
+    private static boolean sLazyContentProviderEnable = false;
 
     public static Application getHostApplication() {
         if (!isInited()) {
@@ -95,6 +102,88 @@ public class FairyGlobal {
         return sIsNeedVerifyPluginSign;
     }
 
+    /**
+     * 插件带有v2/v3签名块时, 是否只校验签名块, 不再逐个校验jar entry
+     * 插件较大时可以明显加快安装速度, 没有签名块的插件不受影响
+     * @param verifyBySigningBlock
+     */
+    public static void setVerifyBySigningBlock(boolean verifyBySigningBlock) {
+        sIsVerifyBySigningBlock = verifyBySigningBlock;
+    }
+
+    public static boolean isVerifyBySigningBlock() {
+        return sIsVerifyBySigningBlock;
+    }
+
+    /**
+     * 跨进程调用统计中是否统计数据大小, 需要额外序列化一次参数和结果, 默认关闭
+     * 次数和耗时始终统计, 见PluginManagerHelper.dumpIpcMetrics
+     * @param enable
+     */
+    public static void setIpcPayloadMetricsEnable(boolean enable) {
+        sIpcPayloadMetricsEnable = enable;
+    }
+
+    public static boolean isIpcPayloadMetricsEnable() {
+        return sIpcPayloadMetricsEnable;
+    }
+
+    /**
+     * 是否根据历史启动记录在宿主启动后预热插件, 默认关闭, 见PluginPreloader
+     * 需要在PluginLoader.initLoader之前设置
+     * @param enable
+     */
+    public static void setPluginPreloadEnable(boolean enable) {
+        sPluginPreloadEnable = enable;
+    }
+
+    public static boolean isPluginPreloadEnable() {
+        return sPluginPreloadEnable;
+    }
+
+    /**
+     * 预热插件时是否同时创建插件Application, 默认只创建Resources和DexClassLoader
+     * 创建Application后首次打开插件Activity时不再显示loading页, 但是插件Application.onCreate会提前执行
+     * @param preload
+     */
+    public static void setPreloadPluginApplication(boolean preload) {
+        sPreloadPluginApplication = preload;
+    }
+
+    public static boolean isPreloadPluginApplication() {
+        return sPreloadPluginApplication;
+    }
+
+    /**
+     * 插件进程中最多同时运行的插件数, 超过时按最久没有用到的顺序卸载空闲的插件, 见PluginIdleReclaimer
+     * 0表示不限制, 默认不限制。需要在PluginLoader.initLoader之前设置
+     * 以Fragment或者View的形式嵌入宿主页面的插件无法判断是否空闲, 使用这种方式时需要预留足够的数量
+     * @param max
+     */
+    public static void setMaxRunningPlugins(int max) {
+        sMaxRunningPlugins = max;
+    }
+
+    public static int getMaxRunningPlugins() {
+        return sMaxRunningPlugins;
+    }
+
+    /**
+     * 插件ContentProvider是否延迟到第一次被访问时再安装, 默认关闭, 在插件Application创建时全部安装
+     * 打开后provider的onCreate在第一次访问provider的线程中执行, 仅API 16及以上生效。
+     * 插件在主线程初始化时provider的onCreate在插件Application.onCreate之后;
+     * 在其他线程初始化时插件Application.onCreate是post到主线程执行的, provider的onCreate可能先于它执行,
+     * 此时provider的getContext()是插件Context, 不要在provider的onCreate中依赖插件Application.onCreate中的初始化
+     * @param enable
+     */
+    public static void setLazyContentProviderEnable(boolean enable) {
+        sLazyContentProviderEnable = enable;
+    }
+
+    public static boolean isLazyContentProviderEnable() {
+        return sLazyContentProviderEnable && Build.VERSION.SDK_INT >= 16;
+    }
+
     /**
      * 如果两个processor可以处理同一个映射关系，则后添加processor生效，先添加的processor会被忽略
      * @param processor
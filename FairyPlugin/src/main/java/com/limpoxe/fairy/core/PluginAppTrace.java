@@ -8,10 +8,8 @@ import android.os.IBinder;
 import android.os.Message;
 
 import com.limpoxe.fairy.content.LoadedPlugin;
-import com.limpoxe.fairy.content.PluginDescriptor;
 import com.limpoxe.fairy.core.android.HackActivityThread;
 import com.limpoxe.fairy.core.android.HackContextImpl;
-import com.limpoxe.fairy.manager.PluginManagerHelper;
 import com.limpoxe.fairy.manager.PluginManagerProviderClient;
 import com.limpoxe.fairy.util.LogUtil;
 import com.limpoxe.fairy.util.ProcessUtil;
@@ -184,13 +182,14 @@ public class PluginAppTrace implements Handler.Callback {
 
 	private static void afterConfigurationChanged(Message msg) {
         if (ProcessUtil.isPluginProcess()) {
-            ArrayList<PluginDescriptor> pluginDescriptors = PluginManagerHelper.getPlugins();
-            for(PluginDescriptor pluginDescriptor : pluginDescriptors) {
-                LoadedPlugin loadedPlugin = PluginLauncher.instance().getRunningPlugin(pluginDescriptor.getPackageName());
+            //只有运行中的插件需要更新, 不需要查询所有插件的描述
+            ArrayList<String> runningPlugins = PluginLauncher.instance().getRunningPluginsByLastUse();
+            for(String packageName : runningPlugins) {
+                LoadedPlugin loadedPlugin = PluginLauncher.instance().peekRunningPlugin(packageName);
                 if (loadedPlugin != null) {
                     //更新环境配置，如屏幕密度，系统语言，横竖屏等
                     //TODO updateConfiguration这个方法已经过期，后续需要更改为通过反射调用它的隐藏方法
-                    LogUtil.v("updateConfiguration for ", pluginDescriptor.getPackageName());
+                    LogUtil.v("updateConfiguration for ", packageName);
                     loadedPlugin.pluginResource.updateConfiguration((Configuration)msg.obj, null);
                 }
             }
@@ -0,0 +1,177 @@
+package com.limpoxe.fairy.core;
+
+import android.annotation.TargetApi;
+import android.os.Build;
+import android.os.Process;
+import android.os.Trace;
+
+import com.limpoxe.fairy.content.PluginDescriptor;
+import com.limpoxe.fairy.util.LogUtil;
+
+import org.json.JSONArray;
+import org.json.JSONException;
+import org.json.JSONObject;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * 插件初始化各阶段的耗时记录
+ *
+ * 每个阶段同时输出到android.os.Trace(API 18及以上, systrace/perfetto中可见)和内存中的环形缓冲区,
+ * 缓冲区不受LogUtil开关影响, 可以通过getSpans查询, 或者通过exportChromeTrace导出为Chrome trace格式,
+ * 在chrome://tracing或perfetto中按插件和版本查看。仅记录插件进程中的初始化
+ */
+public class PluginBootTrace {
+
+	public static final String PHASE_BOOT = "boot";
+	public static final String PHASE_RESOURCES = "resources";
+	public static final String PHASE_DEXOPT_WAIT = "dexopt_wait";
+	public static final String PHASE_CLASSLOADER = "classloader";
+	public static final String PHASE_CONTEXT = "context";
+	public static final String PHASE_METADATA = "metadata";
+	public static final String PHASE_APPLICATION_NEW = "application_new";
+	public static final String PHASE_APPLICATION_PRE_CREATE = "application_pre_create";
+	public static final String PHASE_PROVIDERS = "providers";
+	public static final String PHASE_APPLICATION_ON_CREATE = "application_on_create";
+	public static final String PHASE_INSTALL_PACKAGE_INFO = "install_package_info";
+
+	//环形缓冲区大小, 每个插件一次初始化大约10个阶段
+	private static final int CAPACITY = 512;
+
+	//Trace.beginSection的名字最长127个字符
+	private static final int MAX_SECTION_NAME_LENGTH = 127;
+
+	private static final Span[] sSpans = new Span[CAPACITY];
+	private static int sNext;
+	private static int sSize;
+
+	public static class Span {
+		public final String packageName;
+		public final String version;
+		public final String phase;
+		public final int tid;
+		public final String threadName;
+		//System.nanoTime
+		public final long startNanos;
+		public final long durationNanos;
+
+		Span(String packageName, String version, String phase, long startNanos, long durationNanos) {
+			this.packageName = packageName;
+			this.version = version;
+			this.phase = phase;
+			this.tid = Process.myTid();
+			this.threadName = Thread.currentThread().getName();
+			this.startNanos = startNanos;
+			this.durationNanos = durationNanos;
+		}
+	}
+
+	/**
+	 * 开始一个阶段, 必须在同一个线程中以end结束, 阶段之间只能嵌套不能交叉
+	 *
+	 * @return 开始时间, 传给end
+	 */
+	static long begin(PluginDescriptor pluginDescriptor, String phase) {
+		if (Build.VERSION.SDK_INT >= 18) {
+			beginSection(pluginDescriptor.getPackageName() + ":" + phase);
+		}
+		return System.nanoTime();
+	}
+
+	static void end(PluginDescriptor pluginDescriptor, String phase, long startNanos) {
+		long duration = System.nanoTime() - startNanos;
+		if (Build.VERSION.SDK_INT >= 18) {
+			endSection();
+		}
+		Span span = new Span(pluginDescriptor.getPackageName(), pluginDescriptor.getVersion(), phase, startNanos, duration);
+		synchronized (sSpans) {
+			sSpans[sNext] = span;
+			sNext = (sNext + 1) % CAPACITY;
+			if (sSize < CAPACITY) {
+				sSize++;
+			}
+		}
+	}
+
+	@TargetApi(Build.VERSION_CODES.JELLY_BEAN_MR2)
+	private static void beginSection(String name) {
+		if (name.length() > MAX_SECTION_NAME_LENGTH) {
+			name = name.substring(0, MAX_SECTION_NAME_LENGTH);
+		}
+		Trace.beginSection(name);
+	}
+
+	@TargetApi(Build.VERSION_CODES.JELLY_BEAN_MR2)
+	private static void endSection() {
+		Trace.endSection();
+	}
+
+	/**
+	 * @return 缓冲区中的所有记录, 按结束时间从早到晚
+	 */
+	public static List<Span> getSpans() {
+		return getSpans(null);
+	}
+
+	/**
+	 * @param packageName 为null时返回所有插件的记录
+	 */
+	public static List<Span> getSpans(String packageName) {
+		ArrayList<Span> spans = new ArrayList<Span>();
+		synchronized (sSpans) {
+			int first = (sNext - sSize + CAPACITY) % CAPACITY;
+			for (int i = 0; i < sSize; i++) {
+				Span span = sSpans[(first + i) % CAPACITY];
+				if (packageName == null || packageName.equals(span.packageName)) {
+					spans.add(span);
+				}
+			}
+		}
+		return spans;
+	}
+
+	public static void clear() {
+		synchronized (sSpans) {
+			for (int i = 0; i < CAPACITY; i++) {
+				sSpans[i] = null;
+			}
+			sNext = 0;
+			sSize = 0;
+		}
+	}
+
+	/**
+	 * 导出为Chrome trace event格式, 每个阶段是一个complete event(ph为X), 时间单位为微秒
+	 */
+	public static String exportChromeTrace() {
+		JSONArray events = new JSONArray();
+		int pid = Process.myPid();
+		try {
+			for (Span span : getSpans()) {
+				JSONObject args = new JSONObject();
+				args.put("plugin", span.packageName);
+				args.put("version", span.version);
+				args.put("thread", span.threadName);
+
+				JSONObject event = new JSONObject();
+				event.put("name", span.phase);
+				event.put("cat", span.packageName);
+				event.put("ph", "X");
+				event.put("ts", span.startNanos / 1000);
+				event.put("dur", span.durationNanos / 1000);
+				event.put("pid", pid);
+				event.put("tid", span.tid);
+				event.put("args", args);
+				events.put(event);
+			}
+			JSONObject trace = new JSONObject();
+			trace.put("traceEvents", events);
+			trace.put("displayTimeUnit", "ms");
+			return trace.toString();
+		} catch (JSONException e) {
+			LogUtil.printException("PluginBootTrace.exportChromeTrace", e);
+		}
+		return null;
+	}
+}
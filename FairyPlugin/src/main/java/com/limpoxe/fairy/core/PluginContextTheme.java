@@ -235,6 +235,13 @@ public class PluginContextTheme extends PluginBaseContextWrapper {
 		}
 	}
 
+	/**
+	 * 是否有通过插件Application注册、还没有注销的广播
+	 */
+	public boolean hasRegisteredReceiver() {
+		return !receivers.isEmpty();
+	}
+
 	public void unregisterAllReceiver() {
 		for (BroadcastReceiver br:
 			 receivers) {
@@ -0,0 +1,183 @@
+package com.limpoxe.fairy.core;
+
+import android.annotation.TargetApi;
+import android.app.Service;
+import android.content.ComponentCallbacks2;
+import android.content.res.Configuration;
+import android.os.Build;
+import android.os.Handler;
+import android.os.IBinder;
+import android.os.Looper;
+
+import com.limpoxe.fairy.content.LoadedPlugin;
+import com.limpoxe.fairy.content.PluginDescriptor;
+import com.limpoxe.fairy.core.android.HackActivityThread;
+import com.limpoxe.fairy.manager.PluginActivityMonitor;
+import com.limpoxe.fairy.util.LogUtil;
+
+import java.util.ArrayList;
+import java.util.Map;
+
+/**
+ * 卸载空闲的插件
+ *
+ * 运行中的插件数超过FairyGlobal.setMaxRunningPlugins设置的数量时, 按最久没有用到的顺序卸载空闲的插件,
+ * 内存紧张时卸载所有空闲的插件。卸载后插件下次被用到时会重新初始化。
+ * 有存活的Activity、Service, 已经安装了ContentProvider, 插件Application注册了广播, 或者被其他运行中的插件依赖时不算空闲。
+ * 触发后先记录每个插件的取用次数, 延迟DELAY再检查, 期间又被取用过的插件不卸载
+ *
+ * 所有检查和卸载都在主线程进行
+ */
+public class PluginIdleReclaimer {
+
+	//合并短时间内的多次触发
+	private static final long DELAY = 1000;
+
+	private static final Handler sHandler = new Handler(Looper.getMainLooper());
+	private static boolean sScheduled;
+
+	private static final Runnable sTrimTask = new Runnable() {
+		@Override
+		public void run() {
+			sScheduled = false;
+			trim(FairyGlobal.getMaxRunningPlugins());
+		}
+	};
+
+	private static final Runnable sTrimAllTask = new Runnable() {
+		@Override
+		public void run() {
+			trim(0);
+		}
+	};
+
+	/**
+	 * 在宿主Application.onCreate中由PluginLoader.initLoader调用
+	 */
+	static void start() {
+		if (Build.VERSION.SDK_INT >= 14) {
+			registerTrimMemoryCallback();
+		}
+	}
+
+	/**
+	 * 有插件初始化完成时调用, 超过数量限制时卸载空闲的插件
+	 */
+	static void onPluginStarted() {
+		int max = FairyGlobal.getMaxRunningPlugins();
+		if (max > 0 && PluginLauncher.instance().getRunningPluginCount() > max) {
+			schedule();
+		}
+	}
+
+	public static void schedule() {
+		if (FairyGlobal.getMaxRunningPlugins() <= 0) {
+			return;
+		}
+		sHandler.post(new Runnable() {
+			@Override
+			public void run() {
+				if (!sScheduled) {
+					sScheduled = true;
+					PluginLauncher.instance().markUseCheckpoint();
+					sHandler.postDelayed(sTrimTask, DELAY);
+				}
+			}
+		});
+	}
+
+	/**
+	 * 内存紧张时卸载所有空闲的插件, 在主线程调用
+	 */
+	private static void scheduleTrimAll() {
+		sHandler.removeCallbacks(sTrimAllTask);
+		PluginLauncher.instance().markUseCheckpoint();
+		sHandler.postDelayed(sTrimAllTask, DELAY);
+	}
+
+	/**
+	 * 卸载空闲的插件, 直到运行中的插件数不超过max
+	 */
+	private static void trim(int max) {
+		PluginLauncher launcher = PluginLauncher.instance();
+		ArrayList<String> plugins = launcher.getRunningPluginsByLastUse();
+		for (String packageName : plugins) {
+			if (launcher.getRunningPluginCount() <= max) {
+				break;
+			}
+			launcher.unloadIdlePlugin(packageName);
+		}
+		LogUtil.d("运行中的插件数", launcher.getRunningPluginCount(), max);
+	}
+
+	/**
+	 * 由PluginLauncher.unloadIdlePlugin在主线程调用
+	 */
+	static boolean isIdle(LoadedPlugin plugin) {
+		PluginDescriptor pluginDescriptor = ((PluginContextTheme) plugin.pluginContext).getPluginDescriptor();
+
+		if (PluginActivityMonitor.getLiveActivityCount(plugin.pluginPackageName) > 0) {
+			return false;
+		}
+
+		//ContentProvider安装以后无法退出
+		if (!pluginDescriptor.getProviderInfos().isEmpty()
+				&& PluginLauncher.instance().isContentProvidersInstalled(plugin.pluginPackageName)) {
+			return false;
+		}
+
+		//卸载时会注销, 之后就收不到广播了
+		if (((PluginContextTheme) plugin.pluginContext).hasRegisteredReceiver()) {
+			return false;
+		}
+
+		Map<IBinder, Service> services = HackActivityThread.get().getServices();
+		if (services != null) {
+			for (Service service : services.values()) {
+				if (service.getClass().getClassLoader() == plugin.pluginClassLoader) {
+					return false;
+				}
+			}
+		}
+
+		//依赖方已经通过插件的ClassLoader加载过类
+		PluginLauncher launcher = PluginLauncher.instance();
+		for (String packageName : launcher.getRunningPluginsByLastUse()) {
+			LoadedPlugin other = launcher.peekRunningPlugin(packageName);
+			if (other == null || other == plugin) {
+				continue;
+			}
+			String[] dependencies = ((PluginContextTheme) other.pluginContext).getPluginDescriptor().getDependencies();
+			if (dependencies != null) {
+				for (String dependency : dependencies) {
+					if (plugin.pluginPackageName.equals(dependency)) {
+						return false;
+					}
+				}
+			}
+		}
+
+		return true;
+	}
+
+	@TargetApi(Build.VERSION_CODES.ICE_CREAM_SANDWICH)
+	private static void registerTrimMemoryCallback() {
+		FairyGlobal.getHostApplication().registerComponentCallbacks(new ComponentCallbacks2() {
+			@Override
+			public void onTrimMemory(int level) {
+				if (level >= TRIM_MEMORY_RUNNING_LOW) {
+					scheduleTrimAll();
+				}
+			}
+
+			@Override
+			public void onConfigurationChanged(Configuration newConfig) {
+			}
+
+			@Override
+			public void onLowMemory() {
+				scheduleTrimAll();
+			}
+		});
+	}
+}
@@ -24,12 +24,17 @@ import com.limpoxe.fairy.core.localservice.LocalServiceManager;
 import com.limpoxe.fairy.core.proxy.systemservice.AndroidWebkitWebViewFactoryProvider;
 import com.limpoxe.fairy.core.viewfactory.PluginViewFactory;
 import com.limpoxe.fairy.manager.PluginActivityMonitor;
+import com.limpoxe.fairy.manager.PluginManagerBatch;
 import com.limpoxe.fairy.manager.PluginManagerHelper;
+import com.limpoxe.fairy.manager.PluginManagerProvider;
 import com.limpoxe.fairy.manager.PluginManagerProviderClient;
 import com.limpoxe.fairy.util.LogUtil;
 import com.limpoxe.fairy.util.ProcessUtil;
 
+import java.util.ArrayList;
+import java.util.HashMap;
 import java.util.Iterator;
+import java.util.Map;
 import java.util.Set;
 
 import static com.limpoxe.fairy.core.PluginLauncher.instance;
@@ -68,10 +73,11 @@ public class PluginInstrumentionWrapper extends Instrumentation {
 		// 因此下面的初始化操作的最佳时机是在application的oncreate之前执行
 		LocalServiceManager.init();
 		if (ProcessUtil.isPluginProcess()) {
-			Iterator<PluginDescriptor> itr = PluginManagerHelper.getPlugins().iterator();
+			//只需要localservice的声明, 不展开所有插件的描述
+			Iterator<Map.Entry<String, HashMap<String, String>>> itr = PluginManagerHelper.getLocalServices().entrySet().iterator();
 			while (itr.hasNext()) {
-				PluginDescriptor plugin = itr.next();
-				LocalServiceManager.registerService(plugin);
+				Map.Entry<String, HashMap<String, String>> entry = itr.next();
+				LocalServiceManager.registerService(entry.getKey(), entry.getValue());
 			}
 		}
 	}
@@ -112,8 +118,16 @@ public class PluginInstrumentionWrapper extends Instrumentation {
 		String orignalIntent = intent.toString();
 
 		if (ProcessUtil.isPluginProcess()) {
+			// isStub和isExact合并为一次调用
+			PluginManagerBatch batch = new PluginManagerBatch();
+			Bundle exactArg = new Bundle();
+			exactArg.putInt("type", PluginDescriptor.ACTIVITY);
+			int isStubIndex = batch.add(PluginManagerProvider.ACTION_IS_STUB, className, null);
+			int isExactIndex = batch.add(PluginManagerProvider.ACTION_IS_EXACT, className, exactArg);
+			ArrayList<Bundle> stubResults = batch.execute();
+
 			// 将PluginStubActivity替换成插件中的activity
-			if (PluginManagerProviderClient.isStub(className)) {
+			if (stubResults.get(isStubIndex).getBoolean(PluginManagerProvider.IS_STUB_RESULT)) {
 
 				String action = intent.getAction();
 
@@ -128,7 +142,9 @@ public class PluginInstrumentionWrapper extends Instrumentation {
 					if (pluginDescriptor != null) {
 						boolean isRunning = PluginLauncher.instance().isRunning(pluginDescriptor.getPackageName());
 						if (!isRunning) {
-							if (FairyGlobal.getMinLoadingTime() > 0 && FairyGlobal.getLoadingResId() != 0) {
+							//已经预热过的插件只差Context和Application, 直接启动, 不需要loading页
+							if (FairyGlobal.getMinLoadingTime() > 0 && FairyGlobal.getLoadingResId() != 0
+									&& !PluginLauncher.instance().isWarmed(pluginDescriptor.getPackageName())) {
 								return waitForLoading(pluginDescriptor, pluginClassName);
 							} else {
 								//这个else是为了处理内嵌在tabactivity中的情况, 需要提前start，否则内嵌tab会被拉出tab单独显示
@@ -155,14 +171,14 @@ public class PluginInstrumentionWrapper extends Instrumentation {
 					} else {
 						throw new ClassNotFoundException("pluginClassName : " + pluginClassName, new Throwable());
 					}
-				} else if (PluginManagerProviderClient.isExact(className, PluginDescriptor.ACTIVITY)) {
+				} else if (stubResults.get(isExactIndex).getBoolean(PluginManagerProvider.IS_EXACT_RESULT)) {
 
 					//这个逻辑是为了支持外部app唤起配置了stub_exact的插件Activity
 					PluginDescriptor pluginDescriptor = PluginManagerHelper.getPluginDescriptorByClassName(className);
 
 					if (pluginDescriptor != null && FairyGlobal.getMinLoadingTime() > 0 && FairyGlobal.getLoadingResId() != 0) {
 						boolean isRunning = PluginLauncher.instance().isRunning(pluginDescriptor.getPackageName());
-						if (!isRunning) {
+						if (!isRunning && !PluginLauncher.instance().isWarmed(pluginDescriptor.getPackageName())) {
 							return waitForLoading(pluginDescriptor, className);
 						}
 					}
@@ -5,19 +5,19 @@ import android.content.Context;
 import android.content.Intent;
 import android.content.pm.ServiceInfo;
 import android.os.Build;
+import android.os.Bundle;
 
-import com.limpoxe.fairy.content.PluginActivityInfo;
 import com.limpoxe.fairy.content.PluginDescriptor;
 import com.limpoxe.fairy.content.PluginReceiverIntent;
 import com.limpoxe.fairy.core.android.HackCreateServiceData;
 import com.limpoxe.fairy.core.android.HackReceiverData;
 import com.limpoxe.fairy.manager.PluginManagerHelper;
+import com.limpoxe.fairy.manager.PluginManagerProvider;
 import com.limpoxe.fairy.manager.PluginManagerProviderClient;
 import com.limpoxe.fairy.util.LogUtil;
 import com.limpoxe.fairy.util.ProcessUtil;
 
 import java.util.ArrayList;
-import java.util.Iterator;
 
 public class PluginIntentResolver {
 
@@ -181,30 +181,16 @@ public class PluginIntentResolver {
 
 	public static void resolveActivity(final Intent intent) {
 		// 如果在插件中发现Intent的匹配项，记下匹配的插件Activity的ClassName
-		ArrayList<String> classNameList = matchPlugin(intent, PluginDescriptor.ACTIVITY);
-		if (classNameList != null && classNameList.size() > 0) {
-            //TODO 只取第一个，忽略了多Activity匹配到同一个Intent的情况
-            if (classNameList.size() > 1) {
-                LogUtil.w("只取第一个，忽略了多Activity匹配到同一个Intent的情况");
-            }
-			String className = classNameList.get(0);
-			PluginDescriptor pluginDescriptor = PluginManagerHelper.getPluginDescriptorByClassName(className);
-
-			PluginActivityInfo pluginActivityInfo = pluginDescriptor.getActivityInfos().get(className);
-
-			String stubActivityName = PluginManagerProviderClient.bindStubActivity(className,
-                    (int)Long.parseLong(pluginActivityInfo.getLaunchMode()),
-					pluginDescriptor.getPackageName(),
-					pluginActivityInfo.getTheme(),
-                    pluginActivityInfo.getScreenOrientation());
+		// 匹配、查询插件和绑定StubActivity在插件进程中一次完成
+		Bundle result = isStubIntent(intent) ? null : PluginManagerProviderClient.resolveActivity(intent);
+		String className = result == null ? null : result.getString(PluginManagerProvider.RESOLVE_ACTIVITY_CLASS);
+		if (className != null) {
+			String stubActivityName = result.getString(PluginManagerProvider.RESOLVE_ACTIVITY_STUB);
 
             if (stubActivityName == null) {
                 LogUtil.e("绑定StubAtivity失败",
                         className,
-                        (int)Long.parseLong(pluginActivityInfo.getLaunchMode()),
-                        pluginDescriptor.getPackageName(),
-                        pluginActivityInfo.getTheme(),
-                        pluginActivityInfo.getScreenOrientation());
+                        result.getString(PluginManagerProvider.RESOLVE_ACTIVITY_PLUGIN));
                 return;
             } else {
                 LogUtil.v("绑定StubAtivity成功", className);
@@ -217,9 +203,13 @@ public class PluginIntentResolver {
 		} else {
 			if (intent.getComponent() != null) {
                 //如果没有匹配到，但是intent里面指定的packageName是插件的，强行修正packageName
-                String targetPackageName = intent.getComponent().getPackageName();
-                PluginDescriptor pluginDescriptor = PluginManagerHelper.getPluginDescriptorByPluginId(targetPackageName);
-                if (pluginDescriptor != null) {
+                boolean isPluginPackage;
+                if (result != null) {
+                    isPluginPackage = result.getBoolean(PluginManagerProvider.RESOLVE_ACTIVITY_IS_PLUGIN_PACKAGE);
+                } else {
+                    isPluginPackage = PluginManagerHelper.getPluginDescriptorByPluginId(intent.getComponent().getPackageName()) != null;
+                }
+                if (isPluginPackage) {
                     intent.setComponent(new ComponentName(FairyGlobal.getHostApplication().getPackageName(), intent.getComponent().getClassName()));
                 }
             }
@@ -230,14 +220,21 @@ public class PluginIntentResolver {
 		// 不常用。需要时再实现此方法，
 	}
 
+	/**
+	 * 已经被替换过或者直接指向stub的intent, 不需要再匹配
+	 */
+	private static boolean isStubIntent(Intent intent) {
+		return intent.getAction() != null && (
+				intent.getAction().endsWith(".STUB_DEFAULT") ||
+				intent.getAction().endsWith(".STUB_EXACT") ||
+				intent.getAction().contains(CLASS_SEPARATOR));
+	}
+
 	/**
 	 */
 	public static ArrayList<String> matchPlugin(Intent intent, int type) {
 
-        if (intent.getAction() != null && (
-                intent.getAction().endsWith(".STUB_DEFAULT") ||
-                intent.getAction().endsWith(".STUB_EXACT") ||
-                intent.getAction().contains(CLASS_SEPARATOR))) {
+        if (isStubIntent(intent)) {
             return null;
         }
 
@@ -263,21 +260,8 @@ public class PluginIntentResolver {
                 LogUtil.w(packageName, "目标不是插件，也可能是插件未正确安装");
             }
 		} else {
-            //没有指定packageName，开始遍历插件列表
-            ArrayList<PluginDescriptor> pluginList = PluginManagerHelper.getPlugins();
-            LogUtil.v("已安装插件数量", pluginList.size());
-            Iterator<PluginDescriptor> itr = pluginList.iterator();
-			while (itr.hasNext()) {
-                PluginDescriptor pluginDescriptor = itr.next();
-                LogUtil.v("正在匹配插件", pluginDescriptor.getPackageName());
-                ArrayList<String> list = pluginDescriptor.matchPlugin(intent, type);
-				if (list != null) {
-					if (result == null) {
-						result = new ArrayList<>();
-					}
-					result.addAll(list);
-                }
-			}
+            //没有指定packageName，在插件进程中通过IntentFilter索引匹配，只传回类名
+            result = PluginManagerProviderClient.resolveIntent(intent, type);
 
             if (result == null || result.size() == 0) {
                 LogUtil.v("未匹配到插件Intent, 说明目标不是插件，也可能是插件未正确安装", packageName, intent.toString());
@@ -29,8 +29,10 @@ import com.limpoxe.fairy.core.exception.PluginNotFoundError;
 import com.limpoxe.fairy.core.exception.PluginResInitError;
 import com.limpoxe.fairy.core.localservice.LocalServiceManager;
 import com.limpoxe.fairy.core.proxy.systemservice.AndroidWebkitWebViewFactoryProvider;
+import com.limpoxe.fairy.manager.DexOptScheduler;
 import com.limpoxe.fairy.manager.PluginActivityMonitor;
 import com.limpoxe.fairy.manager.PluginManagerHelper;
+import com.limpoxe.fairy.manager.PluginManagerProviderClient;
 import com.limpoxe.fairy.util.LogUtil;
 import com.limpoxe.fairy.util.ProcessUtil;
 
@@ -39,9 +41,19 @@ import java.util.ArrayList;
 import java.util.Collection;
 import java.util.HashMap;
 import java.util.Iterator;
+import java.util.LinkedHashMap;
 import java.util.Map;
 import java.util.Set;
+import java.util.concurrent.Callable;
 import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
 
 import dalvik.system.DexClassLoader;
 
@@ -57,6 +69,42 @@ public class PluginLauncher implements Serializable {
 
 	private ConcurrentHashMap<String, LoadedPlugin> loadedPluginMap = new ConcurrentHashMap<String, LoadedPlugin>();
 
+	//正在初始化的插件, 同一个插件只初始化一次, 不同的插件可以同时初始化
+	private final HashMap<String, PluginBoot> bootingPlugins = new HashMap<String, PluginBoot>();
+
+	//运行中插件的使用顺序, 最久没有用到的在前, 用于卸载空闲插件, 和bootingPlugins使用同一把锁
+	private final LinkedHashMap<String, Boolean> pluginUsage = new LinkedHashMap<String, Boolean>(16, 0.75f, true);
+
+	//运行中插件被取用的次数, startPlugin、getRunningPlugin返回插件和交出LocalService实例时加一, 和bootingPlugins使用同一把锁
+	private final HashMap<String, Integer> useCounts = new HashMap<String, Integer>();
+	//上次markUseCheckpoint时的取用次数, 之后又被取用过的插件不卸载
+	private final HashMap<String, Integer> checkpointUseCounts = new HashMap<String, Integer>();
+	//已经交出LocalService实例的插件, 实例的生命周期无法跟踪, 这些插件不再卸载, 和bootingPlugins使用同一把锁
+	private final HashMap<String, Integer> localServiceInstances = new HashMap<String, Integer>();
+
+	//在后台线程初始化、插件Application还在等待主线程初始化的插件, 和bootingPlugins使用同一把锁
+	private final HashMap<String, ApplicationInit> pendingApplicationInits = new HashMap<String, ApplicationInit>();
+
+	//已经安装了ContentProvider的插件
+	private final ConcurrentHashMap<String, Boolean> installedProviders = new ConcurrentHashMap<String, Boolean>();
+
+	//预热过的插件, 见warmPlugin
+	private final ConcurrentHashMap<String, WarmedPlugin> warmedPlugins = new ConcurrentHashMap<String, WarmedPlugin>();
+
+	//和Resources并行创建DexClassLoader, 空闲时不占用线程
+	private static final ThreadPoolExecutor classLoaderExecutor = new ThreadPoolExecutor(2, 2, 30, TimeUnit.SECONDS,
+			new LinkedBlockingQueue<Runnable>(), new ThreadFactory() {
+		private final AtomicInteger count = new AtomicInteger();
+		@Override
+		public Thread newThread(Runnable runnable) {
+			return new Thread(runnable, "plugin-classloader-" + count.incrementAndGet());
+		}
+	});
+
+	static {
+		classLoaderExecutor.allowCoreThreadTimeOut(true);
+	}
+
 	private PluginLauncher() {
 		if (!ProcessUtil.isPluginProcess()) {
 			throw new IllegalAccessError("本类仅在插件进程使用");
@@ -75,6 +123,19 @@ public class PluginLauncher implements Serializable {
 	}
 
 	public LoadedPlugin getRunningPlugin(String packageName) {
+		synchronized (bootingPlugins) {
+			LoadedPlugin plugin = loadedPluginMap.get(packageName);
+			if (plugin != null) {
+				markUsedLocked(packageName);
+			}
+			return plugin;
+		}
+	}
+
+	/**
+	 * 和getRunningPlugin相同, 但不算作取用, 用于遍历运行中的插件
+	 */
+	LoadedPlugin peekRunningPlugin(String packageName) {
 		return loadedPluginMap.get(packageName);
 	}
 
@@ -88,36 +149,153 @@ public class PluginLauncher implements Serializable {
 		return null;
 	}
 
-	public synchronized LoadedPlugin startPlugin(PluginDescriptor pluginDescriptor) {
-		LoadedPlugin plugin = loadedPluginMap.get(pluginDescriptor.getPackageName());
-		if (plugin == null) {
+	public LoadedPlugin startPlugin(final PluginDescriptor pluginDescriptor) {
+		final String packageName = pluginDescriptor.getPackageName();
+		PluginPreloader.instance().onPluginDemanded(packageName);
+		PluginBoot boot;
+		boolean isOwner = false;
+		LoadedPlugin running = null;
+		synchronized (bootingPlugins) {
+			boot = bootingPlugins.get(packageName);
+			if (boot == null) {
+				running = loadedPluginMap.get(packageName);
+				if (running != null) {
+					//LogUtil.d("IS RUNNING", packageName);
+					markUsedLocked(packageName);
+				} else {
+					boot = new PluginBoot(new Callable<LoadedPlugin>() {
+						@Override
+						public LoadedPlugin call() {
+							return bootPlugin(pluginDescriptor);
+						}
+					});
+					bootingPlugins.put(packageName, boot);
+					isOwner = true;
+				}
+			}
+		}
+		if (running != null) {
+			return ensureApplication(running);
+		}
 
-			long startAt = System.currentTimeMillis();
-			LogUtil.i("正在初始化插件 " + pluginDescriptor.getPackageName() + ": Resources, DexClassLoader, Context, Application");
-			LogUtil.v("插件信息", pluginDescriptor.getVersion(), pluginDescriptor.getInstalledPath());
+		if (isOwner) {
+			long traceStart = PluginBootTrace.begin(pluginDescriptor, PluginBootTrace.PHASE_BOOT);
+			try {
+				boot.run();
+			} finally {
+				PluginBootTrace.end(pluginDescriptor, PluginBootTrace.PHASE_BOOT, traceStart);
+				synchronized (bootingPlugins) {
+					bootingPlugins.remove(packageName);
+					if (loadedPluginMap.containsKey(packageName)) {
+						markUsedLocked(packageName);
+					}
+				}
+			}
+			PluginIdleReclaimer.onPluginStarted();
+		} else if (boot.owner == Thread.currentThread()) {
+			//初始化过程中同一线程重入, 比如安装ContentProvider时加载插件类, 这时插件已经放入loadedPluginMap
+			return loadedPluginMap.get(packageName);
+		}
+
+		return ensureApplication(getUninterruptibly(boot));
+	}
+
+	/**
+	 * 主线程拿到的插件如果是在后台线程初始化的, 插件Application的初始化可能还在等待主线程执行,
+	 * 这时直接在当前调用中执行, 保证主线程接下来创建组件时插件Application.onCreate已经执行过
+	 */
+	private LoadedPlugin ensureApplication(LoadedPlugin plugin) {
+		if (plugin == null || plugin.pluginApplication != null || Looper.myLooper() != Looper.getMainLooper()) {
+			return plugin;
+		}
+		ApplicationInit init;
+		synchronized (bootingPlugins) {
+			init = pendingApplicationInits.get(plugin.pluginPackageName);
+		}
+		if (init != null && init.plugin == plugin) {
+			init.run();
+		}
+		return plugin;
+	}
 
-			Resources pluginRes = PluginCreator.createPluginResource(
-					FairyGlobal.getHostApplication().getApplicationInfo().sourceDir,
-					FairyGlobal.getHostApplication().getResources(), pluginDescriptor);
+	/**
+	 * Resources和DexClassLoader互不依赖, DexClassLoader在classLoaderExecutor中创建, 同时在当前线程创建Resources,
+	 * 两者都完成后再组装Context
+	 */
+	private LoadedPlugin bootPlugin(final PluginDescriptor pluginDescriptor) {
+
+		final long startAt = System.currentTimeMillis();
+		LogUtil.i("正在初始化插件 " + pluginDescriptor.getPackageName() + ": Resources, DexClassLoader, Context, Application");
+		LogUtil.v("插件信息", pluginDescriptor.getVersion(), pluginDescriptor.getInstalledPath());
+
+		Resources pluginRes;
+		DexClassLoader pluginClassLoader;
+		WarmedPlugin warmed = warmedPlugins.remove(pluginDescriptor.getPackageName());
+		if (warmed != null && warmed.installedPath.equals(pluginDescriptor.getInstalledPath())) {
+			LogUtil.i("使用预热的Resources和DexClassLoader");
+			pluginRes = warmed.pluginRes;
+			pluginClassLoader = warmed.pluginClassLoader;
+		} else {
+			FutureTask<DexClassLoader> classLoaderTask = new FutureTask<DexClassLoader>(new Callable<DexClassLoader>() {
+				@Override
+				public DexClassLoader call() {
+					//安装后的dexopt还没有完成时, 提前并等待, 避免重复dexopt
+					long traceStart = PluginBootTrace.begin(pluginDescriptor, PluginBootTrace.PHASE_DEXOPT_WAIT);
+					try {
+						DexOptScheduler.instance().waitFor(pluginDescriptor.getPackageName());
+					} finally {
+						PluginBootTrace.end(pluginDescriptor, PluginBootTrace.PHASE_DEXOPT_WAIT, traceStart);
+					}
+
+					DexClassLoader classLoader;
+					traceStart = PluginBootTrace.begin(pluginDescriptor, PluginBootTrace.PHASE_CLASSLOADER);
+					try {
+						classLoader = PluginCreator.createPluginClassLoader(
+								pluginDescriptor.getInstalledPath(),
+								pluginDescriptor.isStandalone(),
+								pluginDescriptor.getDependencies(),
+								pluginDescriptor.getMuliDexList());
+					} finally {
+						PluginBootTrace.end(pluginDescriptor, PluginBootTrace.PHASE_CLASSLOADER, traceStart);
+					}
+
+					LogUtil.i("初始化插件DexClassLoader耗时:" + (System.currentTimeMillis() - startAt));
+					return classLoader;
+				}
+			});
+			classLoaderExecutor.execute(classLoaderTask);
+
+			long traceStart = PluginBootTrace.begin(pluginDescriptor, PluginBootTrace.PHASE_RESOURCES);
+			try {
+				pluginRes = PluginCreator.createPluginResource(
+						FairyGlobal.getHostApplication().getApplicationInfo().sourceDir,
+						FairyGlobal.getHostApplication().getResources(), pluginDescriptor);
+			} finally {
+				PluginBootTrace.end(pluginDescriptor, PluginBootTrace.PHASE_RESOURCES, traceStart);
+			}
 
 			if (pluginRes == null) {
+				classLoaderTask.cancel(false);
 				LogUtil.e("初始化插件失败 : res");
-                throw new PluginResInitError("初始化插件失败 : res");
+				throw new PluginResInitError("初始化插件失败 : res");
 			}
 
 			long t1 = System.currentTimeMillis();
 			LogUtil.i("初始化插件资源耗时:" + (t1 - startAt));
 
-			DexClassLoader pluginClassLoader = PluginCreator.createPluginClassLoader(
-							pluginDescriptor.getInstalledPath(),
-							pluginDescriptor.isStandalone(),
-							pluginDescriptor.getDependencies(),
-							pluginDescriptor.getMuliDexList());
+			//线程池繁忙还没轮到时直接在当前线程执行, 已经开始或者已经完成时run什么也不做
+			classLoaderTask.run();
+			pluginClassLoader = getUninterruptibly(classLoaderTask);
 
-			long t12 = System.currentTimeMillis();
-			LogUtil.i("初始化插件DexClassLoader耗时:" + (t12 - t1));
+			LogUtil.i("等待插件DexClassLoader耗时:" + (System.currentTimeMillis() - t1));
+		}
 
-			PluginContextTheme pluginContext = (PluginContextTheme)PluginCreator.createPluginContext(
+		long t12 = System.currentTimeMillis();
+
+		PluginContextTheme pluginContext;
+		long traceStart = PluginBootTrace.begin(pluginDescriptor, PluginBootTrace.PHASE_CONTEXT);
+		try {
+			pluginContext = (PluginContextTheme)PluginCreator.createPluginContext(
 					pluginDescriptor,
 					FairyGlobal.getHostApplication().getBaseContext(),
 					pluginRes,
@@ -125,65 +303,160 @@ public class PluginLauncher implements Serializable {
 
 			//插件Context默认主题设置为插件application主题
 			pluginContext.setTheme(pluginDescriptor.getApplicationTheme());
+		} finally {
+			PluginBootTrace.end(pluginDescriptor, PluginBootTrace.PHASE_CONTEXT, traceStart);
+		}
 
-			long t13 = System.currentTimeMillis();
-			LogUtil.i("初始化插件Theme耗时:" + (t13 - t12));
+		long t13 = System.currentTimeMillis();
+		LogUtil.i("初始化插件Theme耗时:" + (t13 - t12));
 
-			plugin = new LoadedPlugin(pluginDescriptor.getPackageName(),
-					pluginDescriptor.getInstalledPath(),
-					pluginContext,
-					pluginClassLoader);
+		LoadedPlugin plugin = new LoadedPlugin(pluginDescriptor.getPackageName(),
+				pluginDescriptor.getInstalledPath(),
+				pluginContext,
+				pluginClassLoader);
 
-			loadedPluginMap.put(pluginDescriptor.getPackageName(), plugin);
+		loadedPluginMap.put(pluginDescriptor.getPackageName(), plugin);
 
-			//inflate data in meta-data
+		//inflate data in meta-data
+		traceStart = PluginBootTrace.begin(pluginDescriptor, PluginBootTrace.PHASE_METADATA);
+		try {
 			pluginDescriptor.inflateMetaData(pluginDescriptor, pluginRes);
+		} finally {
+			PluginBootTrace.end(pluginDescriptor, PluginBootTrace.PHASE_METADATA, traceStart);
+		}
 
-			if (Thread.currentThread() == Looper.getMainLooper().getThread()) {
-				LogUtil.i("当前执行插件初始化的线程是主线程，开始初始化插件Application");
-				initApplication(pluginContext, pluginClassLoader, pluginRes, pluginDescriptor, plugin);
-			} else {
-				LogUtil.i("当前执行插件初始化的线程不是主线程，异步通知主线程初始化插件Application", Thread.currentThread().getId(), Thread.currentThread().getName() );
-				final LoadedPlugin finalLoadedPlugin = plugin;
-				new Handler(Looper.getMainLooper()).post(new Runnable() {
-					@Override
-					public void run() {
-						if (finalLoadedPlugin.pluginApplication == null) {
-							initApplication(finalLoadedPlugin.pluginContext,
-									finalLoadedPlugin.pluginClassLoader,
-									finalLoadedPlugin.pluginContext.getResources(),
-									((PluginContextTheme)finalLoadedPlugin.pluginContext).getPluginDescriptor(),
-									finalLoadedPlugin);
-						}
+		if (Thread.currentThread() == Looper.getMainLooper().getThread()) {
+			LogUtil.i("当前执行插件初始化的线程是主线程，开始初始化插件Application");
+			initApplication(pluginContext, pluginClassLoader, pluginRes, pluginDescriptor, plugin, null);
+		} else {
+			LogUtil.i("当前执行插件初始化的线程不是主线程，异步通知主线程初始化插件Application", Thread.currentThread().getId(), Thread.currentThread().getName() );
+			//插件Application实现了PluginStagedApplication时, 在当前线程先完成不依赖主线程的初始化
+			Application preCreatedApplication = preCreateApplication(pluginContext, pluginClassLoader, pluginDescriptor);
+			ApplicationInit init = new ApplicationInit(plugin, preCreatedApplication);
+			synchronized (bootingPlugins) {
+				pendingApplicationInits.put(pluginDescriptor.getPackageName(), init);
+			}
+			//主线程在这之前通过startPlugin拿到这个插件时会直接执行, 这里就什么也不做
+			new Handler(Looper.getMainLooper()).post(init);
+		}
+
+		return plugin;
+	}
+
+	/**
+	 * 等待结果, 期间被中断时继续等待并在返回前恢复中断状态; 执行中抛出的Error和RuntimeException原样抛出
+	 */
+	private static <T> T getUninterruptibly(Future<T> future) {
+		boolean interrupted = false;
+		try {
+			while (true) {
+				try {
+					return future.get();
+				} catch (InterruptedException e) {
+					interrupted = true;
+				} catch (ExecutionException e) {
+					Throwable cause = e.getCause();
+					if (cause instanceof RuntimeException) {
+						throw (RuntimeException) cause;
+					} else if (cause instanceof Error) {
+						throw (Error) cause;
 					}
-				});
+					throw new RuntimeException(cause);
+				}
 			}
+		} finally {
+			if (interrupted) {
+				Thread.currentThread().interrupt();
+			}
+		}
+	}
 
-		} else {
-			//LogUtil.d("IS RUNNING", packageName);
+	private static class WarmedPlugin {
+
+		final String installedPath;
+		final Resources pluginRes;
+		final DexClassLoader pluginClassLoader;
+
+		WarmedPlugin(String installedPath, Resources pluginRes, DexClassLoader pluginClassLoader) {
+			this.installedPath = installedPath;
+			this.pluginRes = pluginRes;
+			this.pluginClassLoader = pluginClassLoader;
 		}
+	}
 
-		return plugin;
+	/**
+	 * 在主线程初始化后台线程初始化的插件的Application, 只执行一次
+	 */
+	private class ApplicationInit implements Runnable {
+
+		final LoadedPlugin plugin;
+		final Application preCreatedApplication;
+		//只在主线程访问, 插件Application.onCreate中重入startPlugin时不会再次初始化
+		private boolean started;
+
+		ApplicationInit(LoadedPlugin plugin, Application preCreatedApplication) {
+			this.plugin = plugin;
+			this.preCreatedApplication = preCreatedApplication;
+		}
+
+		@Override
+		public void run() {
+			if (started) {
+				return;
+			}
+			started = true;
+			synchronized (bootingPlugins) {
+				if (pendingApplicationInits.get(plugin.pluginPackageName) == this) {
+					pendingApplicationInits.remove(plugin.pluginPackageName);
+				}
+			}
+			if (plugin.pluginApplication == null) {
+				initApplication(plugin.pluginContext,
+						plugin.pluginClassLoader,
+						plugin.pluginContext.getResources(),
+						((PluginContextTheme)plugin.pluginContext).getPluginDescriptor(),
+						plugin,
+						preCreatedApplication);
+			}
+		}
 	}
 
-	private void initApplication(Context pluginContext, DexClassLoader pluginClassLoader, Resources pluginRes, PluginDescriptor pluginDescriptor, LoadedPlugin plugin) {
+	/**
+	 * 一次插件初始化, 记录发起初始化的线程用于识别重入
+	 */
+	private static class PluginBoot extends FutureTask<LoadedPlugin> {
+
+		final Thread owner = Thread.currentThread();
+
+		PluginBoot(Callable<LoadedPlugin> callable) {
+			super(callable);
+		}
+	}
+
+	/**
+	 * @param preCreatedApplication 已经在初始化线程中创建的插件Application, 没有时为null
+	 */
+	private void initApplication(Context pluginContext, DexClassLoader pluginClassLoader, Resources pluginRes, PluginDescriptor pluginDescriptor, LoadedPlugin plugin, Application preCreatedApplication) {
 
 		LogUtil.i("开始初始化插件 " + pluginDescriptor.getPackageName() + " " + pluginDescriptor.getApplicationName());
 
 		long t13 = System.currentTimeMillis();
 
-		Application pluginApplication = callPluginApplicationOnCreate(pluginContext, pluginClassLoader, pluginDescriptor);
+		Application pluginApplication = callPluginApplicationOnCreate(pluginContext, pluginClassLoader, pluginDescriptor, preCreatedApplication);
 
 		plugin.pluginApplication = pluginApplication;//这里之所以不放在LoadedPlugin的构造器里面，是因为contentprovider在安装时loadclass，造成死循环
 
 		long t3 = System.currentTimeMillis();
 		LogUtil.i("初始化插件 " + pluginDescriptor.getPackageName() + " " + pluginDescriptor.getApplicationName() + ", 耗时:" + (t3 - t13));
 
+		long traceStart = PluginBootTrace.begin(pluginDescriptor, PluginBootTrace.PHASE_INSTALL_PACKAGE_INFO);
 		try {
 			HackActivityThread.installPackageInfo(FairyGlobal.getHostApplication(), pluginDescriptor.getPackageName(), pluginDescriptor,
 					pluginClassLoader, pluginRes, pluginApplication);
 		} catch (ClassNotFoundException e) {
 			LogUtil.printException("PluginLauncher.initApplication", e);
+		} finally {
+			PluginBootTrace.end(pluginDescriptor, PluginBootTrace.PHASE_INSTALL_PACKAGE_INFO, traceStart);
 		}
 
         // 解决插件中webview加载html时<input type=date />控件出错的问题，兼容性待验证
@@ -192,28 +465,77 @@ public class PluginLauncher implements Serializable {
 		LogUtil.w("初始化插件" + pluginDescriptor.getPackageName() + "完成");
 	}
 
-	private Application callPluginApplicationOnCreate(Context pluginContext, DexClassLoader classLoader, PluginDescriptor pluginDescriptor) {
+	/**
+	 * 插件Application实现了PluginStagedApplication时, 在非主线程中提前创建Application并执行onPreCreate
+	 *
+	 * @return 没有实现PluginStagedApplication或者创建失败时返回null, 之后在主线程中按原来的方式创建
+	 */
+	private Application preCreateApplication(Context pluginContext, DexClassLoader classLoader, PluginDescriptor pluginDescriptor) {
+		try {
+			Class applicationClass = classLoader.loadClass(pluginDescriptor.getApplicationName());
+			if (!PluginStagedApplication.class.isAssignableFrom(applicationClass)) {
+				return null;
+			}
+			long startAt = System.currentTimeMillis();
+			Application pluginApplication = newApplication(pluginContext, classLoader, pluginDescriptor);
+			long traceStart = PluginBootTrace.begin(pluginDescriptor, PluginBootTrace.PHASE_APPLICATION_PRE_CREATE);
+			try {
+				((PluginStagedApplication) pluginApplication).onPreCreate();
+			} finally {
+				PluginBootTrace.end(pluginDescriptor, PluginBootTrace.PHASE_APPLICATION_PRE_CREATE, traceStart);
+			}
+			LogUtil.i("插件Application预初始化 " + pluginDescriptor.getPackageName() + ", 耗时:" + (System.currentTimeMillis() - startAt));
+			return pluginApplication;
+		} catch (Exception e) {
+			LogUtil.printException("PluginLauncher.preCreateApplication", e);
+		}
+		return null;
+	}
+
+	private Application newApplication(Context pluginContext, DexClassLoader classLoader, PluginDescriptor pluginDescriptor) throws Exception {
+		LogUtil.d("创建插件Application", pluginDescriptor.getApplicationName());
 
-		Application pluginApplication = null;
+		//为了支持插件中使用multidex
+		((PluginContextTheme)pluginContext).setCrackPackageManager(true);
 
+		Application pluginApplication;
+		long traceStart = PluginBootTrace.begin(pluginDescriptor, PluginBootTrace.PHASE_APPLICATION_NEW);
 		try {
-			LogUtil.d("创建插件Application", pluginDescriptor.getApplicationName());
+			pluginApplication = Instrumentation.newApplication(classLoader.loadClass(pluginDescriptor.getApplicationName()),
+					pluginContext);
+		} finally {
+			PluginBootTrace.end(pluginDescriptor, PluginBootTrace.PHASE_APPLICATION_NEW, traceStart);
+		}
 
-			//为了支持插件中使用multidex
-			((PluginContextTheme)pluginContext).setCrackPackageManager(true);
+		//为了支持插件中使用multidex
+		((PluginContextTheme)pluginContext).setCrackPackageManager(false);
 
-            pluginApplication = Instrumentation.newApplication(classLoader.loadClass(pluginDescriptor.getApplicationName()),
-					pluginContext);
+		return pluginApplication;
+	}
 
-			//为了支持插件中使用multidex
-			((PluginContextTheme)pluginContext).setCrackPackageManager(false);
+	private Application callPluginApplicationOnCreate(Context pluginContext, DexClassLoader classLoader, PluginDescriptor pluginDescriptor, Application preCreatedApplication) {
 
-		} catch (Exception e) {
-            throw new PluginNotFoundError(e);
+		Application pluginApplication = preCreatedApplication;
+
+		if (pluginApplication == null) {
+			try {
+				pluginApplication = newApplication(pluginContext, classLoader, pluginDescriptor);
+			} catch (Exception e) {
+				throw new PluginNotFoundError(e);
+			}
 		}
 
 		//安装ContentProvider, 在插件Application对象构造以后，oncreate调用之前
-		PluginInjector.installContentProviders(FairyGlobal.getHostApplication(), pluginApplication, pluginDescriptor.getProviderInfos().values());
+		//延迟安装时在第一次访问时安装, 见installContentProviders
+		if (!FairyGlobal.isLazyContentProviderEnable()) {
+			long traceStart = PluginBootTrace.begin(pluginDescriptor, PluginBootTrace.PHASE_PROVIDERS);
+			try {
+				PluginInjector.installContentProviders(FairyGlobal.getHostApplication(), pluginApplication, pluginDescriptor.getProviderInfos().values());
+			} finally {
+				PluginBootTrace.end(pluginDescriptor, PluginBootTrace.PHASE_PROVIDERS, traceStart);
+			}
+			installedProviders.put(pluginDescriptor.getPackageName(), Boolean.TRUE);
+		}
 
 		//执行onCreate
 
@@ -224,7 +546,12 @@ public class PluginLauncher implements Serializable {
         Thread.UncaughtExceptionHandler old = Thread.getDefaultUncaughtExceptionHandler();
         Thread.setDefaultUncaughtExceptionHandler(null);
 
-        pluginApplication.onCreate();
+        long traceStart = PluginBootTrace.begin(pluginDescriptor, PluginBootTrace.PHASE_APPLICATION_ON_CREATE);
+        try {
+            pluginApplication.onCreate();
+        } finally {
+            PluginBootTrace.end(pluginDescriptor, PluginBootTrace.PHASE_APPLICATION_ON_CREATE, traceStart);
+        }
 
         Thread.UncaughtExceptionHandler pluginExHandler = Thread.getDefaultUncaughtExceptionHandler();
 
@@ -272,9 +599,100 @@ public class PluginLauncher implements Serializable {
 		return pluginApplication;
 	}
 
+	/**
+	 * 预热插件, 提前创建Resources和DexClassLoader, 不创建Context和Application, 不算作运行中,
+	 * 之后startPlugin时直接使用。在后台线程调用
+	 *
+	 * @return 是否预热成功, 插件已经运行或者已经预热时返回false
+	 */
+	public boolean warmPlugin(PluginDescriptor pluginDescriptor) {
+		String packageName = pluginDescriptor.getPackageName();
+		if (isRunning(packageName) || warmedPlugins.containsKey(packageName)) {
+			return false;
+		}
+
+		long startAt = System.currentTimeMillis();
+
+		Resources pluginRes = PluginCreator.createPluginResource(
+				FairyGlobal.getHostApplication().getApplicationInfo().sourceDir,
+				FairyGlobal.getHostApplication().getResources(), pluginDescriptor);
+		if (pluginRes == null) {
+			LogUtil.e("预热插件失败 : res", packageName);
+			return false;
+		}
+
+		DexOptScheduler.instance().waitFor(packageName);
+
+		DexClassLoader pluginClassLoader = PluginCreator.createPluginClassLoader(
+				pluginDescriptor.getInstalledPath(),
+				pluginDescriptor.isStandalone(),
+				pluginDescriptor.getDependencies(),
+				pluginDescriptor.getMuliDexList());
+
+		warmedPlugins.put(packageName, new WarmedPlugin(pluginDescriptor.getInstalledPath(), pluginRes, pluginClassLoader));
+		//预热期间插件被正常启动了, 预热结果不会再被使用
+		if (isRunning(packageName)) {
+			warmedPlugins.remove(packageName);
+			return false;
+		}
+
+		LogUtil.i("预热插件 " + packageName + " 耗时:" + (System.currentTimeMillis() - startAt));
+		return true;
+	}
+
+	public boolean isContentProvidersInstalled(String packageName) {
+		return installedProviders.containsKey(packageName);
+	}
+
+	public boolean isWarmed(String packageName) {
+		return warmedPlugins.containsKey(packageName);
+	}
+
+	/**
+	 * 内存紧张时丢弃还没有被使用的预热结果
+	 */
+	public void dropWarmedPlugins() {
+		if (!warmedPlugins.isEmpty()) {
+			LogUtil.w("丢弃预热的插件", warmedPlugins.keySet());
+			warmedPlugins.clear();
+		}
+	}
+
+	/**
+	 * 延迟安装ContentProvider时, 插件的provider第一次被访问时安装插件的所有provider, 插件还没有运行时先启动插件
+	 *
+	 * @return 插件的provider是否已经安装
+	 */
+	public boolean installContentProviders(PluginDescriptor pluginDescriptor) {
+		String packageName = pluginDescriptor.getPackageName();
+		if (installedProviders.containsKey(packageName)) {
+			return true;
+		}
+		LoadedPlugin plugin = startPlugin(pluginDescriptor);
+		if (plugin == null) {
+			return false;
+		}
+		synchronized (plugin) {
+			if (!installedProviders.containsKey(packageName)) {
+				long startAt = System.currentTimeMillis();
+				//Application可能还在等主线程创建, 这时使用插件Context, provider的getContext().getApplicationContext()同样可以取到插件Application
+				Context context = plugin.pluginApplication != null ? plugin.pluginApplication : plugin.pluginContext;
+				long traceStart = PluginBootTrace.begin(pluginDescriptor, PluginBootTrace.PHASE_PROVIDERS);
+				try {
+					PluginInjector.installContentProviders(FairyGlobal.getHostApplication(), context, pluginDescriptor.getProviderInfos().values());
+				} finally {
+					PluginBootTrace.end(pluginDescriptor, PluginBootTrace.PHASE_PROVIDERS, traceStart);
+				}
+				installedProviders.put(packageName, Boolean.TRUE);
+				LogUtil.i("延迟安装插件ContentProvider " + packageName + ", 耗时:" + (System.currentTimeMillis() - startAt));
+			}
+		}
+		return true;
+	}
+
 	public void stopPlugin(String packageName, PluginDescriptor pluginDescriptor) {
 
-		final LoadedPlugin plugin = getRunningPlugin(packageName);
+		final LoadedPlugin plugin = loadedPluginMap.get(packageName);
 
 		if (plugin == null) {
 			LogUtil.w("插件未运行", packageName);
@@ -290,6 +708,122 @@ public class PluginLauncher implements Serializable {
 		LogUtil.d("退出Activity");
 		FairyGlobal.getHostApplication().sendBroadcast(new Intent(plugin.pluginPackageName + PluginActivityMonitor.ACTION_UN_INSTALL_PLUGIN));
 
+		//退出Service
+		//bindservie启动的service应该不需要处理，退出activity的时候会unbind
+		Map<IBinder, Service> map = HackActivityThread.get().getServices();
+		if (map != null) {
+			Collection<Service> list = map.values();
+			for (Service s :list) {
+				if (s.getClass().getClassLoader() == plugin.pluginClassLoader) {
+					s.stopSelf();
+				}
+			}
+		}
+
+		releasePlugin(plugin);
+
+		loadedPluginMap.remove(packageName);
+		warmedPlugins.remove(packageName);
+		installedProviders.remove(packageName);
+		synchronized (bootingPlugins) {
+			forgetUsageLocked(packageName);
+		}
+	}
+
+	private void markUsedLocked(String packageName) {
+		pluginUsage.put(packageName, Boolean.TRUE);
+		Integer count = useCounts.get(packageName);
+		useCounts.put(packageName, count == null ? 1 : count + 1);
+	}
+
+	private void forgetUsageLocked(String packageName) {
+		pluginUsage.remove(packageName);
+		useCounts.remove(packageName);
+		checkpointUseCounts.remove(packageName);
+		localServiceInstances.remove(packageName);
+	}
+
+	/**
+	 * LocalServiceManager交出插件中的服务实例时调用, 之后这个插件不会被当作空闲插件卸载
+	 */
+	public void onLocalServiceInstanceCreated(String packageName) {
+		synchronized (bootingPlugins) {
+			if (loadedPluginMap.containsKey(packageName)) {
+				markUsedLocked(packageName);
+				Integer count = localServiceInstances.get(packageName);
+				localServiceInstances.put(packageName, count == null ? 1 : count + 1);
+			}
+		}
+	}
+
+	/**
+	 * 记录当前每个插件的取用次数, unloadIdlePlugin只卸载从这之后没有再被取用过的插件,
+	 * 避免刚通过startPlugin或getRunningPlugin拿到插件、还没来得及创建组件的插件被卸载
+	 */
+	void markUseCheckpoint() {
+		synchronized (bootingPlugins) {
+			checkpointUseCounts.clear();
+			checkpointUseCounts.putAll(useCounts);
+		}
+	}
+
+	/**
+	 * 卸载一个空闲的插件, 释放DexClassLoader、Resources、Application和Context, 下次用到时重新初始化
+	 * 插件正在初始化、还没有创建Application、上次markUseCheckpoint之后被取用过、交出过LocalService实例
+	 * 或者不空闲时不卸载, 见PluginIdleReclaimer.isIdle
+	 *
+	 * @return 是否已卸载
+	 */
+	public boolean unloadIdlePlugin(String packageName) {
+		LoadedPlugin plugin;
+		synchronized (bootingPlugins) {
+			plugin = loadedPluginMap.get(packageName);
+			if (plugin == null || bootingPlugins.containsKey(packageName) || plugin.pluginApplication == null) {
+				return false;
+			}
+			Integer checkpoint = checkpointUseCounts.get(packageName);
+			if (checkpoint == null || !checkpoint.equals(useCounts.get(packageName))) {
+				return false;
+			}
+			if (localServiceInstances.containsKey(packageName) || !PluginIdleReclaimer.isIdle(plugin)) {
+				return false;
+			}
+			loadedPluginMap.remove(packageName);
+			forgetUsageLocked(packageName);
+		}
+
+		LogUtil.w("卸载空闲插件", packageName);
+
+		PluginDescriptor pluginDescriptor = ((PluginContextTheme) plugin.pluginContext).getPluginDescriptor();
+
+		releasePlugin(plugin);
+
+		HackActivityThread.uninstallPackageInfo(pluginDescriptor);
+
+		//插件不再运行, 描述不需要继续常驻
+		PluginManagerProviderClient.releaseDescriptor(packageName);
+
+		return true;
+	}
+
+	/**
+	 * @return 运行中的插件, 最久没有用到的在前
+	 */
+	public ArrayList<String> getRunningPluginsByLastUse() {
+		synchronized (bootingPlugins) {
+			return new ArrayList<String>(pluginUsage.keySet());
+		}
+	}
+
+	public int getRunningPluginCount() {
+		return loadedPluginMap.size();
+	}
+
+	/**
+	 * 停止和卸载插件时共同的清理
+	 */
+	private void releasePlugin(final LoadedPlugin plugin) {
+
 		//退出 LocalBroadcastManager
 		LogUtil.d("退出LocalBroadcastManager");
 
@@ -308,18 +842,6 @@ public class PluginLauncher implements Serializable {
 			}
 		}
 
-		//退出Service
-		//bindservie启动的service应该不需要处理，退出activity的时候会unbind
-		Map<IBinder, Service> map = HackActivityThread.get().getServices();
-		if (map != null) {
-			Collection<Service> list = map.values();
-			for (Service s :list) {
-				if (s.getClass().getClassLoader() == plugin.pluginClassLoader) {
-					s.stopSelf();
-				}
-			}
-		}
-
 		//退出webview
 		LogUtil.d("还原WebView Context");
 		new Handler(Looper.getMainLooper()).post(new Runnable() {
@@ -335,7 +857,7 @@ public class PluginLauncher implements Serializable {
 				//2、application注册
 				//      这里需要处理这种方式注册的广播，这种方式注册的广播会被PluginContextTheme对象记录下来
 				LogUtil.d("退出BroadcastReceiver");
-				((PluginContextTheme) plugin.pluginApplication.getBaseContext()).unregisterAllReceiver();
+				((PluginContextTheme) plugin.pluginContext).unregisterAllReceiver();
 			}
 		});
 
@@ -355,10 +877,9 @@ public class PluginLauncher implements Serializable {
         //这里不一定能清理干净，因为UncaugthExceptionWrapper可能会被创建多个实例。不过也没什么大的影响
         Thread.UncaughtExceptionHandler exceptionHandler = Thread.getDefaultUncaughtExceptionHandler();
         if (exceptionHandler instanceof UncaugthExceptionWrapper) {
-            ((UncaugthExceptionWrapper) exceptionHandler).removeHandler(pluginDescriptor.getPackageName());
+            ((UncaugthExceptionWrapper) exceptionHandler).removeHandler(plugin.pluginPackageName);
         }
 
-		loadedPluginMap.remove(packageName);
 	}
 
 	public boolean isRunning(String packageName) {
@@ -14,6 +14,7 @@ import android.os.Handler;
 
 import com.limpoxe.fairy.content.LoadedPlugin;
 import com.limpoxe.fairy.content.PluginDescriptor;
+import com.limpoxe.fairy.content.PluginDescriptorCodec;
 import com.limpoxe.fairy.core.android.HackLayoutInflater;
 import com.limpoxe.fairy.core.compat.CompatForFragmentClassCache;
 import com.limpoxe.fairy.core.compat.CompatForSupportv7ViewInflater;
@@ -22,6 +23,7 @@ import com.limpoxe.fairy.core.proxy.systemservice.AndroidAppINotificationManager
 import com.limpoxe.fairy.core.proxy.systemservice.AndroidAppIPackageManager;
 import com.limpoxe.fairy.core.proxy.systemservice.AndroidOsServiceManager;
 import com.limpoxe.fairy.core.proxy.systemservice.AndroidWebkitWebViewFactoryProvider;
+import com.limpoxe.fairy.manager.PluginDescriptorPager;
 import com.limpoxe.fairy.manager.PluginManagerHelper;
 import com.limpoxe.fairy.manager.PluginManagerProviderClient;
 import com.limpoxe.fairy.manager.mapping.StubActivityMappingProcessor;
@@ -30,7 +32,7 @@ import com.limpoxe.fairy.manager.mapping.StubServiceMappingProcessor;
 import com.limpoxe.fairy.util.LogUtil;
 import com.limpoxe.fairy.util.ProcessUtil;
 
-import java.util.ArrayList;
+import java.util.Iterator;
 
 import dalvik.system.DexClassLoader;
 
@@ -129,6 +131,14 @@ public class PluginLoader {
 
         removeNotSupportedPluginIfUpgraded();
 
+        if (isPluginProcess && FairyGlobal.getMaxRunningPlugins() > 0) {
+            PluginIdleReclaimer.start();
+        }
+
+        if (isPluginProcess && FairyGlobal.isPluginPreloadEnable()) {
+            PluginPreloader.instance().start();
+        }
+
         long t2 = System.currentTimeMillis();
         LogUtil.w("插件框架初始化完成", "耗时：" + (t2-t1));
 	}
@@ -151,18 +161,17 @@ public class PluginLoader {
         //版本号发生了变化
         if (!hostVersionName.equals(lastHostVersoinName)) {
             //遍历检查已安装的非独立插件是否支持当前版本的宿主
-            ArrayList<PluginDescriptor> pluginDescriptorList =  PluginManagerHelper.getPlugins();
-            for(int i = 0; i < pluginDescriptorList.size(); i++) {
-                PluginDescriptor pluginDescriptor = pluginDescriptorList.get(i);
-                if (!pluginDescriptor.isStandalone() && pluginDescriptor.getRequiredHostVersionName() != null) {
-                    //是非独立插件，而且指定了插件运行需要的的宿主版本
-                    //判断宿主版本是否满足要求
-                    if (!pluginDescriptor.getRequiredHostVersionName().equals(hostVersionName)) {
-                        //不满足要求，卸载此插件
-                        LogUtil.e("当前宿主版本不支持此插件版本", "宿主versionName:" + hostVersionName, "插件RequiredHostVersionName:" + pluginDescriptor.getRequiredHostVersionName());
-                        LogUtil.w("卸载此插件");
-                        PluginManagerHelper.remove(pluginDescriptor.getPackageName());
-                    }
+            //只需要指定了宿主版本的非独立插件的基本信息, 在插件进程中过滤, 分页传输
+            Iterator<PluginDescriptor> itr = PluginManagerHelper.iteratePlugins(PluginDescriptorPager.FILTER_REQUIRES_HOST_VERSION, PluginDescriptorCodec.PROJECTION_SUMMARY);
+            while (itr.hasNext()) {
+                PluginDescriptor pluginDescriptor = itr.next();
+                //是非独立插件，而且指定了插件运行需要的的宿主版本
+                //判断宿主版本是否满足要求
+                if (!pluginDescriptor.getRequiredHostVersionName().equals(hostVersionName)) {
+                    //不满足要求，卸载此插件
+                    LogUtil.e("当前宿主版本不支持此插件版本", "宿主versionName:" + hostVersionName, "插件RequiredHostVersionName:" + pluginDescriptor.getRequiredHostVersionName());
+                    LogUtil.w("卸载此插件");
+                    PluginManagerHelper.remove(pluginDescriptor.getPackageName());
                 }
             }
             prefs.edit().putString(KEY, hostVersionName).apply();
@@ -0,0 +1,264 @@
+package com.limpoxe.fairy.core;
+
+import android.annotation.TargetApi;
+import android.content.ComponentCallbacks2;
+import android.content.Context;
+import android.content.SharedPreferences;
+import android.content.res.Configuration;
+import android.os.Build;
+import android.os.Looper;
+import android.os.MessageQueue;
+import android.os.Process;
+
+import com.limpoxe.fairy.content.PluginDescriptor;
+import com.limpoxe.fairy.manager.PluginManagerHelper;
+import com.limpoxe.fairy.util.LogUtil;
+
+import java.util.AbstractMap;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * 根据历史启动记录预热插件
+ *
+ * 记录每次宿主启动后哪些插件被用到、距离宿主启动多久被用到, 持久化在SharedPreferences中。
+ * 宿主启动后主线程第一次空闲时, 在后台线程按照被用到的先后顺序预热最可能用到的几个插件,
+ * 首次打开插件Activity时就不需要再显示WaitForLoadingPluginActivity。
+ * 内存紧张时停止预热并丢弃还没有被使用的预热结果
+ *
+ * 仅在插件进程使用, 通过FairyGlobal.setPluginPreloadEnable打开
+ */
+public class PluginPreloader {
+
+	private static final String PREFERENCE_NAME = "fairy_preload";
+
+	//每次宿主启动对历史分数的衰减, 很久没有用到的插件逐渐不再预热
+	private static final float DECAY = 0.7f;
+	//低于这个分数不预热, 只用到过一次的插件在下次宿主启动时还会预热一次
+	private static final float MIN_SCORE = 0.6f;
+	//每次宿主启动最多预热的插件数
+	private static final int MAX_PRELOAD_COUNT = 2;
+	//剩余可用堆内存低于这个值时不再预热
+	private static final long MIN_FREE_HEAP = 16 * 1024 * 1024;
+
+	private static PluginPreloader sInstance;
+
+	private volatile long sessionStartAt;
+	private volatile boolean trimmed;
+	private volatile Thread worker;
+
+	//本次宿主启动后已经用到的插件
+	private final ConcurrentHashMap<String, Boolean> demanded = new ConcurrentHashMap<String, Boolean>();
+
+	private static class Record {
+		float score;
+		//平均在宿主启动后多久被用到, 单位ms
+		long delay;
+	}
+
+	private PluginPreloader() {
+	}
+
+	public static synchronized PluginPreloader instance() {
+		if (sInstance == null) {
+			sInstance = new PluginPreloader();
+		}
+		return sInstance;
+	}
+
+	/**
+	 * 在宿主Application.onCreate中由PluginLoader.initLoader调用
+	 */
+	void start() {
+		if (sessionStartAt != 0) {
+			return;
+		}
+		sessionStartAt = System.currentTimeMillis();
+
+		if (Build.VERSION.SDK_INT >= 14) {
+			registerTrimMemoryCallback();
+		}
+
+		//不和宿主启动抢资源, 等主线程空闲了再开始
+		Looper.myQueue().addIdleHandler(new MessageQueue.IdleHandler() {
+			@Override
+			public boolean queueIdle() {
+				worker = new Thread(new Runnable() {
+					@Override
+					public void run() {
+						Process.setThreadPriority(Process.THREAD_PRIORITY_BACKGROUND);
+						try {
+							preload();
+						} catch (Throwable e) {
+							LogUtil.printException("PluginPreloader.preload", e);
+						}
+					}
+				}, "plugin-preloader");
+				worker.start();
+				return false;
+			}
+		});
+	}
+
+	/**
+	 * 插件被用到时由PluginLauncher.startPlugin调用, 每次宿主启动每个插件只记录第一次
+	 */
+	void onPluginDemanded(String packageName) {
+		if (sessionStartAt == 0 || Thread.currentThread() == worker || demanded.containsKey(packageName)) {
+			return;
+		}
+
+		long delay = System.currentTimeMillis() - sessionStartAt;
+
+		synchronized (this) {
+			if (demanded.putIfAbsent(packageName, Boolean.TRUE) != null) {
+				return;
+			}
+			LogUtil.v("记录插件启动", packageName, delay);
+			SharedPreferences prefs = getPreferences();
+			Record record = decode(prefs.getString(packageName, null));
+			if (record == null) {
+				record = new Record();
+				record.delay = delay;
+			} else {
+				record.delay = (record.delay * 3 + delay) / 4;
+			}
+			record.score += 1;
+			prefs.edit().putString(packageName, encode(record)).apply();
+		}
+	}
+
+	private void preload() {
+		ArrayList<Map.Entry<String, Record>> candidates = new ArrayList<Map.Entry<String, Record>>();
+
+		synchronized (this) {
+			SharedPreferences prefs = getPreferences();
+			SharedPreferences.Editor editor = prefs.edit();
+			for (Map.Entry<String, ?> entry : prefs.getAll().entrySet()) {
+				Record record = decode(String.valueOf(entry.getValue()));
+				if (record == null) {
+					editor.remove(entry.getKey());
+					continue;
+				}
+				//用到之前可能已经被onPluginDemanded加过分, 这里衰减的是加分前的历史分数
+				float score = record.score * DECAY;
+				if (demanded.containsKey(entry.getKey())) {
+					score += 1 - DECAY;
+				}
+				record.score = score;
+				if (score < MIN_SCORE / 4) {
+					editor.remove(entry.getKey());
+				} else {
+					editor.putString(entry.getKey(), encode(record));
+					if (score >= MIN_SCORE) {
+						candidates.add(new AbstractMap.SimpleEntry<String, Record>(entry.getKey(), record));
+					}
+				}
+			}
+			editor.apply();
+		}
+
+		Collections.sort(candidates, new Comparator<Map.Entry<String, Record>>() {
+			@Override
+			public int compare(Map.Entry<String, Record> lhs, Map.Entry<String, Record> rhs) {
+				return Float.compare(rhs.getValue().score, lhs.getValue().score);
+			}
+		});
+		if (candidates.size() > MAX_PRELOAD_COUNT) {
+			candidates = new ArrayList<Map.Entry<String, Record>>(candidates.subList(0, MAX_PRELOAD_COUNT));
+		}
+		//越早被用到的越先预热
+		Collections.sort(candidates, new Comparator<Map.Entry<String, Record>>() {
+			@Override
+			public int compare(Map.Entry<String, Record> lhs, Map.Entry<String, Record> rhs) {
+				long diff = lhs.getValue().delay - rhs.getValue().delay;
+				return diff > 0 ? 1 : (diff < 0 ? -1 : 0);
+			}
+		});
+
+		for (Map.Entry<String, Record> candidate : candidates) {
+			String packageName = candidate.getKey();
+			if (trimmed || !hasEnoughMemory()) {
+				LogUtil.w("内存紧张, 停止预热插件");
+				return;
+			}
+			if (demanded.containsKey(packageName) || PluginLauncher.instance().isRunning(packageName)) {
+				continue;
+			}
+			PluginDescriptor pluginDescriptor = PluginManagerHelper.getPluginDescriptorByPluginId(packageName);
+			if (pluginDescriptor == null) {
+				synchronized (this) {
+					getPreferences().edit().remove(packageName).apply();
+				}
+				continue;
+			}
+			LogUtil.i("预热插件", packageName, candidate.getValue().score, candidate.getValue().delay);
+			if (FairyGlobal.isPreloadPluginApplication()) {
+				PluginLauncher.instance().startPlugin(pluginDescriptor);
+			} else {
+				PluginLauncher.instance().warmPlugin(pluginDescriptor);
+			}
+		}
+	}
+
+	private static boolean hasEnoughMemory() {
+		Runtime runtime = Runtime.getRuntime();
+		long free = runtime.maxMemory() - (runtime.totalMemory() - runtime.freeMemory());
+		return free >= MIN_FREE_HEAP;
+	}
+
+	@TargetApi(Build.VERSION_CODES.ICE_CREAM_SANDWICH)
+	private void registerTrimMemoryCallback() {
+		FairyGlobal.getHostApplication().registerComponentCallbacks(new ComponentCallbacks2() {
+			@Override
+			public void onTrimMemory(int level) {
+				if (level >= TRIM_MEMORY_RUNNING_LOW) {
+					onMemoryPressure();
+				}
+			}
+
+			@Override
+			public void onConfigurationChanged(Configuration newConfig) {
+			}
+
+			@Override
+			public void onLowMemory() {
+				onMemoryPressure();
+			}
+		});
+	}
+
+	private void onMemoryPressure() {
+		trimmed = true;
+		PluginLauncher.instance().dropWarmedPlugins();
+	}
+
+	private static SharedPreferences getPreferences() {
+		return FairyGlobal.getHostApplication().getSharedPreferences(PREFERENCE_NAME, Context.MODE_PRIVATE);
+	}
+
+	private static String encode(Record record) {
+		return record.score + ":" + record.delay;
+	}
+
+	private static Record decode(String value) {
+		if (value == null) {
+			return null;
+		}
+		int index = value.indexOf(':');
+		if (index <= 0) {
+			return null;
+		}
+		try {
+			Record record = new Record();
+			record.score = Float.parseFloat(value.substring(0, index));
+			record.delay = Long.parseLong(value.substring(index + 1));
+			return record;
+		} catch (NumberFormatException e) {
+			return null;
+		}
+	}
+}
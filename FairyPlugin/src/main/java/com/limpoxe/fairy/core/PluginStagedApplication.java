@@ -0,0 +1,17 @@
+package com.limpoxe.fairy.core;
+
+/**
+ * 插件Application可以实现这个接口, 分阶段初始化
+ *
+ * 插件不是在主线程中初始化时(比如通过loadPluginClassByName加载Fragment、View, 或者获取LocalService),
+ * 框架在初始化插件的线程中创建Application并调用onPreCreate, 之后再在主线程中执行onCreate。
+ * 不依赖主线程的耗时初始化放在onPreCreate中, 可以减少主线程的等待。
+ * 插件在主线程中初始化时不会调用onPreCreate, 实现时需要在onCreate中兼容这种情况
+ */
+public interface PluginStagedApplication {
+
+    /**
+     * 在非主线程中执行, 此时attachBaseContext已经执行, onCreate和ContentProvider的安装还没有执行
+     */
+    void onPreCreate();
+}
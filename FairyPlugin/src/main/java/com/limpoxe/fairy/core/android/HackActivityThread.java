@@ -168,6 +168,17 @@ public class HackActivityThread {
         }
     }
 
+    /**
+     * 卸载插件时移除installPackageInfo放入的ClassLoader, 避免一直被ApplicationLoaders持有
+     */
+    public static void uninstallPackageInfo(PluginDescriptor pluginDescriptor) {
+        Object applicationLoaders = RefInvoker.invokeMethod(null, "android.app.ApplicationLoaders", "getDefault", (Class[]) null, (Object[]) null);
+        Map mLoaders = (Map)RefInvoker.getField(applicationLoaders, "android.app.ApplicationLoaders", "mLoaders");
+        if (mLoaders != null) {
+            mLoaders.remove(pluginDescriptor.getInstalledPath());
+        }
+    }
+
     public Object getBoundApplicationData() {
         Object mBoundApplication = RefInvoker.getField(instance, ClassName, Field_mBoundApplication);
         return mBoundApplication;
@@ -20,10 +20,28 @@ public class HackContentProviderHolder {
     }
 
     public static Object newInstance(ProviderInfo info) {
+        return RefInvoker.newInstance(className(), new Class[]{ProviderInfo.class}, new Object[]{info});
+    }
+
+    /**
+     * @param provider IContentProvider
+     */
+    public void setProvider(Object provider) {
+        RefInvoker.setField(instance, className(), "provider", provider);
+    }
+
+    /**
+     * API 16及以上才有这个字段
+     */
+    public void setNoReleaseNeeded(boolean noReleaseNeeded) {
+        RefInvoker.setField(instance, className(), "noReleaseNeeded", noReleaseNeeded);
+    }
+
+    private static String className() {
         if (Build.VERSION.SDK_INT <= Build.VERSION_CODES.N_MR1) {
-            return RefInvoker.newInstance(ClassName, new Class[]{ProviderInfo.class}, new Object[]{info});
+            return ClassName;
         } else {
-            return RefInvoker.newInstance(ClassName8, new Class[]{ProviderInfo.class}, new Object[]{info});
+            return ClassName8;
         }
     }
 
@@ -0,0 +1,31 @@
+package com.limpoxe.fairy.core.compat;
+
+import android.os.Build;
+import android.os.Bundle;
+import android.os.IBinder;
+
+import com.limpoxe.fairy.util.RefInvoker;
+
+/**
+ * Bundle.putBinder/getBinder在API 18才公开, 之前的版本中是隐藏的putIBinder/getIBinder
+ */
+public class CompatForBundle {
+
+    public static void putBinder(Bundle bundle, String key, IBinder binder) {
+        if (Build.VERSION.SDK_INT >= 18) {
+            bundle.putBinder(key, binder);
+        } else {
+            RefInvoker.invokeMethod(bundle, Bundle.class, "putIBinder",
+                    new Class[]{String.class, IBinder.class}, new Object[]{key, binder});
+        }
+    }
+
+    public static IBinder getBinder(Bundle bundle, String key) {
+        if (Build.VERSION.SDK_INT >= 18) {
+            return bundle.getBinder(key);
+        } else {
+            return (IBinder) RefInvoker.invokeMethod(bundle, Bundle.class, "getIBinder",
+                    new Class[]{String.class}, new Object[]{key});
+        }
+    }
+}
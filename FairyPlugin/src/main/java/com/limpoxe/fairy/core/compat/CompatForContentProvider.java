@@ -9,6 +9,7 @@ import android.os.Bundle;
 import com.limpoxe.fairy.core.FairyGlobal;
 import com.limpoxe.fairy.core.android.HackContentProviderClient;
 import com.limpoxe.fairy.core.android.HackIContentProvider;
+import com.limpoxe.fairy.manager.PluginIpcMetrics;
 import com.limpoxe.fairy.util.LogUtil;
 
 /**
@@ -17,6 +18,19 @@ import com.limpoxe.fairy.util.LogUtil;
 public class CompatForContentProvider {
 
     public static Bundle call(Uri uri, String method, String arg, Bundle extras) {
+        long start = System.nanoTime();
+        int argBytes = PluginIpcMetrics.sizeOf(extras);
+        Bundle result = null;
+        try {
+            result = callInternal(uri, method, arg, extras);
+            return result;
+        } finally {
+            PluginIpcMetrics.record(PluginIpcMetrics.SIDE_CLIENT, method, System.nanoTime() - start,
+                    argBytes, PluginIpcMetrics.sizeOf(result), Thread.currentThread().getName());
+        }
+    }
+
+    private static Bundle callInternal(Uri uri, String method, String arg, Bundle extras) {
 
         ContentResolver resolver = FairyGlobal.getHostApplication().getContentResolver();
 
@@ -39,12 +39,21 @@ public class LocalServiceManager {
         if (!isSupport) {
             return;
         }
-        HashMap<String, String> localServices = plugin.getFunctions();
+        registerService(plugin.getPackageName(), plugin.getFunctions());
+    }
+
+    /**
+     * @param localServices localservice名字到实现类
+     */
+    public static void registerService(String pluginId, HashMap<String, String> localServices) {
+        if (!isSupport) {
+            return;
+        }
         if (localServices != null) {
             Iterator<Map.Entry<String, String>> serv = localServices.entrySet().iterator();
             while (serv.hasNext()) {
                 Map.Entry<String, String> entry = serv.next();
-                LocalServiceManager.registerService(plugin.getPackageName(), entry.getKey(), entry.getValue());
+                LocalServiceManager.registerService(pluginId, entry.getKey(), entry.getValue());
             }
         }
     }
@@ -61,7 +70,10 @@ public class LocalServiceManager {
                 LoadedPlugin plugin = PluginLauncher.instance().startPlugin(pluginId);
                 if (plugin != null) {
                     try {
-                        return plugin.pluginClassLoader.loadClass(serviceClass.split("\\|")[0]).newInstance();
+                        Object instance = plugin.pluginClassLoader.loadClass(serviceClass.split("\\|")[0]).newInstance();
+                        //实例交出去以后插件不能再作为空闲插件卸载
+                        PluginLauncher.instance().onLocalServiceInstanceCreated(pluginId);
+                        return instance;
                     } catch (ClassNotFoundException e) {
                         LogUtil.printException("获取服务失败", e);
                     } catch (InstantiationException e) {
@@ -3,7 +3,9 @@ package com.limpoxe.fairy.core.proxy.systemservice;
 import android.app.ActivityManager;
 import android.app.Service;
 import android.content.ComponentName;
+import android.content.ContentResolver;
 import android.content.Intent;
+import android.content.pm.ApplicationInfo;
 import android.content.pm.ProviderInfo;
 import android.os.Build;
 import android.os.IBinder;
@@ -31,12 +33,11 @@ import com.limpoxe.fairy.manager.mapping.StubMappingProcessor;
 import com.limpoxe.fairy.util.LogUtil;
 import com.limpoxe.fairy.util.PendingIntentHelper;
 import com.limpoxe.fairy.util.ProcessUtil;
+import com.limpoxe.fairy.util.RefInvoker;
 import com.limpoxe.fairy.util.ResourceUtil;
 
 import java.lang.reflect.Method;
-import java.util.ArrayList;
 import java.util.HashMap;
-import java.util.Iterator;
 import java.util.List;
 import java.util.Map;
 
@@ -198,44 +199,117 @@ public class AndroidAppIActivityManager extends MethodProxy {
                     if (PluginManagerProvider.buildUri().getAuthority().equals(auth)) {
                         return invokeResult;
                     }
-                    ArrayList<PluginDescriptor> list = PluginManagerHelper.getPlugins();
-                    for(PluginDescriptor pluginDescriptor : list) {
-                        HashMap<String, PluginProviderInfo> map = pluginDescriptor.getProviderInfos();
-                        if (map != null) {
-                            Iterator<PluginProviderInfo> iterator = map.values().iterator();
-                            while(iterator.hasNext()) {
-                                PluginProviderInfo pluginProviderInfo = iterator.next();
-                                //在插件中找到了匹配的contentprovider
-                                if (auth != null && auth.equals(pluginProviderInfo.getAuthority())) {
-                                    //先检查插件是否已经初始化
-                                    boolean isrunning = PluginManagerHelper.isRunning(pluginDescriptor.getPackageName());
-                                    if (!isrunning) {
-                                        isrunning = PluginManagerHelper.wakeup(pluginDescriptor.getPackageName());
-                                    }
-                                    if (!isrunning) {
-                                        return invokeResult;
-                                    }
+                    //在插件中找到了匹配的contentprovider
+                    PluginDescriptor pluginDescriptor = auth == null ? null : PluginManagerHelper.getPluginDescriptorByAuthority(auth);
+                    if (pluginDescriptor != null) {
+                        //先检查插件是否已经初始化
+                        boolean isrunning = PluginManagerHelper.isRunning(pluginDescriptor.getPackageName());
+                        if (!isrunning) {
+                            isrunning = PluginManagerHelper.wakeup(pluginDescriptor.getPackageName());
+                        }
+                        if (!isrunning) {
+                            return invokeResult;
+                        }
 
-                                    ProviderInfo providerInfo = new ProviderInfo();
-                                    providerInfo.applicationInfo = FairyGlobal.getHostApplication().getApplicationInfo();
-                                    providerInfo.authority = auth;
-                                    providerInfo.name = ProviderClientProxy.class.getName();
-                                    providerInfo.packageName = FairyGlobal.getHostApplication().getPackageName();
-                                    Object holder = HackContentProviderHolder.newInstance(providerInfo);
+                        ProviderInfo providerInfo = new ProviderInfo();
+                        providerInfo.applicationInfo = FairyGlobal.getHostApplication().getApplicationInfo();
+                        providerInfo.authority = auth;
+                        providerInfo.name = ProviderClientProxy.class.getName();
+                        providerInfo.packageName = FairyGlobal.getHostApplication().getPackageName();
+                        Object holder = HackContentProviderHolder.newInstance(providerInfo);
 
-                                    if (holder != null) {
-                                        return holder;
-                                    } else {
-                                        return invokeResult;
-                                    }
-                                }
-                            }
+                        if (holder != null) {
+                            return holder;
+                        } else {
+                            return invokeResult;
                         }
                     }
                 }
+            } else if (invokeResult == null && FairyGlobal.isLazyContentProviderEnable() && !sAcquiring.get()) {
+                //插件进程, 延迟安装的插件ContentProvider还没有安装
+                Object holder = acquireLazyProvider(args);
+                if (holder != null) {
+                    return holder;
+                }
             }
             return invokeResult;
         }
+
+        //安装后再次获取provider时不应该再回到这里, 防止重入
+        private static final ThreadLocal<Boolean> sAcquiring = new ThreadLocal<Boolean>() {
+            @Override
+            protected Boolean initialValue() {
+                return false;
+            }
+        };
+
+        /**
+         * 安装auth所在插件的provider, 返回指向本进程中provider的ContentProviderHolder
+         */
+        private static Object acquireLazyProvider(Object[] args) {
+            String auth = (String) args[1];
+            if (auth == null) {
+                return null;
+            }
+            PluginDescriptor pluginDescriptor = PluginManagerHelper.getPluginDescriptorByAuthority(auth);
+            if (pluginDescriptor == null) {
+                return null;
+            }
+            PluginProviderInfo pluginProviderInfo = findProvider(pluginDescriptor, auth);
+            if (pluginProviderInfo == null) {
+                return null;
+            }
+            if (!PluginLauncher.instance().installContentProviders(pluginDescriptor)) {
+                return null;
+            }
+
+            ContentResolver resolver = FairyGlobal.getHostApplication().getContentResolver();
+            Object provider;
+            sAcquiring.set(true);
+            try {
+                provider = RefInvoker.invokeMethod(resolver, ContentResolver.class, "acquireProvider",
+                        new Class[]{String.class}, new Object[]{auth});
+            } finally {
+                sAcquiring.set(false);
+            }
+            if (provider == null) {
+                return null;
+            }
+            //本进程中的provider不需要引用计数, holder上会标记noReleaseNeeded, 这里的引用直接释放
+            try {
+                RefInvoker.invokeMethod(resolver, ContentResolver.class, "releaseProvider",
+                        new Class[]{Class.forName("android.content.IContentProvider")}, new Object[]{provider});
+            } catch (ClassNotFoundException e) {
+                LogUtil.printException("AndroidAppIActivityManager.acquireLazyProvider", e);
+            }
+
+            ProviderInfo providerInfo = new ProviderInfo();
+            providerInfo.applicationInfo = new ApplicationInfo(FairyGlobal.getHostApplication().getApplicationInfo());
+            providerInfo.applicationInfo.packageName = pluginDescriptor.getPackageName();
+            providerInfo.authority = auth;
+            providerInfo.name = pluginProviderInfo.getName();
+            providerInfo.exported = pluginProviderInfo.isExported();
+            providerInfo.packageName = FairyGlobal.getHostApplication().getPackageName();
+            Object holder = HackContentProviderHolder.newInstance(providerInfo);
+            if (holder != null) {
+                HackContentProviderHolder hackHolder = new HackContentProviderHolder(holder);
+                hackHolder.setProvider(provider);
+                hackHolder.setNoReleaseNeeded(true);
+            }
+            return holder;
+        }
+
+        private static PluginProviderInfo findProvider(PluginDescriptor pluginDescriptor, String auth) {
+            HashMap<String, PluginProviderInfo> map = pluginDescriptor.getProviderInfos();
+            if (map != null) {
+                for (PluginProviderInfo pluginProviderInfo : map.values()) {
+                    if (auth.equals(pluginProviderInfo.getAuthority())) {
+                        return pluginProviderInfo;
+                    }
+                }
+            }
+            return null;
+        }
     }
 
     public static class getTasks extends MethodDelegate {
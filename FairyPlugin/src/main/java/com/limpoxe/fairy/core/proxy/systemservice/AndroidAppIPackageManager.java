@@ -15,6 +15,7 @@ import android.text.TextUtils;
 import com.limpoxe.fairy.content.LoadedPlugin;
 import com.limpoxe.fairy.content.PluginActivityInfo;
 import com.limpoxe.fairy.content.PluginDescriptor;
+import com.limpoxe.fairy.content.PluginDescriptorCodec;
 import com.limpoxe.fairy.content.PluginProviderInfo;
 import com.limpoxe.fairy.core.FairyGlobal;
 import com.limpoxe.fairy.core.PluginIntentResolver;
@@ -96,7 +97,8 @@ public class AndroidAppIPackageManager extends MethodProxy {
             LogUtil.v("afterInvoke", method.getName());
             //Mi A1 Android O 的invokeResult可能是null
             if (invokeResult != null && Build.VERSION.SDK_INT >= 18) {//android4.3
-                ArrayList<PluginDescriptor> plugins = PluginManagerHelper.getPlugins();
+                //getPackageInfo只用到安装路径
+                ArrayList<PluginDescriptor> plugins = PluginManagerHelper.getPlugins(PluginDescriptorCodec.PROJECTION_SUMMARY);
                 if (plugins != null) {
                     List<PackageInfo> resultList = (List<PackageInfo>) new HackParceledListSlice(invokeResult).getList();
                     if (resultList != null) {
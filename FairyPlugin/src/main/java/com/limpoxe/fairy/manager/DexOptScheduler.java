@@ -0,0 +1,266 @@
+package com.limpoxe.fairy.manager;
+
+import android.os.Process;
+
+import com.limpoxe.fairy.content.PluginDescriptor;
+import com.limpoxe.fairy.core.PluginCreator;
+import com.limpoxe.fairy.util.LogUtil;
+import com.limpoxe.fairy.util.ProcessUtil;
+
+import java.util.HashMap;
+import java.util.PriorityQueue;
+
+/**
+ * 插件dexopt调度
+ *
+ * 安装插件时不再在binder线程中同步dexopt, 而是放到这里排队在后台执行,
+ * 即将被打开的插件会被提到队首, 并以前台优先级执行。
+ * 状态通过PluginStatusChangeAdapter.onOptimize通知
+ */
+public class DexOptScheduler {
+
+	public static final int PRIORITY_BACKGROUND = 0;
+	public static final int PRIORITY_INSTALL = 1;
+	//即将被打开的插件
+	public static final int PRIORITY_FOREGROUND = 10;
+
+	private static DexOptScheduler sInstance;
+
+	private final Object mLock = new Object();
+	private final PriorityQueue<Job> mQueue = new PriorityQueue<Job>();
+	//排队中或者正在执行的任务, 每个插件最多一个
+	private final HashMap<String, Job> mJobs = new HashMap<String, Job>();
+	private long mSequence;
+	private Thread mWorker;
+	private int mWorkerTid;
+
+	private PluginStatusChangeAdapter mListener;
+
+	private DexOptScheduler() {
+		if (!ProcessUtil.isPluginProcess()) {
+			throw new IllegalAccessError("本类仅在插件进程使用");
+		}
+	}
+
+	public static DexOptScheduler instance() {
+		if (sInstance == null) {
+			synchronized (DexOptScheduler.class) {
+				if (sInstance == null) {
+					sInstance = new DexOptScheduler();
+				}
+			}
+		}
+		return sInstance;
+	}
+
+	void setStatusChangeListener(PluginStatusChangeAdapter listener) {
+		mListener = listener;
+	}
+
+	/**
+	 * 加入队列, 同一个插件已经在排队时替换掉旧的任务
+	 */
+	void schedule(PluginDescriptor pluginDescriptor, int priority) {
+		Job job = new Job(pluginDescriptor.getPackageName(), pluginDescriptor.getVersion(),
+				pluginDescriptor.getInstalledPath(), pluginDescriptor.isStandalone(), priority);
+		int pending;
+		synchronized (mLock) {
+			Job old = mJobs.get(job.packageName);
+			if (old != null && !old.running) {
+				mQueue.remove(old);
+				job.priority = Math.max(job.priority, old.priority);
+				//waitFor会接着等新的任务
+				dropLocked(old);
+			}
+			job.sequence = mSequence++;
+			mJobs.put(job.packageName, job);
+			mQueue.add(job);
+			pending = mQueue.size();
+			if (mWorker == null) {
+				mWorker = new Thread(new Runnable() {
+					@Override
+					public void run() {
+						runJobs();
+					}
+				}, "plugin-dexopt");
+				mWorker.start();
+			}
+		}
+		LogUtil.d("dexopt排队", job.packageName, "priority", priority, "pending", pending);
+		notifyState(job, PluginStatusChangeListener.OPTIMIZE_QUEUED, pending);
+	}
+
+	/**
+	 * 插件即将被打开, 提到队首, 正在执行的话提高线程优先级
+	 */
+	public void boost(String packageName) {
+		synchronized (mLock) {
+			Job job = mJobs.get(packageName);
+			if (job == null || job.priority >= PRIORITY_FOREGROUND) {
+				return;
+			}
+			if (job.running) {
+				job.priority = PRIORITY_FOREGROUND;
+				Process.setThreadPriority(mWorkerTid, Process.THREAD_PRIORITY_DEFAULT);
+			} else {
+				mQueue.remove(job);
+				job.priority = PRIORITY_FOREGROUND;
+				mQueue.add(job);
+			}
+		}
+		LogUtil.d("dexopt提前", packageName);
+	}
+
+	/**
+	 * 打开插件前调用, 如果插件还没有完成dexopt, 提前并等待完成,
+	 * 避免和创建插件classloader时的dexopt重复执行
+	 */
+	public void waitFor(String packageName) {
+		boost(packageName);
+		synchronized (mLock) {
+			if (mJobs.get(packageName) == null) {
+				return;
+			}
+			long t1 = System.currentTimeMillis();
+			//每次醒来重新取, 等待期间任务可能被替换或者取消
+			Job job;
+			while ((job = mJobs.get(packageName)) != null && !job.done) {
+				try {
+					mLock.wait();
+				} catch (InterruptedException e) {
+					LogUtil.printException("DexOptScheduler.waitFor", e);
+					return;
+				}
+			}
+			LogUtil.i("等待dexopt耗时", packageName, System.currentTimeMillis() - t1);
+		}
+	}
+
+	/**
+	 * 插件被卸载时调用, 移除排队中的任务, 如果正在执行则等待执行完毕, 避免文件被删掉时还在dexopt
+	 */
+	void cancel(String packageName) {
+		Job canceled = null;
+		int pending = 0;
+		synchronized (mLock) {
+			Job job = mJobs.get(packageName);
+			if (job == null) {
+				return;
+			}
+			if (!job.running) {
+				mQueue.remove(job);
+				mJobs.remove(packageName);
+				dropLocked(job);
+				canceled = job;
+				pending = mQueue.size();
+			}
+			while (canceled == null && !job.done) {
+				try {
+					mLock.wait();
+				} catch (InterruptedException e) {
+					LogUtil.printException("DexOptScheduler.cancel", e);
+					return;
+				}
+			}
+		}
+		if (canceled != null) {
+			notifyState(canceled, PluginStatusChangeListener.OPTIMIZE_CANCELED, pending);
+		}
+	}
+
+	/**
+	 * 还没有开始执行的任务被移出队列时调用, 唤醒等待它的线程
+	 */
+	private void dropLocked(Job job) {
+		job.done = true;
+		mLock.notifyAll();
+	}
+
+	private void runJobs() {
+		synchronized (mLock) {
+			mWorkerTid = Process.myTid();
+		}
+		while (true) {
+			Job job;
+			int pending;
+			synchronized (mLock) {
+				job = mQueue.poll();
+				if (job == null) {
+					mWorker = null;
+					return;
+				}
+				job.running = true;
+				pending = mQueue.size();
+				//后台任务不和前台抢CPU
+				Process.setThreadPriority(job.priority >= PRIORITY_FOREGROUND ?
+						Process.THREAD_PRIORITY_DEFAULT : Process.THREAD_PRIORITY_BACKGROUND);
+			}
+
+			notifyState(job, PluginStatusChangeListener.OPTIMIZE_STARTED, pending);
+			boolean isSuccess = optimize(job);
+
+			synchronized (mLock) {
+				job.done = true;
+				if (mJobs.get(job.packageName) == job) {
+					mJobs.remove(job.packageName);
+				}
+				pending = mQueue.size();
+				mLock.notifyAll();
+			}
+			notifyState(job, isSuccess ? PluginStatusChangeListener.OPTIMIZE_FINISHED : PluginStatusChangeListener.OPTIMIZE_FAILED, pending);
+		}
+	}
+
+	private static boolean optimize(Job job) {
+		//通过创建classloader来触发dexopt，但不加载
+		LogUtil.d("正在进行DEXOPT...", job.installedPath);
+		long t1 = System.currentTimeMillis();
+		try {
+			//ActivityThread.getPackageManager().performDexOptIfNeeded()
+			ClassLoader cl = PluginCreator.createPluginClassLoader(job.installedPath, job.isStandalone, null, null);
+			cl.loadClass(Object.class.getName());
+			LogUtil.d("DEXOPT完毕", job.packageName, "耗时", System.currentTimeMillis() - t1);
+			return true;
+		} catch (Throwable e) {
+			//插件可能在dexopt过程中被卸载
+			LogUtil.printException("DexOptScheduler.optimize", e);
+		}
+		return false;
+	}
+
+	private void notifyState(Job job, int state, int pending) {
+		PluginStatusChangeAdapter listener = mListener;
+		if (listener != null) {
+			listener.onOptimize(job.packageName, job.version, state, pending);
+		}
+	}
+
+	private static class Job implements Comparable<Job> {
+		final String packageName;
+		final String version;
+		final String installedPath;
+		final boolean isStandalone;
+		int priority;
+		long sequence;
+		boolean running;
+		//执行完毕, 或者没有执行就被移出队列
+		boolean done;
+
+		Job(String packageName, String version, String installedPath, boolean isStandalone, int priority) {
+			this.packageName = packageName;
+			this.version = version;
+			this.installedPath = installedPath;
+			this.isStandalone = isStandalone;
+			this.priority = priority;
+		}
+
+		@Override
+		public int compareTo(Job another) {
+			//优先级高的在前, 同优先级先来先执行
+			if (priority != another.priority) {
+				return priority > another.priority ? -1 : 1;
+			}
+			return sequence < another.sequence ? -1 : (sequence == another.sequence ? 0 : 1);
+		}
+	}
+}
@@ -0,0 +1,78 @@
+package com.limpoxe.fairy.manager;
+
+import java.util.concurrent.Future;
+
+/**
+ * 一次异步安装或者卸载, 在插件进程中使用
+ *
+ * 每进入一个阶段通过PluginStatusChangeAdapter.onProgress通知一次。
+ * 进入STAGE_COMMIT之前都可以取消, 取消后在下一个阶段开始前停止;
+ * 已经开始提交的不能再取消
+ */
+class InstallSession {
+
+	final int id;
+	//PluginInstallHandle.TYPE_*
+	final int type;
+	//安装时是apk或补丁路径, 卸载时是插件包名
+	final String target;
+
+	final PluginStatusChangeAdapter listener;
+
+	private int mStage = PluginStatusChangeListener.STAGE_QUEUED;
+	private boolean mCanceled;
+
+	Future<?> future;
+
+	InstallSession(int id, int type, String target, PluginStatusChangeAdapter listener) {
+		this.id = id;
+		this.type = type;
+		this.target = target;
+		this.listener = listener;
+	}
+
+	synchronized int getStage() {
+		return mStage;
+	}
+
+	synchronized boolean isCanceled() {
+		return mCanceled;
+	}
+
+	/**
+	 * 进入下一个阶段
+	 * @return 已经取消时返回false, 调用方应停止并清理
+	 */
+	boolean enter(int stage) {
+		synchronized (this) {
+			if (mCanceled) {
+				return false;
+			}
+			mStage = stage;
+		}
+		notifyProgress(stage, PluginManagerHelper.SUCCESS);
+		return true;
+	}
+
+	/**
+	 * @return 已经开始提交或者已经结束时返回false
+	 */
+	synchronized boolean cancel() {
+		if (mStage >= PluginStatusChangeListener.STAGE_COMMIT) {
+			return false;
+		}
+		mCanceled = true;
+		return true;
+	}
+
+	void finish(int code) {
+		synchronized (this) {
+			mStage = PluginStatusChangeListener.STAGE_FINISHED;
+		}
+		notifyProgress(PluginStatusChangeListener.STAGE_FINISHED, code);
+	}
+
+	private void notifyProgress(int stage, int code) {
+		listener.onProgress(id, target, stage, code);
+	}
+}
@@ -0,0 +1,62 @@
+package com.limpoxe.fairy.manager;
+
+import com.limpoxe.fairy.content.PluginDescriptorCodec;
+
+import java.io.DataInput;
+import java.io.DataOutput;
+import java.io.File;
+import java.io.IOException;
+
+/**
+ * 一次安装事务的journal记录
+ *
+ * 安装时先写入这条记录, 再移动文件, 最后写入插件记录文件作为提交点。
+ * 插件记录中的installationTime和这里相同, 说明事务已经提交,
+ * 否则说明安装中途进程被杀掉, 启动时按这条记录回滚
+ */
+class InstallTransaction {
+
+	final String packageName;
+	final long installationTime;
+	//临时目录, 提交前rename到targetDir
+	final File stagingDir;
+	//新版本的安装目录
+	final File targetDir;
+	//新旧版本号相同时, 旧版目录先rename到这里, 提交后删除
+	final File backupDir;
+	//旧版本的安装目录, 提交后删除
+	final File oldDir;
+
+	InstallTransaction(String packageName, long installationTime, File stagingDir, File targetDir, File backupDir, File oldDir) {
+		this.packageName = packageName;
+		this.installationTime = installationTime;
+		this.stagingDir = stagingDir;
+		this.targetDir = targetDir;
+		this.backupDir = backupDir;
+		this.oldDir = oldDir;
+	}
+
+	void writeTo(DataOutput out) throws IOException {
+		PluginDescriptorCodec.writeString(out, packageName);
+		out.writeLong(installationTime);
+		writeFile(out, stagingDir);
+		writeFile(out, targetDir);
+		writeFile(out, backupDir);
+		writeFile(out, oldDir);
+	}
+
+	static InstallTransaction readFrom(DataInput in) throws IOException {
+		String packageName = PluginDescriptorCodec.readString(in);
+		long installationTime = in.readLong();
+		return new InstallTransaction(packageName, installationTime, readFile(in), readFile(in), readFile(in), readFile(in));
+	}
+
+	private static void writeFile(DataOutput out, File file) throws IOException {
+		PluginDescriptorCodec.writeString(out, file == null ? null : file.getAbsolutePath());
+	}
+
+	private static File readFile(DataInput in) throws IOException {
+		String path = PluginDescriptorCodec.readString(in);
+		return path == null ? null : new File(path);
+	}
+}
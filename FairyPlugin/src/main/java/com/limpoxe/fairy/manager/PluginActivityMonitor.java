@@ -8,6 +8,7 @@ import android.content.IntentFilter;
 
 import com.limpoxe.fairy.core.PluginClassLoader;
 import com.limpoxe.fairy.core.PluginContextTheme;
+import com.limpoxe.fairy.core.PluginIdleReclaimer;
 
 import java.util.HashMap;
 
@@ -17,6 +18,17 @@ public class PluginActivityMonitor {
 
 	private HashMap<Activity, BroadcastReceiver> receivers = new HashMap<Activity, BroadcastReceiver>();
 
+	//每个插件还存活的Activity数, 只在主线程访问
+	private static HashMap<String, Integer> liveActivities = new HashMap<String, Integer>();
+
+	/**
+	 * 在主线程调用
+	 */
+	public static int getLiveActivityCount(String pluginId) {
+		Integer count = liveActivities.get(pluginId);
+		return count == null ? 0 : count;
+	}
+
 	public void onActivityCreate(final Activity activity) {
 		if (!activity.isChild()) {
 			if (activity.getClass().getClassLoader() instanceof PluginClassLoader) {
@@ -28,6 +40,7 @@ public class PluginActivityMonitor {
 					}
 				};
 				receivers.put(activity, br);
+				liveActivities.put(pluginId, getLiveActivityCount(pluginId) + 1);
 
 				activity.registerReceiver(br, new IntentFilter(pluginId + ACTION_UN_INSTALL_PLUGIN));
 			}
@@ -51,6 +64,16 @@ public class PluginActivityMonitor {
 			if (activity.getClass().getClassLoader() instanceof PluginClassLoader) {
 				BroadcastReceiver br = receivers.remove(activity);
 				activity.unregisterReceiver(br);
+
+				String pluginId = ((PluginContextTheme)activity.getApplication().getBaseContext()).getPluginDescriptor().getPackageName();
+				int count = getLiveActivityCount(pluginId) - 1;
+				if (count > 0) {
+					liveActivities.put(pluginId, count);
+				} else {
+					liveActivities.remove(pluginId);
+					//插件的最后一个Activity退出了, 可能可以卸载
+					PluginIdleReclaimer.schedule();
+				}
 			}
 		}
 	}
@@ -7,7 +7,7 @@ import com.limpoxe.fairy.core.FairyGlobal;
 /**
  * Created by cailiming on 2015/9/13.
  */
-public class PluginCallbackImpl implements PluginStatusChangeListener {
+public class PluginCallbackImpl extends PluginStatusChangeAdapter {
 
     @Override
     public void onInstall(int result, String packageName, String version,  String src) {
@@ -18,6 +18,7 @@ public class PluginCallbackImpl implements PluginStatusChangeListener {
         intent.putExtra(EXTRA_VERSION, version);
         intent.putExtra(EXTRA_RESULT_CODE, result);
         intent.putExtra(EXTRA_SRC, src);
+        intent.putExtra(EXTRA_GENERATION, PluginManagerService.getGeneration());
         FairyGlobal.getHostApplication().sendBroadcast(intent);
     }
 
@@ -28,6 +29,31 @@ public class PluginCallbackImpl implements PluginStatusChangeListener {
         intent.putExtra(EXTRA_TYPE, TYPE_REMOVE);
         intent.putExtra(EXTRA_ID, packageName);
         intent.putExtra(EXTRA_RESULT_CODE, code);
+        intent.putExtra(EXTRA_GENERATION, PluginManagerService.getGeneration());
+        FairyGlobal.getHostApplication().sendBroadcast(intent);
+    }
+
+    @Override
+    public void onOptimize(String packageName, String version, int state, int pending) {
+        Intent intent = new Intent(ACTION_PLUGIN_CHANGED);
+        intent.setPackage(FairyGlobal.getHostApplication().getPackageName());
+        intent.putExtra(EXTRA_TYPE, TYPE_OPTIMIZE);
+        intent.putExtra(EXTRA_ID, packageName);
+        intent.putExtra(EXTRA_VERSION, version);
+        intent.putExtra(EXTRA_OPTIMIZE_STATE, state);
+        intent.putExtra(EXTRA_OPTIMIZE_PENDING, pending);
+        FairyGlobal.getHostApplication().sendBroadcast(intent);
+    }
+
+    @Override
+    public void onProgress(int sessionId, String target, int stage, int code) {
+        Intent intent = new Intent(ACTION_PLUGIN_CHANGED);
+        intent.setPackage(FairyGlobal.getHostApplication().getPackageName());
+        intent.putExtra(EXTRA_TYPE, TYPE_PROGRESS);
+        intent.putExtra(EXTRA_SESSION_ID, sessionId);
+        intent.putExtra(EXTRA_SRC, target);
+        intent.putExtra(EXTRA_STAGE, stage);
+        intent.putExtra(EXTRA_RESULT_CODE, code);
         FairyGlobal.getHostApplication().sendBroadcast(intent);
     }
 
@@ -0,0 +1,66 @@
+package com.limpoxe.fairy.manager;
+
+import android.os.RemoteCallbackList;
+import android.os.RemoteException;
+
+import com.limpoxe.fairy.util.LogUtil;
+import com.limpoxe.fairy.util.ProcessUtil;
+
+/**
+ * 已安装列表变化的推送, 在插件进程中使用
+ *
+ * 客户端通过IPluginManager.registerChangeListener订阅, 客户端进程死亡后RemoteCallbackList自动移除。
+ * 回调是oneway的, 在安装、卸载的提交点直接通知, 不会被客户端阻塞
+ */
+class PluginChangeFeed {
+
+	private static PluginChangeFeed sInstance;
+
+	private final RemoteCallbackList<IPluginChangeListener> mListeners = new RemoteCallbackList<IPluginChangeListener>();
+
+	private PluginChangeFeed() {
+		if (!ProcessUtil.isPluginProcess()) {
+			throw new IllegalAccessError("本类仅在插件进程使用");
+		}
+	}
+
+	static PluginChangeFeed instance() {
+		if (sInstance == null) {
+			synchronized (PluginChangeFeed.class) {
+				if (sInstance == null) {
+					sInstance = new PluginChangeFeed();
+				}
+			}
+		}
+		return sInstance;
+	}
+
+	void register(IPluginChangeListener listener) {
+		mListeners.register(listener);
+	}
+
+	void unregister(IPluginChangeListener listener) {
+		mListeners.unregister(listener);
+	}
+
+	/**
+	 * @param event PluginRegistryListener.EVENT_*
+	 */
+	void publish(int event, String packageName, String version, long generation) {
+		//beginBroadcast不能嵌套
+		synchronized (mListeners) {
+			int count = mListeners.beginBroadcast();
+			try {
+				for (int i = 0; i < count; i++) {
+					try {
+						mListeners.getBroadcastItem(i).onPluginChanged(event, packageName, version, generation);
+					} catch (RemoteException e) {
+						LogUtil.printException("PluginChangeFeed.publish", e);
+					}
+				}
+			} finally {
+				mListeners.finishBroadcast();
+			}
+		}
+	}
+}
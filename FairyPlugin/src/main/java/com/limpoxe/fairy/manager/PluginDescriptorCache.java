@@ -0,0 +1,137 @@
+package com.limpoxe.fairy.manager;
+
+import android.content.BroadcastReceiver;
+import android.content.Context;
+import android.content.Intent;
+import android.content.IntentFilter;
+
+import com.limpoxe.fairy.content.PluginDescriptor;
+import com.limpoxe.fairy.core.FairyGlobal;
+import com.limpoxe.fairy.util.LogUtil;
+import com.limpoxe.fairy.util.ProcessUtil;
+
+import java.util.HashMap;
+
+/**
+ * PluginManagerProviderClient的进程内缓存
+ *
+ * 插件进程每次安装、卸载都会递增已安装列表的generation, 查询结果和安装卸载的广播中都带有generation,
+ * generation变大时清空缓存, 比缓存的generation旧的查询结果直接丢弃。查询不到的结果也会缓存, 宿主中大量的类名查询都是查不到的。
+ */
+class PluginDescriptorCache {
+
+	static final int BY_ID = 0;
+	static final int BY_CLASS = 1;
+	static final int BY_FRAGMENT = 2;
+	static final int BY_AUTHORITY = 3;
+
+	//缓存中没有这个key, 需要跨进程查询
+	static final Object MISS = new Object();
+
+	private final HashMap<String, PluginDescriptor> byId = new HashMap<String, PluginDescriptor>();
+	private final HashMap<String, PluginDescriptor> byClass = new HashMap<String, PluginDescriptor>();
+	private final HashMap<String, PluginDescriptor> byFragment = new HashMap<String, PluginDescriptor>();
+	private final HashMap<String, PluginDescriptor> byAuthority = new HashMap<String, PluginDescriptor>();
+
+	private long generation = -1;
+	//每次清空缓存时递增, 包括generation变化和clear, 用于区分清空前后发起的查询
+	private long epoch;
+	private boolean listening;
+
+	/**
+	 * @return 缓存的结果, 可能为null表示插件不存在; 没有缓存时返回MISS
+	 */
+	synchronized Object get(int type, String key) {
+		if (ProcessUtil.isPluginProcess()) {
+			//插件进程可以直接读到最新的generation, 不需要等广播
+			invalidate(PluginManagerService.getGeneration());
+		} else {
+			listen();
+		}
+		HashMap<String, PluginDescriptor> map = map(type);
+		if (!map.containsKey(key)) {
+			return MISS;
+		}
+		return map.get(key);
+	}
+
+	/**
+	 * generation比缓存的旧时丢弃, 说明这个结果是在已知的变化之前查询的, 已经过期;
+	 * 查询发起之后缓存被清空过, 并且结果没有带来更新的generation时也丢弃
+	 *
+	 * @param epoch 发起查询时的getEpoch
+	 */
+	synchronized void put(int type, String key, PluginDescriptor pluginDescriptor, long generation, long epoch) {
+		if (generation < this.generation || (generation == this.generation && epoch != this.epoch)) {
+			LogUtil.v("丢弃过期的查询结果", key, generation, this.generation);
+			return;
+		}
+		invalidate(generation);
+		map(type).put(key, pluginDescriptor);
+	}
+
+	/**
+	 * generation只增不减, 变大时清空缓存
+	 */
+	synchronized void invalidate(long generation) {
+		if (generation > this.generation) {
+			LogUtil.v("插件列表已变化, 清空描述缓存", this.generation, generation);
+			clearEntries();
+			this.generation = generation;
+		}
+	}
+
+	/**
+	 * 清空缓存的结果, generation保持不变, 之后比当前generation旧的结果仍然会被丢弃
+	 */
+	synchronized void clear() {
+		clearEntries();
+	}
+
+	synchronized long getEpoch() {
+		return epoch;
+	}
+
+	private void clearEntries() {
+		epoch++;
+		byId.clear();
+		byClass.clear();
+		byFragment.clear();
+		byAuthority.clear();
+	}
+
+	private HashMap<String, PluginDescriptor> map(int type) {
+		if (type == BY_CLASS) {
+			return byClass;
+		} else if (type == BY_FRAGMENT) {
+			return byFragment;
+		} else if (type == BY_AUTHORITY) {
+			return byAuthority;
+		}
+		return byId;
+	}
+
+	private void listen() {
+		if (listening) {
+			return;
+		}
+		listening = true;
+		try {
+			FairyGlobal.getHostApplication().registerReceiver(new BroadcastReceiver() {
+				@Override
+				public void onReceive(Context context, Intent intent) {
+					String type = intent.getStringExtra(PluginStatusChangeListener.EXTRA_TYPE);
+					if (PluginStatusChangeListener.TYPE_INSTALL.equals(type) || PluginStatusChangeListener.TYPE_REMOVE.equals(type)) {
+						if (intent.hasExtra(PluginStatusChangeListener.EXTRA_GENERATION)) {
+							invalidate(intent.getLongExtra(PluginStatusChangeListener.EXTRA_GENERATION, -1));
+						} else {
+							clear();
+						}
+					}
+				}
+			}, new IntentFilter(PluginStatusChangeListener.ACTION_PLUGIN_CHANGED));
+		} catch (Exception e) {
+			LogUtil.printException("PluginDescriptorCache.listen", e);
+		}
+	}
+}
@@ -0,0 +1,101 @@
+package com.limpoxe.fairy.manager;
+
+import com.limpoxe.fairy.content.PluginDescriptor;
+
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.NoSuchElementException;
+
+/**
+ * 分页遍历已安装插件
+ *
+ * 每次跨进程调用只取一页, 单页的数据量有上限, 插件再多也不会超出binder的传输上限;
+ * 调用方找到需要的插件后可以提前结束, 剩下的页不会再传输。
+ * 分页按包名排序, 下一页从上一页最后一个包名之后开始, 翻页过程中有安装卸载也不会重复或遗漏未变化的插件。
+ */
+public class PluginDescriptorPager implements Iterator<PluginDescriptor> {
+
+	//只要独立插件
+	public static final int FILTER_STANDALONE = 1;
+	//只要声明了receiver的插件
+	public static final int FILTER_WITH_RECEIVERS = 1 << 1;
+	//只要指定了宿主版本的非独立插件
+	public static final int FILTER_REQUIRES_HOST_VERSION = 1 << 2;
+
+	static final int DEFAULT_PAGE_SIZE = 16;
+
+	private final int filter;
+	private final int projection;
+
+	private ArrayList<PluginDescriptor> page;
+	private int index;
+	//下一页的起点, null表示没有下一页
+	private String nextAfter = "";
+
+	PluginDescriptorPager(int filter, int projection) {
+		this.filter = filter;
+		this.projection = projection;
+	}
+
+	/**
+	 * 非插件进程有快照时直接在快照中过滤, 不分页
+	 */
+	PluginDescriptorPager(ArrayList<PluginDescriptor> all, int filter) {
+		this.filter = filter;
+		this.projection = 0;
+		this.page = new ArrayList<PluginDescriptor>(all.size());
+		for (PluginDescriptor pluginDescriptor : all) {
+			if (accept(pluginDescriptor, filter)) {
+				page.add(pluginDescriptor);
+			}
+		}
+		this.nextAfter = null;
+	}
+
+	@Override
+	public boolean hasNext() {
+		while (page == null || index >= page.size()) {
+			if (nextAfter == null) {
+				return false;
+			}
+			PluginManagerProviderClient.Page next = PluginManagerProviderClient.queryPage(nextAfter, DEFAULT_PAGE_SIZE, filter, projection);
+			if (next == null) {
+				//调用失败, 结束遍历
+				nextAfter = null;
+				return false;
+			}
+			page = next.descriptors;
+			index = 0;
+			nextAfter = next.nextAfter;
+		}
+		return true;
+	}
+
+	@Override
+	public PluginDescriptor next() {
+		if (!hasNext()) {
+			throw new NoSuchElementException();
+		}
+		return page.get(index++);
+	}
+
+	@Override
+	public void remove() {
+		throw new UnsupportedOperationException();
+	}
+
+	static boolean accept(PluginDescriptor pluginDescriptor, int filter) {
+		if ((filter & FILTER_STANDALONE) != 0 && !pluginDescriptor.isStandalone()) {
+			return false;
+		}
+		if ((filter & FILTER_WITH_RECEIVERS) != 0
+				&& (pluginDescriptor.getReceivers() == null || pluginDescriptor.getReceivers().isEmpty())) {
+			return false;
+		}
+		if ((filter & FILTER_REQUIRES_HOST_VERSION) != 0
+				&& (pluginDescriptor.isStandalone() || pluginDescriptor.getRequiredHostVersionName() == null)) {
+			return false;
+		}
+		return true;
+	}
+}
@@ -0,0 +1,35 @@
+package com.limpoxe.fairy.manager;
+
+import java.util.HashMap;
+
+/**
+ * 已安装插件的索引信息
+ *
+ * 插件进程启动时只加载这部分, 完整的PluginDescriptor在第一次被访问时才从记录文件中展开。
+ * 类名、fragment id、authority不放在这里, 见PluginNameIndex
+ */
+class PluginHeader {
+
+	final String packageName;
+	final String version;
+	final boolean enabled;
+	final String installedPath;
+	/**
+	 * 每次写入记录时生成, 名字索引文件中的条目和它一致时才是最新的
+	 */
+	final long stamp;
+	/**
+	 * localservice名字到实现类, 插件进程启动时注册localservice只需要这部分, 不需要展开描述
+	 */
+	final HashMap<String, String> functions;
+
+	PluginHeader(String packageName, String version, boolean enabled, String installedPath,
+				 long stamp, HashMap<String, String> functions) {
+		this.packageName = packageName;
+		this.version = version;
+		this.enabled = enabled;
+		this.installedPath = installedPath;
+		this.stamp = stamp;
+		this.functions = functions;
+	}
+}
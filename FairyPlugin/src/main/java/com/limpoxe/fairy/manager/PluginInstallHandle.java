@@ -0,0 +1,58 @@
+package com.limpoxe.fairy.manager;
+
+/**
+ * 异步安装、卸载的句柄
+ *
+ * 进度和结果通过ACTION_PLUGIN_CHANGED广播通知, 类型为PluginStatusChangeListener.TYPE_PROGRESS,
+ * 广播中的EXTRA_SESSION_ID和getSessionId()相同。
+ * 句柄中的阶段是创建句柄时的快照, 需要最新的阶段时重新调用PluginManagerHelper.getInstallSessions
+ */
+public class PluginInstallHandle {
+
+	public static final int TYPE_INSTALL = 0;
+	public static final int TYPE_PATCH = 1;
+	public static final int TYPE_REMOVE = 2;
+
+	private final int sessionId;
+	private final int type;
+	private final String target;
+	private final int stage;
+
+	PluginInstallHandle(int sessionId, int type, String target, int stage) {
+		this.sessionId = sessionId;
+		this.type = type;
+		this.target = target;
+		this.stage = stage;
+	}
+
+	public int getSessionId() {
+		return sessionId;
+	}
+
+	public int getType() {
+		return type;
+	}
+
+	/**
+	 * @return 安装时是apk或补丁路径, 卸载时是插件包名
+	 */
+	public String getTarget() {
+		return target;
+	}
+
+	/**
+	 * @return PluginStatusChangeListener.STAGE_*
+	 */
+	public int getStage() {
+		return stage;
+	}
+
+	/**
+	 * 取消还没有开始提交的安装或卸载, 取消成功后只会收到code为PluginManagerHelper.INSTALL_CANCELED(卸载时为REMOVE_CANCELED)的STAGE_FINISHED通知,
+	 * 不会再有安装、卸载广播
+	 * @return 已经开始提交或者已经结束时返回false
+	 */
+	public boolean cancel() {
+		return PluginManagerProviderClient.cancelSession(sessionId);
+	}
+}
@@ -0,0 +1,126 @@
+package com.limpoxe.fairy.manager;
+
+import android.content.Intent;
+
+import com.limpoxe.fairy.content.PluginDescriptor;
+import com.limpoxe.fairy.content.PluginIntentFilter;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.Map;
+
+/**
+ * 已安装插件中所有IntentFilter的索引, 按组件类型和action分组
+ *
+ * 指定了action的intent只需要和声明了这个action的filter逐个匹配, 不需要遍历所有插件的所有组件。
+ * 索引和已安装列表的generation绑定, generation变化后下次匹配时整体重建。
+ * 匹配结果的顺序和按插件、按组件逐个匹配时相同
+ */
+class PluginIntentIndex {
+
+	private static class Entry {
+		final String packageName;
+		final String className;
+		final PluginIntentFilter filter;
+
+		Entry(String packageName, String className, PluginIntentFilter filter) {
+			this.packageName = packageName;
+			this.className = className;
+			this.filter = filter;
+		}
+	}
+
+	private static class Filters {
+		//按声明顺序的所有filter, intent没有action时使用
+		final ArrayList<Entry> all = new ArrayList<Entry>();
+		final HashMap<String, ArrayList<Entry>> byAction = new HashMap<String, ArrayList<Entry>>();
+	}
+
+	private final Filters activities = new Filters();
+	private final Filters services = new Filters();
+	private final Filters receivers = new Filters();
+
+	final long generation;
+
+	PluginIntentIndex(Collection<PluginDescriptor> plugins, long generation) {
+		this.generation = generation;
+		for (PluginDescriptor pluginDescriptor : plugins) {
+			add(activities, pluginDescriptor.getPackageName(), pluginDescriptor.getActivitys());
+			add(services, pluginDescriptor.getPackageName(), pluginDescriptor.getServices());
+			add(receivers, pluginDescriptor.getPackageName(), pluginDescriptor.getReceivers());
+		}
+	}
+
+	/**
+	 * 匹配规则和PluginDescriptor.matchPlugin相同
+	 *
+	 * @param classNames 匹配到的类名
+	 * @return 第一个匹配到的插件的包名, 没有匹配到时返回null
+	 */
+	String match(Intent intent, int type, ArrayList<String> classNames) {
+		Filters filters;
+		if (type == PluginDescriptor.ACTIVITY) {
+			filters = activities;
+		} else if (type == PluginDescriptor.SERVICE) {
+			filters = services;
+		} else if (type == PluginDescriptor.BROADCAST) {
+			filters = receivers;
+		} else {
+			return null;
+		}
+
+		ArrayList<Entry> candidates;
+		if (intent.getAction() == null) {
+			candidates = filters.all;
+		} else {
+			candidates = filters.byAction.get(intent.getAction());
+			if (candidates == null) {
+				return null;
+			}
+		}
+
+		String matched = null;
+		for (Entry entry : candidates) {
+			int result = entry.filter.match(intent.getAction(), intent.getType(), intent.getScheme(),
+					intent.getData(), intent.getCategories());
+			if (result != PluginIntentFilter.NO_MATCH_ACTION
+					&& result != PluginIntentFilter.NO_MATCH_CATEGORY
+					&& result != PluginIntentFilter.NO_MATCH_DATA
+					&& result != PluginIntentFilter.NO_MATCH_TYPE) {
+				if (matched == null) {
+					matched = entry.packageName;
+				}
+				classNames.add(entry.className);
+			}
+		}
+		return matched;
+	}
+
+	private static void add(Filters filters, String packageName, HashMap<String, ArrayList<PluginIntentFilter>> components) {
+		if (components == null) {
+			return;
+		}
+		Iterator<Map.Entry<String, ArrayList<PluginIntentFilter>>> itr = components.entrySet().iterator();
+		while (itr.hasNext()) {
+			Map.Entry<String, ArrayList<PluginIntentFilter>> item = itr.next();
+			if (item.getValue() == null) {
+				continue;
+			}
+			for (PluginIntentFilter filter : item.getValue()) {
+				Entry entry = new Entry(packageName, item.getKey(), filter);
+				filters.all.add(entry);
+				for (int i = 0; i < filter.countActions(); i++) {
+					String action = filter.getAction(i);
+					ArrayList<Entry> list = filters.byAction.get(action);
+					if (list == null) {
+						list = new ArrayList<Entry>();
+						filters.byAction.put(action, list);
+					}
+					list.add(entry);
+				}
+			}
+		}
+	}
+}
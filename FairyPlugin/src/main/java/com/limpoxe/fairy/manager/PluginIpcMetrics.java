@@ -0,0 +1,350 @@
+package com.limpoxe.fairy.manager;
+
+import android.content.Intent;
+import android.os.Bundle;
+import android.os.IBinder;
+import android.os.Parcel;
+import android.os.RemoteException;
+import android.util.SparseArray;
+
+import com.limpoxe.fairy.core.FairyGlobal;
+import com.limpoxe.fairy.util.LogUtil;
+
+import java.lang.reflect.Field;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * 插件管理跨进程调用的统计
+ *
+ * 客户端在CompatForContentProvider和IPluginManager代理中记录, 服务端在PluginManagerProvider和PluginManagerBinder中记录,
+ * 按action统计调用次数、耗时分布、数据大小和调用方。
+ * 次数和耗时始终统计, 数据大小需要额外序列化一次Bundle, 通过FairyGlobal.setIpcPayloadMetricsEnable打开,
+ * 走binder的调用直接取Parcel的大小, 不受这个开关影响
+ */
+public class PluginIpcMetrics {
+
+	public static final int SIDE_CLIENT = 0;
+	public static final int SIDE_SERVER = 1;
+
+	//耗时分布的区间上界, 单位ms, 最后一个区间是大于1000ms
+	private static final long[] BUCKETS = {1, 2, 5, 10, 20, 50, 100, 200, 500, 1000};
+
+	//每个action最多记录这么多个不同的调用方
+	private static final int MAX_CALLERS = 16;
+
+	private static final String BINDER_PREFIX = "binder.";
+	private static final String TRANSACTION_PREFIX = "TRANSACTION_";
+
+	private static final HashMap<String, Stat> sClient = new HashMap<String, Stat>();
+	private static final HashMap<String, Stat> sServer = new HashMap<String, Stat>();
+
+	private static class Stat {
+		long count;
+		long totalNanos;
+		long maxNanos;
+		final long[] histogram = new long[BUCKETS.length + 1];
+		long argBytes;
+		long resultBytes;
+		final HashMap<String, Long> callers = new HashMap<String, Long>();
+	}
+
+	/**
+	 * @param argBytes 未统计时为-1
+	 * @param resultBytes 未统计时为-1
+	 * @param caller 客户端为线程名, 服务端为调用方pid
+	 */
+	public static void record(int side, String method, long nanos, int argBytes, int resultBytes, String caller) {
+		HashMap<String, Stat> stats = side == SIDE_SERVER ? sServer : sClient;
+		synchronized (stats) {
+			Stat stat = stats.get(method);
+			if (stat == null) {
+				stat = new Stat();
+				stats.put(method, stat);
+			}
+			stat.count++;
+			stat.totalNanos += nanos;
+			if (nanos > stat.maxNanos) {
+				stat.maxNanos = nanos;
+			}
+			stat.histogram[bucket(nanos)]++;
+			if (argBytes > 0) {
+				stat.argBytes += argBytes;
+			}
+			if (resultBytes > 0) {
+				stat.resultBytes += resultBytes;
+			}
+			if (caller != null) {
+				Long count = stat.callers.get(caller);
+				if (count != null) {
+					stat.callers.put(caller, count + 1);
+				} else if (stat.callers.size() < MAX_CALLERS) {
+					stat.callers.put(caller, 1L);
+				}
+			}
+		}
+	}
+
+	/**
+	 * @return 未打开数据大小统计或者bundle为null时返回-1
+	 */
+	public static int sizeOf(Bundle bundle) {
+		if (bundle == null || !FairyGlobal.isIpcPayloadMetricsEnable()) {
+			return -1;
+		}
+		Parcel parcel = Parcel.obtain();
+		try {
+			bundle.writeToParcel(parcel, 0);
+			return parcel.dataSize();
+		} finally {
+			parcel.recycle();
+		}
+	}
+
+	/**
+	 * 按调用次数从多到少输出
+	 */
+	static String dump(int side) {
+		HashMap<String, Stat> stats = side == SIDE_SERVER ? sServer : sClient;
+		StringBuilder sb = new StringBuilder();
+		synchronized (stats) {
+			ArrayList<Map.Entry<String, Stat>> entries = new ArrayList<Map.Entry<String, Stat>>(stats.entrySet());
+			Collections.sort(entries, new Comparator<Map.Entry<String, Stat>>() {
+				@Override
+				public int compare(Map.Entry<String, Stat> lhs, Map.Entry<String, Stat> rhs) {
+					long diff = rhs.getValue().count - lhs.getValue().count;
+					return diff > 0 ? 1 : (diff < 0 ? -1 : 0);
+				}
+			});
+			for (Map.Entry<String, Stat> entry : entries) {
+				Stat stat = entry.getValue();
+				sb.append(entry.getKey())
+						.append(" count=").append(stat.count)
+						.append(" avg=").append(stat.totalNanos / stat.count / 1000).append("us")
+						.append(" max=").append(stat.maxNanos / 1000).append("us")
+						.append(" args=").append(stat.argBytes).append("B")
+						.append(" results=").append(stat.resultBytes).append("B")
+						.append("\n  histogram(ms)");
+				for (int i = 0; i < stat.histogram.length; i++) {
+					sb.append(' ').append(i < BUCKETS.length ? "<=" + BUCKETS[i] : ">" + BUCKETS[BUCKETS.length - 1])
+							.append(':').append(stat.histogram[i]);
+				}
+				sb.append("\n  callers");
+				Iterator<Map.Entry<String, Long>> itr = stat.callers.entrySet().iterator();
+				while (itr.hasNext()) {
+					Map.Entry<String, Long> caller = itr.next();
+					sb.append(' ').append(caller.getKey()).append(':').append(caller.getValue());
+				}
+				sb.append('\n');
+			}
+		}
+		return sb.toString();
+	}
+
+	/**
+	 * 客户端记录走binder的调用, 数据大小只在服务端统计
+	 */
+	static IPluginManager wrap(IPluginManager manager) {
+		return new MeteredPluginManager(manager);
+	}
+
+	/**
+	 * 直接委托的IPluginManager, 每个调用只多两次System.nanoTime, 不经过反射
+	 * IPluginManager.aidl增加方法时这里要同步增加
+	 */
+	private static class MeteredPluginManager implements IPluginManager {
+
+		private final IPluginManager manager;
+
+		MeteredPluginManager(IPluginManager manager) {
+			this.manager = manager;
+		}
+
+		@Override
+		public IBinder asBinder() {
+			return manager.asBinder();
+		}
+
+		@Override
+		public byte[] queryById(String pluginId, int projection, long[] generation) throws RemoteException {
+			long start = System.nanoTime();
+			try {
+				return manager.queryById(pluginId, projection, generation);
+			} finally {
+				recordBinder("queryById", start);
+			}
+		}
+
+		@Override
+		public byte[] queryByClassName(String className, int projection, long[] generation) throws RemoteException {
+			long start = System.nanoTime();
+			try {
+				return manager.queryByClassName(className, projection, generation);
+			} finally {
+				recordBinder("queryByClassName", start);
+			}
+		}
+
+		@Override
+		public byte[] queryByFragmentId(String fragmentId, int projection, long[] generation) throws RemoteException {
+			long start = System.nanoTime();
+			try {
+				return manager.queryByFragmentId(fragmentId, projection, generation);
+			} finally {
+				recordBinder("queryByFragmentId", start);
+			}
+		}
+
+		@Override
+		public List<String> resolveIntent(Intent intent, int type) throws RemoteException {
+			long start = System.nanoTime();
+			try {
+				return manager.resolveIntent(intent, type);
+			} finally {
+				recordBinder("resolveIntent", start);
+			}
+		}
+
+		@Override
+		public boolean isStub(String className) throws RemoteException {
+			long start = System.nanoTime();
+			try {
+				return manager.isStub(className);
+			} finally {
+				recordBinder("isStub", start);
+			}
+		}
+
+		@Override
+		public boolean isExact(String className, int type) throws RemoteException {
+			long start = System.nanoTime();
+			try {
+				return manager.isExact(className, type);
+			} finally {
+				recordBinder("isExact", start);
+			}
+		}
+
+		@Override
+		public String bindStubActivity(String className, String packageName) throws RemoteException {
+			long start = System.nanoTime();
+			try {
+				return manager.bindStubActivity(className, packageName);
+			} finally {
+				recordBinder("bindStubActivity", start);
+			}
+		}
+
+		@Override
+		public void unBindStubActivity(String stubActivityName, String className) throws RemoteException {
+			long start = System.nanoTime();
+			try {
+				manager.unBindStubActivity(stubActivityName, className);
+			} finally {
+				recordBinder("unBindStubActivity", start);
+			}
+		}
+
+		@Override
+		public String bindStubService(String className) throws RemoteException {
+			long start = System.nanoTime();
+			try {
+				return manager.bindStubService(className);
+			} finally {
+				recordBinder("bindStubService", start);
+			}
+		}
+
+		@Override
+		public String getBindedPluginService(String stubServiceName) throws RemoteException {
+			long start = System.nanoTime();
+			try {
+				return manager.getBindedPluginService(stubServiceName);
+			} finally {
+				recordBinder("getBindedPluginService", start);
+			}
+		}
+
+		@Override
+		public void unBindStubService(String className) throws RemoteException {
+			long start = System.nanoTime();
+			try {
+				manager.unBindStubService(className);
+			} finally {
+				recordBinder("unBindStubService", start);
+			}
+		}
+
+		@Override
+		public String bindStubReceiver(String className) throws RemoteException {
+			long start = System.nanoTime();
+			try {
+				return manager.bindStubReceiver(className);
+			} finally {
+				recordBinder("bindStubReceiver", start);
+			}
+		}
+
+		@Override
+		public void registerChangeListener(IPluginChangeListener listener) throws RemoteException {
+			long start = System.nanoTime();
+			try {
+				manager.registerChangeListener(listener);
+			} finally {
+				recordBinder("registerChangeListener", start);
+			}
+		}
+
+		@Override
+		public void unregisterChangeListener(IPluginChangeListener listener) throws RemoteException {
+			long start = System.nanoTime();
+			try {
+				manager.unregisterChangeListener(listener);
+			} finally {
+				recordBinder("unregisterChangeListener", start);
+			}
+		}
+
+		private static void recordBinder(String method, long start) {
+			record(SIDE_CLIENT, BINDER_PREFIX + method, System.nanoTime() - start, -1, -1, Thread.currentThread().getName());
+		}
+	}
+
+	private static SparseArray<String> sTransactionNames;
+
+	/**
+	 * 服务端通过transaction code还原方法名, 和客户端记录的名字一致
+	 */
+	static synchronized String transactionName(int code) {
+		if (sTransactionNames == null) {
+			sTransactionNames = new SparseArray<String>();
+			for (Field field : IPluginManager.Stub.class.getDeclaredFields()) {
+				if (field.getName().startsWith(TRANSACTION_PREFIX) && field.getType() == int.class) {
+					try {
+						field.setAccessible(true);
+						sTransactionNames.put(field.getInt(null), BINDER_PREFIX + field.getName().substring(TRANSACTION_PREFIX.length()));
+					} catch (IllegalAccessException e) {
+						LogUtil.printException("PluginIpcMetrics.transactionName", e);
+					}
+				}
+			}
+		}
+		String name = sTransactionNames.get(code);
+		return name != null ? name : BINDER_PREFIX + code;
+	}
+
+	private static int bucket(long nanos) {
+		long millis = nanos / 1000000;
+		for (int i = 0; i < BUCKETS.length; i++) {
+			if (millis <= BUCKETS[i]) {
+				return i;
+			}
+		}
+		return BUCKETS.length;
+	}
+}
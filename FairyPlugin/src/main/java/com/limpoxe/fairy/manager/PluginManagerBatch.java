@@ -0,0 +1,54 @@
+package com.limpoxe.fairy.manager;
+
+import android.os.Bundle;
+
+import java.util.ArrayList;
+
+/**
+ * 把多个PluginManagerProvider操作合并为一次跨进程调用
+ *
+ * 每个操作的method、arg、extras和单独调用PluginManagerProvider时相同,
+ * 结果按添加顺序返回, 取值方式也和单独调用时相同
+ *
+ * <pre>
+ * PluginManagerBatch batch = new PluginManagerBatch();
+ * int isStub = batch.add(PluginManagerProvider.ACTION_IS_STUB, className, null);
+ * int query = batch.add(PluginManagerProvider.ACTION_QUERY_BY_CLASS_NAME, className, null);
+ * ArrayList&lt;Bundle&gt; results = batch.execute();
+ * results.get(isStub).getBoolean(PluginManagerProvider.IS_STUB_RESULT);
+ * </pre>
+ */
+public class PluginManagerBatch {
+
+	private final ArrayList<String> methods = new ArrayList<String>();
+	private final ArrayList<String> args = new ArrayList<String>();
+	private final ArrayList<Bundle> extras = new ArrayList<Bundle>();
+
+	/**
+	 * @return 这个操作的结果在execute返回值中的下标
+	 */
+	public int add(String method, String arg, Bundle extra) {
+		methods.add(method);
+		args.add(arg);
+		extras.add(extra);
+		return methods.size() - 1;
+	}
+
+	/**
+	 * @return 每个操作的结果, 没有结果的操作为空Bundle; 调用失败时全部为空Bundle, 不会返回null
+	 */
+	public ArrayList<Bundle> execute() {
+		ArrayList<Bundle> results = null;
+		if (methods.size() > 0) {
+			results = PluginManagerProviderClient.batch(methods.toArray(new String[methods.size()]),
+					args.toArray(new String[args.size()]), extras);
+		}
+		if (results == null || results.size() != methods.size()) {
+			results = new ArrayList<Bundle>(methods.size());
+			for (int i = 0; i < methods.size(); i++) {
+				results.add(new Bundle());
+			}
+		}
+		return results;
+	}
+}
@@ -0,0 +1,129 @@
+package com.limpoxe.fairy.manager;
+
+import android.content.Intent;
+import android.os.Binder;
+import android.os.Parcel;
+import android.os.RemoteException;
+
+import com.limpoxe.fairy.content.PluginDescriptor;
+import com.limpoxe.fairy.content.PluginDescriptorCodec;
+import com.limpoxe.fairy.manager.mapping.PluginStubBinding;
+import com.limpoxe.fairy.manager.mapping.StubExact;
+import com.limpoxe.fairy.manager.mapping.StubMappingProcessor;
+import com.limpoxe.fairy.util.LogUtil;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * IPluginManager在插件进程中的实现, 每个方法和PluginManagerProvider中对应的action逻辑相同
+ */
+class PluginManagerBinder extends IPluginManager.Stub {
+
+	private final PluginManagerService managerService;
+
+	PluginManagerBinder(PluginManagerService managerService) {
+		this.managerService = managerService;
+	}
+
+	@Override
+	public boolean onTransact(int code, Parcel data, Parcel reply, int flags) throws RemoteException {
+		long start = System.nanoTime();
+		int argBytes = data.dataSize();
+		try {
+			return super.onTransact(code, data, reply, flags);
+		} finally {
+			PluginIpcMetrics.record(PluginIpcMetrics.SIDE_SERVER, PluginIpcMetrics.transactionName(code), System.nanoTime() - start,
+					argBytes, reply == null ? -1 : reply.dataSize(), "pid:" + Binder.getCallingPid());
+		}
+	}
+
+	@Override
+	public byte[] queryById(String pluginId, int projection, long[] generation) {
+		//先取generation再查询, 查询期间有变化时下次查询会清空客户端缓存
+		generation[0] = PluginManagerService.getGeneration();
+		return encode(managerService.getPluginDescriptorByPluginId(pluginId), projection);
+	}
+
+	@Override
+	public byte[] queryByClassName(String className, int projection, long[] generation) {
+		generation[0] = PluginManagerService.getGeneration();
+		return encode(managerService.getPluginDescriptorByClassName(className), projection);
+	}
+
+	@Override
+	public byte[] queryByFragmentId(String fragmentId, int projection, long[] generation) {
+		generation[0] = PluginManagerService.getGeneration();
+		return encode(managerService.getPluginDescriptorByFragmenetId(fragmentId), projection);
+	}
+
+	@Override
+	public List<String> resolveIntent(Intent intent, int type) {
+		ArrayList<String> classNameList = new ArrayList<String>();
+		managerService.matchPlugin(intent, type, classNameList);
+		return classNameList;
+	}
+
+	@Override
+	public boolean isStub(String className) {
+		return PluginStubBinding.isStub(className);
+	}
+
+	@Override
+	public boolean isExact(String className, int type) {
+		return StubExact.isExact(className, type);
+	}
+
+	@Override
+	public String bindStubActivity(String className, String packageName) {
+		return PluginStubBinding.bindStub(className, packageName, StubMappingProcessor.TYPE_ACTIVITY);
+	}
+
+	@Override
+	public void unBindStubActivity(String stubActivityName, String className) {
+		PluginStubBinding.unBind(stubActivityName, className, StubMappingProcessor.TYPE_ACTIVITY);
+	}
+
+	@Override
+	public String bindStubService(String className) {
+		return PluginStubBinding.bindStub(className, null, StubMappingProcessor.TYPE_SERVICE);
+	}
+
+	@Override
+	public String getBindedPluginService(String stubServiceName) {
+		return PluginStubBinding.getBindedPluginClassName(stubServiceName, StubMappingProcessor.TYPE_SERVICE);
+	}
+
+	@Override
+	public void unBindStubService(String className) {
+		PluginStubBinding.unBind(null, className, StubMappingProcessor.TYPE_SERVICE);
+	}
+
+	@Override
+	public String bindStubReceiver(String className) {
+		return PluginStubBinding.bindStub(className, null, StubMappingProcessor.TYPE_RECEIVER);
+	}
+
+	@Override
+	public void registerChangeListener(IPluginChangeListener listener) {
+		PluginChangeFeed.instance().register(listener);
+	}
+
+	@Override
+	public void unregisterChangeListener(IPluginChangeListener listener) {
+		PluginChangeFeed.instance().unregister(listener);
+	}
+
+	private static byte[] encode(PluginDescriptor pluginDescriptor, int projection) {
+		if (pluginDescriptor == null) {
+			return null;
+		}
+		try {
+			return PluginDescriptorCodec.encode(pluginDescriptor, projection);
+		} catch (IOException e) {
+			LogUtil.printException("PluginManagerBinder.encode", e);
+		}
+		return null;
+	}
+}
@@ -6,6 +6,7 @@ import com.limpoxe.fairy.util.ProcessUtil;
 
 import java.util.ArrayList;
 import java.util.HashMap;
+import java.util.Iterator;
 
 /**
  * Created by cailiming on 16/3/11.
@@ -25,10 +26,17 @@ public class PluginManagerHelper {
     public static final int MIN_API_NOT_SUPPORTED = 8;
     public static final int INSTALL_FAIL = 7;
     public static final int HOST_VERSION_NOT_SUPPORT_CURRENT_PLUGIN = 9;
+    public static final int PATCH_BASE_NOT_MATCH = 10;
+    public static final int PATCH_FAIL = 11;
+    public static final int INSTALL_CANCELED = 12;
 
     public static final int PLUGIN_NOT_EXIST = 21;
     public static final int REMOVE_FAIL = 27;
+    public static final int REMOVE_CANCELED = 28;
 
+    /**
+     * 按类名、fragment id、authority查找时, 未启用的插件也会返回, 只有按包名查找会过滤未启用的插件
+     */
     public static PluginDescriptor getPluginDescriptorByClassName(String clazzName) {
         return PluginManagerProviderClient.queryByClass(clazzName);
     }
@@ -43,6 +51,33 @@ public class PluginManagerHelper {
         return PluginManagerProviderClient.queryAll();
     }
 
+    /**
+     * 只需要部分字段时使用, 跨进程传递的数据量小很多
+     * @param projection 见PluginDescriptorCodec.PROJECTION_*
+     * @return
+     */
+    public static ArrayList<PluginDescriptor> getPlugins(int projection) {
+        return PluginManagerProviderClient.queryAll(projection);
+    }
+
+    /**
+     * 所有插件声明的localservice, 不需要插件的完整描述时使用
+     * @return 包名到(localservice名字到实现类)
+     */
+    public static HashMap<String, HashMap<String, String>> getLocalServices() {
+        return PluginManagerProviderClient.queryLocalServices();
+    }
+
+    /**
+     * 分页遍历, 插件很多或者找到目标后就可以结束遍历时使用
+     * @param filter 见PluginDescriptorPager.FILTER_*
+     * @param projection 见PluginDescriptorCodec.PROJECTION_*
+     * @return
+     */
+    public static Iterator<PluginDescriptor> iteratePlugins(int filter, int projection) {
+        return PluginManagerProviderClient.iterate(filter, projection);
+    }
+
     public static PluginDescriptor getPluginDescriptorByPluginId(String pluginId) {
 
         if (pluginId.startsWith("com.android.")) {
@@ -62,10 +97,80 @@ public class PluginManagerHelper {
         return PluginManagerProviderClient.queryByFragment(clazzId);
     }
 
+    /**
+     * 按ContentProvider的authority查找插件
+     */
+    public static PluginDescriptor getPluginDescriptorByAuthority(String authority) {
+        return PluginManagerProviderClient.queryByAuthority(authority);
+    }
+
     public static int installPlugin(String srcFile) {
         return PluginManagerProviderClient.install(srcFile);
     }
 
+    /**
+     * 批量安装, 不同的插件会并行安装, 比逐个调用installPlugin快
+     * @param srcFiles
+     * @return 每个插件的安装结果, 和参数顺序一致
+     */
+    public static int[] installPlugins(String... srcFiles) {
+        return PluginManagerProviderClient.installAll(srcFiles);
+    }
+
+    /**
+     * 增量升级, 补丁是针对当前已安装版本的差分
+     * @param patchFile
+     * @return
+     */
+    public static int installPatch(String patchFile) {
+        return PluginManagerProviderClient.installPatch(patchFile);
+    }
+
+    /**
+     * 异步安装, 立即返回, 签名校验、复制、解压都在插件进程的安装线程中执行
+     * 进度和结果通过PluginStatusChangeListener.TYPE_PROGRESS广播通知
+     * @param srcFile
+     * @return 调用失败返回null
+     */
+    public static PluginInstallHandle installPluginAsync(String srcFile) {
+        return PluginManagerProviderClient.startSession(PluginInstallHandle.TYPE_INSTALL, srcFile);
+    }
+
+    public static PluginInstallHandle installPatchAsync(String patchFile) {
+        return PluginManagerProviderClient.startSession(PluginInstallHandle.TYPE_PATCH, patchFile);
+    }
+
+    public static PluginInstallHandle removeAsync(String pluginId) {
+        return PluginManagerProviderClient.startSession(PluginInstallHandle.TYPE_REMOVE, pluginId);
+    }
+
+    /**
+     * @return 排队中和执行中的异步安装、卸载, 按提交顺序
+     */
+    public static ArrayList<PluginInstallHandle> getInstallSessions() {
+        return PluginManagerProviderClient.querySessions();
+    }
+
+    /**
+     * 监听插件的安装、卸载, 插件进程提交后直接通过binder回调, 比ACTION_PLUGIN_CHANGED广播及时
+     * @param listener 在主线程中回调
+     */
+    public static void addRegistryListener(PluginRegistryListener listener) {
+        PluginManagerProviderClient.addRegistryListener(listener);
+    }
+
+    public static void removeRegistryListener(PluginRegistryListener listener) {
+        PluginManagerProviderClient.removeRegistryListener(listener);
+    }
+
+    /**
+     * 跨进程调用统计: 每个action的调用次数、耗时分布、数据大小、调用方
+     * @return 文本格式, 先是本进程作为客户端的统计, 再是插件进程作为服务端的统计
+     */
+    public static String dumpIpcMetrics() {
+        return PluginManagerProviderClient.dumpIpcMetrics();
+    }
+
     public static boolean isInstalled(String pluginId) {
         PluginDescriptor pluginDescriptor = PluginManagerProviderClient.queryById(pluginId);
         return pluginDescriptor != null;
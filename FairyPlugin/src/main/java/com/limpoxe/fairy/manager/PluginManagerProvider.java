@@ -3,9 +3,11 @@ package com.limpoxe.fairy.manager;
 import android.annotation.TargetApi;
 import android.content.ContentProvider;
 import android.content.ContentValues;
+import android.content.Intent;
 import android.database.Cursor;
 import android.net.Uri;
 import android.os.Build;
+import android.os.Binder;
 import android.os.Bundle;
 import android.os.CancellationSignal;
 import android.os.Handler;
@@ -16,8 +18,10 @@ import android.util.Log;
 
 import com.limpoxe.fairy.content.LoadedPlugin;
 import com.limpoxe.fairy.content.PluginDescriptor;
+import com.limpoxe.fairy.content.PluginDescriptorCodec;
 import com.limpoxe.fairy.core.FairyGlobal;
 import com.limpoxe.fairy.core.PluginLauncher;
+import com.limpoxe.fairy.core.compat.CompatForBundle;
 import com.limpoxe.fairy.manager.mapping.PluginStubBinding;
 import com.limpoxe.fairy.manager.mapping.StubExact;
 import com.limpoxe.fairy.manager.mapping.StubMappingProcessor;
@@ -25,6 +29,7 @@ import com.limpoxe.fairy.util.LogUtil;
 import com.limpoxe.fairy.util.ProcessUtil;
 
 import java.io.FileNotFoundException;
+import java.io.IOException;
 import java.util.ArrayList;
 import java.util.Collection;
 
@@ -44,9 +49,32 @@ public class PluginManagerProvider extends ContentProvider {
     public static final String ACTION_INSTALL = "install";
     public static final String INSTALL_RESULT = "install_result";
 
+    public static final String ACTION_INSTALL_BATCH = "install_batch";
+    public static final String INSTALL_BATCH_SRC = "install_batch_src";
+    public static final String INSTALL_BATCH_RESULT = "install_batch_result";
+
+    public static final String ACTION_INSTALL_PATCH = "install_patch";
+    public static final String INSTALL_PATCH_RESULT = "install_patch_result";
+
     public static final String ACTION_REMOVE = "remove";
     public static final String REMOVE_RESULT = "remove_result";
 
+    //异步安装、卸载, 立即返回session id, 进度通过PluginStatusChangeAdapter.onProgress通知
+    public static final String ACTION_INSTALL_ASYNC = "install_async";
+    public static final String ACTION_INSTALL_PATCH_ASYNC = "install_patch_async";
+    public static final String ACTION_REMOVE_ASYNC = "remove_async";
+    public static final String SESSION_ID = "session_id";
+
+    public static final String ACTION_CANCEL_SESSION = "cancel_session";
+    public static final String CANCEL_SESSION_RESULT = "cancel_session_result";
+
+    //排队中和执行中的异步安装、卸载
+    public static final String ACTION_QUERY_SESSIONS = "query_sessions";
+    public static final String QUERY_SESSIONS_IDS = "query_sessions_ids";
+    public static final String QUERY_SESSIONS_TYPES = "query_sessions_types";
+    public static final String QUERY_SESSIONS_TARGETS = "query_sessions_targets";
+    public static final String QUERY_SESSIONS_STAGES = "query_sessions_stages";
+
     public static final String ACTION_REMOVE_ALL = "remove_all";
     public static final String REMOVE_ALL_RESULT = "remove_all_result";
 
@@ -59,9 +87,29 @@ public class PluginManagerProvider extends ContentProvider {
     public static final String ACTION_QUERY_BY_FRAGMENT_ID = "query_by_fragment_id";
     public static final String QUERY_BY_FRAGMENT_ID_RESULT = "query_by_fragment_id_result";
 
+    public static final String ACTION_QUERY_BY_AUTHORITY = "query_by_authority";
+    public static final String QUERY_BY_AUTHORITY_RESULT = "query_by_authority_result";
+
+    //查询结果中携带的已安装列表generation, 用于客户端缓存
+    public static final String REGISTRY_GENERATION = "registry_generation";
+
+    //查询时需要的字段, 见PluginDescriptorCodec.PROJECTION_*, 默认全部
+    public static final String QUERY_PROJECTION = "query_projection";
+
+    //分页查询, 见PluginDescriptorPager
+    public static final String ACTION_QUERY_PAGE = "query_page";
+    public static final String QUERY_PAGE_AFTER = "query_page_after";
+    public static final String QUERY_PAGE_SIZE = "query_page_size";
+    public static final String QUERY_PAGE_FILTER = "query_page_filter";
+    public static final String QUERY_PAGE_RESULT = "query_page_result";
+    public static final String QUERY_PAGE_NEXT = "query_page_next";
+
     public static final String ACTION_QUERY_ALL = "query_all";
     public static final String QUERY_ALL_RESULT = "query_all_result";
 
+    public static final String ACTION_QUERY_LOCAL_SERVICES = "query_local_services";
+    public static final String QUERY_LOCAL_SERVICES_RESULT = "query_local_services_result";
+
     public static final String ACTION_BIND_ACTIVITY = "bind_activity";
     public static final String BIND_ACTIVITY_RESULT = "bind_activity_result";
 
@@ -92,14 +140,46 @@ public class PluginManagerProvider extends ContentProvider {
     public static final String ACTION_WAKEUP_PLUGIN = "wakeup_plugin";
     public static final String WAKEUP_PLUGIN_RESULT = "wakeup_plugin_result";
 
+    //插件被卸载后释放常驻的描述, 只在插件进程内部使用
+    public static final String ACTION_RELEASE_DESCRIPTOR = "release_descriptor";
+
     public static final String ACTION_DUMP_SERVICE_INFO = "dump_service_info";
     public static final String DUMP_SERVICE_INFO_RESULT = "dump_service_info_result";
 
+    //一次调用执行多个操作, 每个操作的参数和结果都和单独调用时相同
+    public static final String ACTION_BATCH = "batch";
+    public static final String BATCH_METHODS = "batch_methods";
+    public static final String BATCH_ARGS = "batch_args";
+    public static final String BATCH_EXTRAS = "batch_extras";
+    public static final String BATCH_RESULT = "batch_result";
+
+    //匹配intent、查询插件、绑定stub activity一次完成
+    public static final String ACTION_RESOLVE_ACTIVITY = "resolve_activity";
+    public static final String RESOLVE_INTENT = "resolve_intent_arg";
+    public static final String RESOLVE_ACTIVITY_CLASS = "resolve_activity_class";
+    public static final String RESOLVE_ACTIVITY_PLUGIN = "resolve_activity_plugin";
+    public static final String RESOLVE_ACTIVITY_STUB = "resolve_activity_stub";
+    public static final String RESOLVE_ACTIVITY_IS_PLUGIN_PACKAGE = "resolve_activity_is_plugin_package";
+
+    //在插件进程中匹配intent, 只返回匹配到的类名
+    public static final String ACTION_RESOLVE_INTENT = "resolve_intent";
+    public static final String RESOLVE_INTENT_TYPE = "resolve_intent_type";
+    public static final String RESOLVE_INTENT_RESULT = "resolve_intent_result";
+
+    //获取IPluginManager, 各进程获取一次后缓存, 之后的高频调用不再经过provider
+    public static final String ACTION_GET_BINDER = "get_binder";
+    public static final String GET_BINDER_RESULT = "get_binder_result";
+
+    //插件进程中的跨进程调用统计, 见PluginIpcMetrics
+    public static final String ACTION_DUMP_METRICS = "dump_metrics";
+    public static final String DUMP_METRICS_RESULT = "dump_metrics_result";
+
     public static final String ACTION_REBOOT_PLUGIN_PROCESS = "reboot_plugin_process";
 
 
     private PluginManagerService managerService;
-    private PluginStatusChangeListener changeListener;
+    private PluginManagerBinder managerBinder;
+    private PluginCallbackImpl changeListener;
     private Handler mainHandler;
 
     public static Uri buildUri() {
@@ -116,7 +196,9 @@ public class PluginManagerProvider extends ContentProvider {
 
         mainHandler = new Handler(Looper.getMainLooper());
         managerService = new PluginManagerService();
+        managerBinder = new PluginManagerBinder(managerService);
         changeListener = new PluginCallbackImpl();
+        DexOptScheduler.instance().setStatusChangeListener(changeListener);
         managerService.loadInstalledPlugins();
 
         return true;
@@ -191,7 +273,15 @@ public class PluginManagerProvider extends ContentProvider {
             return getContext().getContentResolver().call(targetUrl, method, arg, extras);
         }
 
-        return dispathToManager(method, arg, extras);
+        long start = System.nanoTime();
+        Bundle result = null;
+        try {
+            result = dispathToManager(method, arg, extras);
+            return result;
+        } finally {
+            PluginIpcMetrics.record(PluginIpcMetrics.SIDE_SERVER, method, System.nanoTime() - start,
+                    PluginIpcMetrics.sizeOf(extras), PluginIpcMetrics.sizeOf(result), "pid:" + Binder.getCallingPid());
+        }
     }
 
     /**
@@ -213,6 +303,29 @@ public class PluginManagerProvider extends ContentProvider {
 
             return bundle;
 
+        } else if (ACTION_INSTALL_BATCH.equals(method)) {
+
+            String[] srcFiles = extras.getStringArray(INSTALL_BATCH_SRC);
+            ArrayList<InstallResult> results = managerService.installPlugins(srcFiles);
+            int[] codes = new int[results.size()];
+            for (int i = 0; i < codes.length; i++) {
+                InstallResult result = results.get(i);
+                codes[i] = result.getResult();
+                changeListener.onInstall(result.getResult(), result.getPackageName(), result.getVersion(), srcFiles[i]);
+            }
+            bundle.putIntArray(INSTALL_BATCH_RESULT, codes);
+
+            return bundle;
+
+        } else if (ACTION_INSTALL_PATCH.equals(method)) {
+
+            InstallResult result = managerService.installPatch(arg);
+            bundle.putInt(INSTALL_PATCH_RESULT, result.getResult());
+
+            changeListener.onInstall(result.getResult(), result.getPackageName(), result.getVersion(), arg);
+
+            return bundle;
+
         } else if (ACTION_REMOVE.equals(method)) {
 
             int code = managerService.remove(arg);
@@ -222,6 +335,44 @@ public class PluginManagerProvider extends ContentProvider {
 
             return bundle;
 
+        } else if (ACTION_INSTALL_ASYNC.equals(method)
+                || ACTION_INSTALL_PATCH_ASYNC.equals(method)
+                || ACTION_REMOVE_ASYNC.equals(method)) {
+
+            int type = ACTION_INSTALL_ASYNC.equals(method) ? PluginInstallHandle.TYPE_INSTALL :
+                    (ACTION_INSTALL_PATCH_ASYNC.equals(method) ? PluginInstallHandle.TYPE_PATCH : PluginInstallHandle.TYPE_REMOVE);
+            InstallSession session = managerService.startSession(type, arg, changeListener);
+            bundle.putInt(SESSION_ID, session.id);
+
+            return bundle;
+
+        } else if (ACTION_CANCEL_SESSION.equals(method)) {
+
+            bundle.putBoolean(CANCEL_SESSION_RESULT, managerService.cancelSession(extras.getInt(SESSION_ID)));
+
+            return bundle;
+
+        } else if (ACTION_QUERY_SESSIONS.equals(method)) {
+
+            ArrayList<InstallSession> sessions = managerService.getSessions();
+            int[] ids = new int[sessions.size()];
+            int[] types = new int[sessions.size()];
+            String[] targets = new String[sessions.size()];
+            int[] stages = new int[sessions.size()];
+            for (int i = 0; i < sessions.size(); i++) {
+                InstallSession session = sessions.get(i);
+                ids[i] = session.id;
+                types[i] = session.type;
+                targets[i] = session.target;
+                stages[i] = session.getStage();
+            }
+            bundle.putIntArray(QUERY_SESSIONS_IDS, ids);
+            bundle.putIntArray(QUERY_SESSIONS_TYPES, types);
+            bundle.putStringArray(QUERY_SESSIONS_TARGETS, targets);
+            bundle.putIntArray(QUERY_SESSIONS_STAGES, stages);
+
+            return bundle;
+
         } else if (ACTION_REMOVE_ALL.equals(method)) {
 
             boolean success = managerService.removeAll();
@@ -231,31 +382,111 @@ public class PluginManagerProvider extends ContentProvider {
 
         } else if (ACTION_QUERY_BY_ID.equals(method)) {
 
+            //先取generation再查询, 查询期间有变化时下次查询会清空客户端缓存
+            bundle.putLong(REGISTRY_GENERATION, PluginManagerService.getGeneration());
             PluginDescriptor pluginDescriptor = managerService.getPluginDescriptorByPluginId(arg);
-            bundle.putSerializable(QUERY_BY_ID_RESULT, pluginDescriptor);
+            putDescriptor(bundle, QUERY_BY_ID_RESULT, pluginDescriptor, extras);
 
             return bundle;
 
         } else if (ACTION_QUERY_BY_CLASS_NAME.equals(method)) {
 
+            //先取generation再查询, 查询期间有变化时下次查询会清空客户端缓存
+            bundle.putLong(REGISTRY_GENERATION, PluginManagerService.getGeneration());
             PluginDescriptor pluginDescriptor = managerService.getPluginDescriptorByClassName(arg);
-            bundle.putSerializable(QUERY_BY_CLASS_NAME_RESULT, pluginDescriptor);
+            putDescriptor(bundle, QUERY_BY_CLASS_NAME_RESULT, pluginDescriptor, extras);
 
             return bundle;
 
         } else if (ACTION_QUERY_BY_FRAGMENT_ID.equals(method)) {
 
+            //先取generation再查询, 查询期间有变化时下次查询会清空客户端缓存
+            bundle.putLong(REGISTRY_GENERATION, PluginManagerService.getGeneration());
             PluginDescriptor pluginDescriptor = managerService.getPluginDescriptorByFragmenetId(arg);
-            bundle.putSerializable(QUERY_BY_FRAGMENT_ID_RESULT, pluginDescriptor);
+            putDescriptor(bundle, QUERY_BY_FRAGMENT_ID_RESULT, pluginDescriptor, extras);
+
+            return bundle;
+
+        } else if (ACTION_QUERY_BY_AUTHORITY.equals(method)) {
+
+            //先取generation再查询, 查询期间有变化时下次查询会清空客户端缓存
+            bundle.putLong(REGISTRY_GENERATION, PluginManagerService.getGeneration());
+            PluginDescriptor pluginDescriptor = managerService.getPluginDescriptorByAuthority(arg);
+            putDescriptor(bundle, QUERY_BY_AUTHORITY_RESULT, pluginDescriptor, extras);
 
             return bundle;
 
         } else if (ACTION_QUERY_ALL.equals(method)) {
 
             Collection<PluginDescriptor> pluginDescriptorList = managerService.getPlugins();
-            ArrayList<PluginDescriptor> result =  new ArrayList<PluginDescriptor>(pluginDescriptorList.size());
-            result.addAll(pluginDescriptorList);
-            bundle.putSerializable(QUERY_ALL_RESULT, result);
+            putDescriptorList(bundle, QUERY_ALL_RESULT, pluginDescriptorList, extras);
+
+            return bundle;
+
+        } else if (ACTION_QUERY_LOCAL_SERVICES.equals(method)) {
+
+            bundle.putSerializable(QUERY_LOCAL_SERVICES_RESULT, managerService.getLocalServices());
+
+            return bundle;
+
+        } else if (ACTION_QUERY_PAGE.equals(method)) {
+
+            ArrayList<PluginDescriptor> page = new ArrayList<PluginDescriptor>();
+            String after = extras.getString(QUERY_PAGE_AFTER);
+            String next = managerService.queryPage(after == null ? "" : after,
+                    extras.getInt(QUERY_PAGE_SIZE, PluginDescriptorPager.DEFAULT_PAGE_SIZE),
+                    extras.getInt(QUERY_PAGE_FILTER), page);
+            putDescriptorList(bundle, QUERY_PAGE_RESULT, page, extras);
+            bundle.putString(QUERY_PAGE_NEXT, next);
+
+            return bundle;
+
+        } else if (ACTION_BATCH.equals(method)) {
+
+            //参数不完整时不执行任何操作, 返回空结果
+            if (extras == null) {
+                LogUtil.e("批量调用参数错误");
+                return bundle;
+            }
+            String[] methods = extras.getStringArray(BATCH_METHODS);
+            String[] args = extras.getStringArray(BATCH_ARGS);
+            ArrayList<Bundle> argExtras = extras.getParcelableArrayList(BATCH_EXTRAS);
+            if (methods == null || args == null || args.length != methods.length
+                    || (argExtras != null && argExtras.size() != methods.length)) {
+                LogUtil.e("批量调用参数错误");
+                return bundle;
+            }
+            ArrayList<Bundle> results = new ArrayList<Bundle>(methods.length);
+            for (int i = 0; i < methods.length; i++) {
+                Bundle result = null;
+                if (!ACTION_BATCH.equals(methods[i])) {
+                    result = dispathToManager(methods[i], args[i], argExtras == null ? null : argExtras.get(i));
+                }
+                results.add(result != null ? result : new Bundle());
+            }
+            bundle.putParcelableArrayList(BATCH_RESULT, results);
+
+            return bundle;
+
+        } else if (ACTION_RESOLVE_ACTIVITY.equals(method)) {
+
+            Intent intent = extras.getParcelable(RESOLVE_INTENT);
+            resolveActivity(intent, bundle);
+
+            return bundle;
+
+        } else if (ACTION_RESOLVE_INTENT.equals(method)) {
+
+            Intent intent = extras.getParcelable(RESOLVE_INTENT);
+            ArrayList<String> classNameList = new ArrayList<String>();
+            managerService.matchPlugin(intent, extras.getInt(RESOLVE_INTENT_TYPE), classNameList);
+            bundle.putStringArrayList(RESOLVE_INTENT_RESULT, classNameList);
+
+            return bundle;
+
+        } else if (ACTION_GET_BINDER.equals(method)) {
+
+            CompatForBundle.putBinder(bundle, GET_BINDER_RESULT, managerBinder);
 
             return bundle;
 
@@ -298,6 +529,11 @@ public class PluginManagerProvider extends ContentProvider {
 
             return bundle;
 
+        } else if (ACTION_DUMP_METRICS.equals(method)) {
+            bundle.putString(DUMP_METRICS_RESULT, PluginIpcMetrics.dump(PluginIpcMetrics.SIDE_SERVER));
+
+            return bundle;
+
         } else if (ACTION_DUMP_SERVICE_INFO.equals(method)) {
             bundle.putString(DUMP_SERVICE_INFO_RESULT, "TODO: not implement yet");
 
@@ -310,6 +546,10 @@ public class PluginManagerProvider extends ContentProvider {
             LoadedPlugin loadedPlugin = PluginLauncher.instance().startPlugin(arg);
             bundle.putBoolean(WAKEUP_PLUGIN_RESULT, loadedPlugin!=null);
 
+            return bundle;
+        } else if (ACTION_RELEASE_DESCRIPTOR.equals(method)) {
+            managerService.releaseDescriptor(arg);
+
             return bundle;
         } else if (ACTION_REBOOT_PLUGIN_PROCESS.equals(method)) {
             mainHandler.post(new Runnable() {
@@ -326,4 +566,59 @@ public class PluginManagerProvider extends ContentProvider {
         return null;
     }
 
+    /**
+     * 插件进程内的调用直接返回对象, 插件进程中的一些地方依赖描述的实例;
+     * 跨进程时用PluginDescriptorCodec编码, 比java序列化小而且快, 并且可以只传需要的字段
+     */
+    private static void putDescriptor(Bundle bundle, String key, PluginDescriptor pluginDescriptor, Bundle extras) {
+        if (pluginDescriptor == null || Binder.getCallingPid() == Process.myPid()) {
+            bundle.putSerializable(key, pluginDescriptor);
+            return;
+        }
+        try {
+            bundle.putByteArray(key, PluginDescriptorCodec.encode(pluginDescriptor, getProjection(extras)));
+        } catch (IOException e) {
+            LogUtil.printException("PluginManagerProvider.putDescriptor", e);
+        }
+    }
+
+    private static void putDescriptorList(Bundle bundle, String key, Collection<PluginDescriptor> list, Bundle extras) {
+        if (Binder.getCallingPid() == Process.myPid()) {
+            bundle.putSerializable(key, new ArrayList<PluginDescriptor>(list));
+            return;
+        }
+        try {
+            bundle.putByteArray(key, PluginDescriptorCodec.encodeList(list, getProjection(extras)));
+        } catch (IOException e) {
+            LogUtil.printException("PluginManagerProvider.putDescriptorList", e);
+        }
+    }
+
+    private static int getProjection(Bundle extras) {
+        return extras == null ? PluginDescriptorCodec.PROJECTION_ALL : extras.getInt(QUERY_PROJECTION, PluginDescriptorCodec.PROJECTION_ALL);
+    }
+
+    private void resolveActivity(Intent intent, Bundle bundle) {
+        ArrayList<String> classNameList = new ArrayList<String>();
+        PluginDescriptor pluginDescriptor = managerService.matchPlugin(intent, PluginDescriptor.ACTIVITY, classNameList);
+        if (pluginDescriptor == null) {
+            if (intent.getComponent() != null) {
+                //没有匹配到, 告诉调用方intent里面指定的packageName是不是插件
+                bundle.putBoolean(RESOLVE_ACTIVITY_IS_PLUGIN_PACKAGE,
+                        managerService.getPluginDescriptorByPluginId(intent.getComponent().getPackageName()) != null);
+            }
+            return;
+        }
+        //多个Activity匹配到同一个Intent时不弹出选择框, 取第一个匹配到的,
+        //顺序是插件在IntentFilter索引中的顺序、插件内组件声明的顺序, 和PluginIntentResolver匹配Service的规则相同,
+        //第一个类名一定属于返回的插件
+        if (classNameList.size() > 1) {
+            LogUtil.w("多个Activity匹配到同一个Intent, 取第一个", classNameList);
+        }
+        String className = classNameList.get(0);
+        bundle.putString(RESOLVE_ACTIVITY_CLASS, className);
+        bundle.putString(RESOLVE_ACTIVITY_PLUGIN, pluginDescriptor.getPackageName());
+        bundle.putString(RESOLVE_ACTIVITY_STUB, PluginStubBinding.bindStub(className, pluginDescriptor.getPackageName(), StubMappingProcessor.TYPE_ACTIVITY));
+    }
+
 }
@@ -3,19 +3,33 @@ package com.limpoxe.fairy.manager;
 import android.annotation.TargetApi;
 import android.content.ContentResolver;
 import android.content.ContentValues;
+import android.content.Intent;
 import android.database.Cursor;
 import android.net.Uri;
 import android.os.Build;
 import android.os.Bundle;
 import android.os.CancellationSignal;
+import android.os.Handler;
+import android.os.IBinder;
+import android.os.Looper;
 import android.os.ParcelFileDescriptor;
+import android.os.Process;
+import android.os.RemoteException;
 
 import com.limpoxe.fairy.content.PluginDescriptor;
+import com.limpoxe.fairy.content.PluginDescriptorCodec;
 import com.limpoxe.fairy.core.FairyGlobal;
+import com.limpoxe.fairy.core.compat.CompatForBundle;
 import com.limpoxe.fairy.core.compat.CompatForContentProvider;
 import com.limpoxe.fairy.util.LogUtil;
+import com.limpoxe.fairy.util.ProcessUtil;
 
+import java.io.IOException;
 import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
 
 import static com.limpoxe.fairy.core.bridge.ProviderClientProxy.TARGET_URL;
 
@@ -25,14 +39,177 @@ import static com.limpoxe.fairy.core.bridge.ProviderClientProxy.TARGET_URL;
  */
 public class PluginManagerProviderClient {
 
-    @SuppressWarnings("unchecked")
+    private static final PluginDescriptorCache sCache = new PluginDescriptorCache();
+
+    /**
+     * 非插件进程优先读插件进程发布的快照, 没有快照时才跨进程查询
+     */
+    private static PluginRegistrySnapshot snapshot() {
+        if (ProcessUtil.isPluginProcess()) {
+            return null;
+        }
+        PluginRegistrySnapshot snapshot = PluginRegistrySnapshot.current();
+        if (snapshot != null) {
+            //快照和查询结果使用同一个generation, 读到更新的快照时缓存也随之失效
+            sCache.invalidate(snapshot.getGeneration());
+        }
+        return snapshot;
+    }
+
+    private static volatile IPluginManager sManager;
+    //只保护sManager的发布, 不在锁内做跨进程调用
+    private static final Object sManagerLock = new Object();
+
+    /**
+     * 非插件进程中缓存插件进程的IPluginManager, 高频调用直接走binder, 不再经过provider
+     * 插件进程中仍走provider, 查询结果是描述对象本身
+     *
+     * 获取binder是一次provider调用, 在锁外进行, 多个线程同时获取时以先发布的为准
+     * @return 获取失败返回null, 调用方改走provider
+     */
+    private static IPluginManager manager() {
+        if (ProcessUtil.isPluginProcess()) {
+            return null;
+        }
+        IPluginManager manager = sManager;
+        if (manager != null && manager.asBinder().isBinderAlive()) {
+            return manager;
+        }
+        Bundle bundle = CompatForContentProvider.call(PluginManagerProvider.buildUri(),
+                PluginManagerProvider.ACTION_GET_BINDER, null, null);
+        if (bundle == null) {
+            return null;
+        }
+        IBinder binder = CompatForBundle.getBinder(bundle, PluginManagerProvider.GET_BINDER_RESULT);
+        if (binder == null) {
+            return null;
+        }
+        final IPluginManager fetched = PluginIpcMetrics.wrap(IPluginManager.Stub.asInterface(binder));
+        IBinder.DeathRecipient recipient = new IBinder.DeathRecipient() {
+            @Override
+            public void binderDied() {
+                //插件进程重启后重新获取, 只清除自己发布的那个
+                synchronized (sManagerLock) {
+                    if (sManager == fetched) {
+                        sManager = null;
+                    }
+                }
+            }
+        };
+        try {
+            binder.linkToDeath(recipient, 0);
+        } catch (RemoteException e) {
+            LogUtil.printException("PluginManagerProviderClient.manager", e);
+            return null;
+        }
+        synchronized (sManagerLock) {
+            manager = sManager;
+            if (manager != null && manager.asBinder().isBinderAlive()) {
+                //其他线程已经发布过
+                binder.unlinkToDeath(recipient, 0);
+                return manager;
+            }
+            sManager = fetched;
+        }
+        try {
+            //订阅已安装列表的变化, 缓存可以立即失效, 不用等广播
+            fetched.registerChangeListener(sChangeListener);
+        } catch (RemoteException e) {
+            LogUtil.printException("PluginManagerProviderClient.manager", e);
+        }
+        return fetched;
+    }
+
+    private static void resetManager() {
+        sManager = null;
+    }
+
+    private static final ArrayList<PluginRegistryListener> sRegistryListeners = new ArrayList<PluginRegistryListener>();
+    private static Handler sMainHandler;
+
+    private static final IPluginChangeListener.Stub sChangeListener = new IPluginChangeListener.Stub() {
+        @Override
+        public void onPluginChanged(final int event, final String packageName, final String version, final long generation) {
+            sCache.invalidate(generation);
+            final PluginRegistryListener[] listeners;
+            synchronized (sRegistryListeners) {
+                if (sRegistryListeners.isEmpty()) {
+                    return;
+                }
+                listeners = sRegistryListeners.toArray(new PluginRegistryListener[sRegistryListeners.size()]);
+                if (sMainHandler == null) {
+                    sMainHandler = new Handler(Looper.getMainLooper());
+                }
+            }
+            sMainHandler.post(new Runnable() {
+                @Override
+                public void run() {
+                    for (PluginRegistryListener listener : listeners) {
+                        listener.onRegistryChanged(event, packageName, version, generation);
+                    }
+                }
+            });
+        }
+    };
+
+    /**
+     * 监听已安装列表的变化, 在主线程中回调
+     */
+    public static void addRegistryListener(PluginRegistryListener listener) {
+        synchronized (sRegistryListeners) {
+            if (!sRegistryListeners.contains(listener)) {
+                sRegistryListeners.add(listener);
+            }
+        }
+        if (ProcessUtil.isPluginProcess()) {
+            //重复注册同一个binder不会重复回调
+            PluginChangeFeed.instance().register(sChangeListener);
+        } else {
+            //获取IPluginManager时会订阅
+            manager();
+        }
+    }
+
+    public static void removeRegistryListener(PluginRegistryListener listener) {
+        synchronized (sRegistryListeners) {
+            sRegistryListeners.remove(listener);
+        }
+    }
+
     public static ArrayList<PluginDescriptor> queryAll() {
+        return queryAll(PluginDescriptorCodec.PROJECTION_ALL);
+    }
+
+    /**
+     * @param projection 需要的字段, 见PluginDescriptorCodec.PROJECTION_*, 只在跨进程查询时生效, 其他情况下返回完整的描述
+     */
+    @SuppressWarnings("unchecked")
+    public static ArrayList<PluginDescriptor> queryAll(int projection) {
+        PluginRegistrySnapshot snapshot = snapshot();
+        if (snapshot != null) {
+            return snapshot.queryAll();
+        }
+
+        Bundle extras = null;
+        if (projection != PluginDescriptorCodec.PROJECTION_ALL) {
+            extras = new Bundle();
+            extras.putInt(PluginManagerProvider.QUERY_PROJECTION, projection);
+        }
         Bundle bundle = CompatForContentProvider.call(PluginManagerProvider.buildUri(),
-                PluginManagerProvider.ACTION_QUERY_ALL, null, null);
+                PluginManagerProvider.ACTION_QUERY_ALL, null, extras);
 
         ArrayList<PluginDescriptor> list = null;
         if (bundle != null) {
-            list = (ArrayList<PluginDescriptor>)bundle.getSerializable(PluginManagerProvider.QUERY_ALL_RESULT);
+            Object result = bundle.get(PluginManagerProvider.QUERY_ALL_RESULT);
+            if (result instanceof byte[]) {
+                try {
+                    list = PluginDescriptorCodec.decodeList((byte[]) result);
+                } catch (IOException e) {
+                    LogUtil.printException("PluginManagerProviderClient.queryAll", e);
+                }
+            } else {
+                list = (ArrayList<PluginDescriptor>) result;
+            }
         }
         //防止NPE
         if (list == null) {
@@ -41,30 +218,198 @@ public class PluginManagerProviderClient {
         return list;
     }
 
-    public static PluginDescriptor queryById(String pluginId) {
+    /**
+     * @return 包名到(localservice名字到实现类), 插件进程启动时注册localservice使用, 不需要展开插件描述
+     */
+    @SuppressWarnings("unchecked")
+    public static HashMap<String, HashMap<String, String>> queryLocalServices() {
         Bundle bundle = CompatForContentProvider.call(PluginManagerProvider.buildUri(),
-                PluginManagerProvider.ACTION_QUERY_BY_ID, pluginId, null);
+                PluginManagerProvider.ACTION_QUERY_LOCAL_SERVICES, null, null);
+        HashMap<String, HashMap<String, String>> result = null;
         if (bundle != null) {
-            return (PluginDescriptor) bundle.getSerializable(PluginManagerProvider.QUERY_BY_ID_RESULT);
+            result = (HashMap<String, HashMap<String, String>>) bundle.getSerializable(PluginManagerProvider.QUERY_LOCAL_SERVICES_RESULT);
         }
-        return null;
+        //防止NPE
+        if (result == null) {
+            result = new HashMap<String, HashMap<String, String>>();
+        }
+        return result;
     }
 
-    public static PluginDescriptor queryByClass(String clazzName) {
+    /**
+     * 分页遍历已安装插件, 只传输需要的那部分
+     * @param filter 见PluginDescriptorPager.FILTER_*
+     * @param projection 见PluginDescriptorCodec.PROJECTION_*
+     */
+    public static Iterator<PluginDescriptor> iterate(int filter, int projection) {
+        PluginRegistrySnapshot snapshot = snapshot();
+        if (snapshot != null) {
+            return new PluginDescriptorPager(snapshot.queryAll(), filter);
+        }
+        return new PluginDescriptorPager(filter, projection);
+    }
+
+    static class Page {
+        final ArrayList<PluginDescriptor> descriptors;
+        final String nextAfter;
+
+        Page(ArrayList<PluginDescriptor> descriptors, String nextAfter) {
+            this.descriptors = descriptors;
+            this.nextAfter = nextAfter;
+        }
+    }
+
+    @SuppressWarnings("unchecked")
+    static Page queryPage(String after, int size, int filter, int projection) {
+        Bundle extras = new Bundle();
+        extras.putString(PluginManagerProvider.QUERY_PAGE_AFTER, after);
+        extras.putInt(PluginManagerProvider.QUERY_PAGE_SIZE, size);
+        extras.putInt(PluginManagerProvider.QUERY_PAGE_FILTER, filter);
+        extras.putInt(PluginManagerProvider.QUERY_PROJECTION, projection);
         Bundle bundle = CompatForContentProvider.call(PluginManagerProvider.buildUri(),
-                PluginManagerProvider.ACTION_QUERY_BY_CLASS_NAME, clazzName, null);
-        if (bundle != null) {
-            return (PluginDescriptor)bundle.getSerializable(PluginManagerProvider.QUERY_BY_CLASS_NAME_RESULT);
+                PluginManagerProvider.ACTION_QUERY_PAGE, null, extras);
+        if (bundle == null) {
+            return null;
         }
-        return null;
+        ArrayList<PluginDescriptor> list = null;
+        Object result = bundle.get(PluginManagerProvider.QUERY_PAGE_RESULT);
+        if (result instanceof byte[]) {
+            try {
+                list = PluginDescriptorCodec.decodeList((byte[]) result);
+            } catch (IOException e) {
+                LogUtil.printException("PluginManagerProviderClient.queryPage", e);
+                return null;
+            }
+        } else if (result != null) {
+            list = (ArrayList<PluginDescriptor>) result;
+        }
+        if (list == null) {
+            return null;
+        }
+        return new Page(list, bundle.getString(PluginManagerProvider.QUERY_PAGE_NEXT));
+    }
+
+    public static PluginDescriptor queryById(String pluginId) {
+        PluginRegistrySnapshot snapshot = snapshot();
+        if (snapshot != null) {
+            return snapshot.queryById(pluginId);
+        }
+        return query(PluginDescriptorCache.BY_ID, pluginId);
+    }
+
+    public static PluginDescriptor queryByClass(String clazzName) {
+        PluginRegistrySnapshot snapshot = snapshot();
+        if (snapshot != null) {
+            return snapshot.queryByClassName(clazzName);
+        }
+        return query(PluginDescriptorCache.BY_CLASS, clazzName);
     }
 
     public static PluginDescriptor queryByFragment(String clazzId) {
+        PluginRegistrySnapshot snapshot = snapshot();
+        if (snapshot != null) {
+            return snapshot.queryByFragmentId(clazzId);
+        }
+        return query(PluginDescriptorCache.BY_FRAGMENT, clazzId);
+    }
+
+    /**
+     * 快照中没有authority的索引, 直接查询插件进程, 结果同样缓存
+     */
+    public static PluginDescriptor queryByAuthority(String authority) {
+        return query(PluginDescriptorCache.BY_AUTHORITY, authority);
+    }
+
+    private static final PluginQueryCoalescer sCoalescer = new PluginQueryCoalescer(new PluginQueryCoalescer.Fetcher() {
+        @Override
+        public PluginDescriptor fetch(int type, String key, long epoch) {
+            return fetchDescriptor(type, key, epoch);
+        }
+    });
+
+    private static PluginDescriptor query(int type, String key) {
+        Object cached = sCache.get(type, key);
+        if (cached != PluginDescriptorCache.MISS) {
+            return (PluginDescriptor) cached;
+        }
+        //同时查询同一个key的线程共享一次跨进程调用, 缓存清空之前发起的查询不共享
+        return sCoalescer.query(type, key, sCache.getEpoch());
+    }
+
+    /**
+     * 跨进程查询并放入缓存
+     * @param type PluginDescriptorCache.BY_*
+     * @param epoch 发起查询时缓存的epoch
+     */
+    private static PluginDescriptor fetchDescriptor(int type, String key, long epoch) {
+        //IPluginManager没有按authority查询的方法, 走provider
+        IPluginManager manager = type == PluginDescriptorCache.BY_AUTHORITY ? null : manager();
+        if (manager != null) {
+            try {
+                long[] generation = new long[1];
+                byte[] result;
+                if (type == PluginDescriptorCache.BY_CLASS) {
+                    result = manager.queryByClassName(key, PluginDescriptorCodec.PROJECTION_ALL, generation);
+                } else if (type == PluginDescriptorCache.BY_FRAGMENT) {
+                    result = manager.queryByFragmentId(key, PluginDescriptorCodec.PROJECTION_ALL, generation);
+                } else {
+                    result = manager.queryById(key, PluginDescriptorCodec.PROJECTION_ALL, generation);
+                }
+                PluginDescriptor pluginDescriptor = decode(result);
+                if (result == null || pluginDescriptor != null) {
+                    sCache.put(type, key, pluginDescriptor, generation[0], epoch);
+                }
+                return pluginDescriptor;
+            } catch (RemoteException e) {
+                LogUtil.printException("PluginManagerProviderClient.fetchDescriptor", e);
+                resetManager();
+            }
+        }
 
+        String method;
+        String resultKey;
+        if (type == PluginDescriptorCache.BY_CLASS) {
+            method = PluginManagerProvider.ACTION_QUERY_BY_CLASS_NAME;
+            resultKey = PluginManagerProvider.QUERY_BY_CLASS_NAME_RESULT;
+        } else if (type == PluginDescriptorCache.BY_FRAGMENT) {
+            method = PluginManagerProvider.ACTION_QUERY_BY_FRAGMENT_ID;
+            resultKey = PluginManagerProvider.QUERY_BY_FRAGMENT_ID_RESULT;
+        } else if (type == PluginDescriptorCache.BY_AUTHORITY) {
+            method = PluginManagerProvider.ACTION_QUERY_BY_AUTHORITY;
+            resultKey = PluginManagerProvider.QUERY_BY_AUTHORITY_RESULT;
+        } else {
+            method = PluginManagerProvider.ACTION_QUERY_BY_ID;
+            resultKey = PluginManagerProvider.QUERY_BY_ID_RESULT;
+        }
         Bundle bundle = CompatForContentProvider.call(PluginManagerProvider.buildUri(),
-                PluginManagerProvider.ACTION_QUERY_BY_FRAGMENT_ID, clazzId, null);
+                method, key, null);
         if (bundle != null) {
-            return (PluginDescriptor)bundle.getSerializable(PluginManagerProvider.QUERY_BY_FRAGMENT_ID_RESULT);
+            PluginDescriptor pluginDescriptor = readDescriptor(bundle, resultKey);
+            sCache.put(type, key, pluginDescriptor, bundle.getLong(PluginManagerProvider.REGISTRY_GENERATION, -1), epoch);
+            return pluginDescriptor;
+        }
+        return null;
+    }
+
+    /**
+     * 跨进程时是PluginDescriptorCodec编码的byte[], 进程内是对象本身
+     */
+    private static PluginDescriptor readDescriptor(Bundle bundle, String key) {
+        Object result = bundle.get(key);
+        if (result instanceof byte[]) {
+            return decode((byte[]) result);
+        }
+        return (PluginDescriptor) result;
+    }
+
+    private static PluginDescriptor decode(byte[] data) {
+        if (data == null) {
+            return null;
+        }
+        try {
+            return PluginDescriptorCodec.decode(data);
+        } catch (IOException e) {
+            LogUtil.printException("PluginManagerProviderClient.decode", e);
         }
         return null;
     }
@@ -72,6 +417,8 @@ public class PluginManagerProviderClient {
     public static int install(String srcFile) {
         Bundle bundle = CompatForContentProvider.call(PluginManagerProvider.buildUri(),
                 PluginManagerProvider.ACTION_INSTALL, srcFile, null);
+        //本进程内立即生效, 其他进程等广播
+        sCache.clear();
 
         int result = PluginManagerHelper.INSTALL_FAIL;//install-Fail
         if (bundle != null) {
@@ -80,18 +427,105 @@ public class PluginManagerProviderClient {
         return result;
     }
 
+    public static int[] installAll(String[] srcFiles) {
+        Bundle extras = new Bundle();
+        extras.putStringArray(PluginManagerProvider.INSTALL_BATCH_SRC, srcFiles);
+        Bundle bundle = CompatForContentProvider.call(PluginManagerProvider.buildUri(),
+                PluginManagerProvider.ACTION_INSTALL_BATCH, null, extras);
+        //本进程内立即生效, 其他进程等广播
+        sCache.clear();
+
+        int[] result = null;
+        if (bundle != null) {
+            result = bundle.getIntArray(PluginManagerProvider.INSTALL_BATCH_RESULT);
+        }
+        if (result == null) {
+            result = new int[srcFiles.length];
+            Arrays.fill(result, PluginManagerHelper.INSTALL_FAIL);
+        }
+        return result;
+    }
+
+    public static int installPatch(String patchFile) {
+        Bundle bundle = CompatForContentProvider.call(PluginManagerProvider.buildUri(),
+                PluginManagerProvider.ACTION_INSTALL_PATCH, patchFile, null);
+        //本进程内立即生效, 其他进程等广播
+        sCache.clear();
+
+        int result = PluginManagerHelper.INSTALL_FAIL;
+        if (bundle != null) {
+            result = bundle.getInt(PluginManagerProvider.INSTALL_PATCH_RESULT);
+        }
+        return result;
+    }
+
     public static synchronized int remove(String pluginId) {
         Bundle result = CompatForContentProvider.call(PluginManagerProvider.buildUri(),
                 PluginManagerProvider.ACTION_REMOVE, pluginId, null);
+        //本进程内立即生效, 其他进程等广播
+        sCache.clear();
         if (result != null) {
             return result.getInt(PluginManagerProvider.REMOVE_RESULT, PluginManagerHelper.REMOVE_FAIL);
         }
         return PluginManagerHelper.REMOVE_FAIL;
     }
 
+    /**
+     * 异步安装、卸载, 见PluginInstallHandle
+     * @return 调用失败返回null
+     */
+    public static PluginInstallHandle startSession(int type, String target) {
+        String method;
+        if (type == PluginInstallHandle.TYPE_INSTALL) {
+            method = PluginManagerProvider.ACTION_INSTALL_ASYNC;
+        } else if (type == PluginInstallHandle.TYPE_PATCH) {
+            method = PluginManagerProvider.ACTION_INSTALL_PATCH_ASYNC;
+        } else {
+            method = PluginManagerProvider.ACTION_REMOVE_ASYNC;
+        }
+        Bundle bundle = CompatForContentProvider.call(PluginManagerProvider.buildUri(),
+                method, target, null);
+        if (bundle != null && bundle.containsKey(PluginManagerProvider.SESSION_ID)) {
+            return new PluginInstallHandle(bundle.getInt(PluginManagerProvider.SESSION_ID), type, target,
+                    PluginStatusChangeListener.STAGE_QUEUED);
+        }
+        return null;
+    }
+
+    public static boolean cancelSession(int sessionId) {
+        Bundle extras = new Bundle();
+        extras.putInt(PluginManagerProvider.SESSION_ID, sessionId);
+        Bundle bundle = CompatForContentProvider.call(PluginManagerProvider.buildUri(),
+                PluginManagerProvider.ACTION_CANCEL_SESSION, null, extras);
+        if (bundle != null) {
+            return bundle.getBoolean(PluginManagerProvider.CANCEL_SESSION_RESULT);
+        }
+        return false;
+    }
+
+    public static ArrayList<PluginInstallHandle> querySessions() {
+        ArrayList<PluginInstallHandle> list = new ArrayList<PluginInstallHandle>();
+        Bundle bundle = CompatForContentProvider.call(PluginManagerProvider.buildUri(),
+                PluginManagerProvider.ACTION_QUERY_SESSIONS, null, null);
+        if (bundle != null) {
+            int[] ids = bundle.getIntArray(PluginManagerProvider.QUERY_SESSIONS_IDS);
+            int[] types = bundle.getIntArray(PluginManagerProvider.QUERY_SESSIONS_TYPES);
+            String[] targets = bundle.getStringArray(PluginManagerProvider.QUERY_SESSIONS_TARGETS);
+            int[] stages = bundle.getIntArray(PluginManagerProvider.QUERY_SESSIONS_STAGES);
+            if (ids != null && types != null && targets != null && stages != null) {
+                for (int i = 0; i < ids.length; i++) {
+                    list.add(new PluginInstallHandle(ids[i], types[i], targets[i], stages[i]));
+                }
+            }
+        }
+        return list;
+    }
+
     public static synchronized boolean removeAll() {
         Bundle bundle = CompatForContentProvider.call(PluginManagerProvider.buildUri(),
                 PluginManagerProvider.ACTION_REMOVE_ALL, null, null);
+        //本进程内立即生效, 其他进程等广播
+        sCache.clear();
         if (bundle != null) {
             return bundle.getBoolean(PluginManagerProvider.REMOVE_ALL_RESULT);
         }
@@ -99,6 +533,15 @@ public class PluginManagerProviderClient {
     }
 
     public static String bindStubReceiver(String className) {
+        IPluginManager manager = manager();
+        if (manager != null) {
+            try {
+                return manager.bindStubReceiver(className);
+            } catch (RemoteException e) {
+                LogUtil.printException("PluginManagerProviderClient.bindStubReceiver", e);
+                resetManager();
+            }
+        }
         Bundle bundle = CompatForContentProvider.call(PluginManagerProvider.buildUri(),
                 PluginManagerProvider.ACTION_BIND_RECEIVER, className, null);
         if (bundle != null) {
@@ -108,6 +551,15 @@ public class PluginManagerProviderClient {
     }
 
     public static String bindStubActivity(String pluginActivityClassName, int launchMode, String packageName, String themeId, String orientation) {
+        IPluginManager manager = manager();
+        if (manager != null) {
+            try {
+                return manager.bindStubActivity(pluginActivityClassName, packageName);
+            } catch (RemoteException e) {
+                LogUtil.printException("PluginManagerProviderClient.bindStubActivity", e);
+                resetManager();
+            }
+        }
         Bundle arg = new Bundle();
         arg.putInt("launchMode", launchMode);
         arg.putString("packageName", packageName);
@@ -124,7 +576,79 @@ public class PluginManagerProviderClient {
         return null;
     }
 
+    /**
+     * 匹配intent并绑定stub activity, 只需要一次跨进程调用
+     * @return 结果见PluginManagerProvider.RESOLVE_ACTIVITY_*, 调用失败返回null
+     */
+    public static Bundle resolveActivity(Intent intent) {
+        //extras中可能有插件的Parcelable, 匹配时用不到, 不传过去
+        Intent target = new Intent(intent);
+        target.replaceExtras((Bundle) null);
+        Bundle extras = new Bundle();
+        extras.putParcelable(PluginManagerProvider.RESOLVE_INTENT, target);
+        return CompatForContentProvider.call(PluginManagerProvider.buildUri(),
+                PluginManagerProvider.ACTION_RESOLVE_ACTIVITY, null, extras);
+    }
+
+    /**
+     * 在插件进程中匹配intent
+     * @param type PluginDescriptor.ACTIVITY、SERVICE、BROADCAST
+     * @return 匹配到的类名, 没有匹配到或者调用失败返回null
+     */
+    public static ArrayList<String> resolveIntent(Intent intent, int type) {
+        //extras中可能有插件的Parcelable, 匹配时用不到, 不传过去
+        Intent target = new Intent(intent);
+        target.replaceExtras((Bundle) null);
+        IPluginManager manager = manager();
+        if (manager != null) {
+            try {
+                List<String> result = manager.resolveIntent(target, type);
+                return result == null || result.isEmpty() ? null : new ArrayList<String>(result);
+            } catch (RemoteException e) {
+                LogUtil.printException("PluginManagerProviderClient.resolveIntent", e);
+                resetManager();
+            }
+        }
+        Bundle extras = new Bundle();
+        extras.putParcelable(PluginManagerProvider.RESOLVE_INTENT, target);
+        extras.putInt(PluginManagerProvider.RESOLVE_INTENT_TYPE, type);
+        Bundle bundle = CompatForContentProvider.call(PluginManagerProvider.buildUri(),
+                PluginManagerProvider.ACTION_RESOLVE_INTENT, null, extras);
+        if (bundle != null) {
+            ArrayList<String> result = bundle.getStringArrayList(PluginManagerProvider.RESOLVE_INTENT_RESULT);
+            if (result != null && result.size() > 0) {
+                return result;
+            }
+        }
+        return null;
+    }
+
+    /**
+     * 执行批量操作, 见PluginManagerBatch
+     */
+    static ArrayList<Bundle> batch(String[] methods, String[] args, ArrayList<Bundle> argExtras) {
+        Bundle extras = new Bundle();
+        extras.putStringArray(PluginManagerProvider.BATCH_METHODS, methods);
+        extras.putStringArray(PluginManagerProvider.BATCH_ARGS, args);
+        extras.putParcelableArrayList(PluginManagerProvider.BATCH_EXTRAS, argExtras);
+        Bundle bundle = CompatForContentProvider.call(PluginManagerProvider.buildUri(),
+                PluginManagerProvider.ACTION_BATCH, null, extras);
+        if (bundle != null) {
+            return bundle.getParcelableArrayList(PluginManagerProvider.BATCH_RESULT);
+        }
+        return null;
+    }
+
     public static boolean isExact(String name, int type) {
+        IPluginManager manager = manager();
+        if (manager != null) {
+            try {
+                return manager.isExact(name, type);
+            } catch (RemoteException e) {
+                LogUtil.printException("PluginManagerProviderClient.isExact", e);
+                resetManager();
+            }
+        }
         Bundle arg = new Bundle();
         arg.putInt("type", type);
         Bundle bundle = CompatForContentProvider.call(PluginManagerProvider.buildUri(),
@@ -137,6 +661,16 @@ public class PluginManagerProviderClient {
     }
 
     public static void unBindLaunchModeStubActivity(String activityName, String className) {
+        IPluginManager manager = manager();
+        if (manager != null) {
+            try {
+                manager.unBindStubActivity(activityName, className);
+                return;
+            } catch (RemoteException e) {
+                LogUtil.printException("PluginManagerProviderClient.unBindLaunchModeStubActivity", e);
+                resetManager();
+            }
+        }
         Bundle arg = new Bundle();
         arg.putString("className", className);
         CompatForContentProvider.call(PluginManagerProvider.buildUri(),
@@ -145,6 +679,15 @@ public class PluginManagerProviderClient {
     }
 
     public static String getBindedPluginServiceName(String stubServiceName) {
+        IPluginManager manager = manager();
+        if (manager != null) {
+            try {
+                return manager.getBindedPluginService(stubServiceName);
+            } catch (RemoteException e) {
+                LogUtil.printException("PluginManagerProviderClient.getBindedPluginServiceName", e);
+                resetManager();
+            }
+        }
         Bundle bundle = CompatForContentProvider.call(PluginManagerProvider.buildUri(),
                 PluginManagerProvider.ACTION_GET_BINDED_SERVICE,
                 stubServiceName, null);
@@ -155,6 +698,15 @@ public class PluginManagerProviderClient {
     }
 
     public static String bindStubService(String pluginServiceClassName) {
+        IPluginManager manager = manager();
+        if (manager != null) {
+            try {
+                return manager.bindStubService(pluginServiceClassName);
+            } catch (RemoteException e) {
+                LogUtil.printException("PluginManagerProviderClient.bindStubService", e);
+                resetManager();
+            }
+        }
         Bundle bundle = CompatForContentProvider.call(PluginManagerProvider.buildUri(),
                 PluginManagerProvider.ACTION_BIND_SERVICE,
                 pluginServiceClassName, null);
@@ -165,6 +717,16 @@ public class PluginManagerProviderClient {
     }
 
     public static void unBindStubService(String pluginServiceName) {
+        IPluginManager manager = manager();
+        if (manager != null) {
+            try {
+                manager.unBindStubService(pluginServiceName);
+                return;
+            } catch (RemoteException e) {
+                LogUtil.printException("PluginManagerProviderClient.unBindStubService", e);
+                resetManager();
+            }
+        }
         CompatForContentProvider.call(PluginManagerProvider.buildUri(),
                 PluginManagerProvider.ACTION_UNBIND_SERVICE,
                 pluginServiceName, null);
@@ -172,6 +734,15 @@ public class PluginManagerProviderClient {
 
     public static boolean isStub(String className) {
         //这里如果约定stub组件的名字以特定词开头可以省去provider调用，减少跨进程，提高效率
+        IPluginManager manager = manager();
+        if (manager != null) {
+            try {
+                return manager.isStub(className);
+            } catch (RemoteException e) {
+                LogUtil.printException("PluginManagerProviderClient.isStub", e);
+                resetManager();
+            }
+        }
         Bundle bundle = CompatForContentProvider.call(PluginManagerProvider.buildUri(),
                 PluginManagerProvider.ACTION_IS_STUB,
                 className, null);
@@ -181,6 +752,23 @@ public class PluginManagerProviderClient {
         return false;
     }
 
+    /**
+     * 本进程和插件进程的跨进程调用统计
+     */
+    public static String dumpIpcMetrics() {
+        StringBuilder sb = new StringBuilder();
+        sb.append("[client pid:").append(Process.myPid()).append("]\n")
+                .append(PluginIpcMetrics.dump(PluginIpcMetrics.SIDE_CLIENT))
+                .append("coalesced ").append(sCoalescer.getCoalescedCount())
+                .append(" of ").append(sCoalescer.getRequestCount()).append(" queries\n");
+        Bundle bundle = CompatForContentProvider.call(PluginManagerProvider.buildUri(),
+                PluginManagerProvider.ACTION_DUMP_METRICS, null, null);
+        if (bundle != null) {
+            sb.append("[server]\n").append(bundle.getString(PluginManagerProvider.DUMP_METRICS_RESULT));
+        }
+        return sb.toString();
+    }
+
     public static String dumpServiceInfo() {
         Bundle bundle = CompatForContentProvider.call(PluginManagerProvider.buildUri(),
                 PluginManagerProvider.ACTION_DUMP_SERVICE_INFO,
@@ -213,6 +801,14 @@ public class PluginManagerProviderClient {
         return false;
     }
 
+    /**
+     * 插件进程中卸载空闲插件后调用, 描述不再需要常驻内存
+     */
+    public static void releaseDescriptor(String pluginId) {
+        CompatForContentProvider.call(PluginManagerProvider.buildUri(),
+                PluginManagerProvider.ACTION_RELEASE_DESCRIPTOR, pluginId, null);
+    }
+
     /********Provider Begin********/
     public static Cursor query(Uri url, String[] projection, String selection, String[] selectionArgs, String sortOrder) {
         Uri newUri = buildNewUri(url);
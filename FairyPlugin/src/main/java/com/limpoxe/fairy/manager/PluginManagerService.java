@@ -1,50 +1,127 @@
 package com.limpoxe.fairy.manager;
 
 import android.content.Context;
-import android.content.SharedPreferences;
+import android.content.Intent;
 import android.content.pm.ApplicationInfo;
 import android.content.pm.PackageInfo;
 import android.content.pm.PackageManager;
 import android.content.pm.Signature;
 import android.os.Build;
 import android.text.TextUtils;
-import android.util.Base64;
 
 import com.limpoxe.fairy.content.PluginDescriptor;
 import com.limpoxe.fairy.core.FairyGlobal;
-import com.limpoxe.fairy.core.PluginCreator;
 import com.limpoxe.fairy.core.PluginLauncher;
 import com.limpoxe.fairy.core.localservice.LocalServiceManager;
+import com.limpoxe.fairy.util.ApkSignatureSchemeV2Verifier;
 import com.limpoxe.fairy.util.FileUtil;
 import com.limpoxe.fairy.util.LogUtil;
 import com.limpoxe.fairy.util.PackageVerifyer;
 import com.limpoxe.fairy.util.ProcessUtil;
 
-import java.io.ByteArrayInputStream;
-import java.io.ByteArrayOutputStream;
 import java.io.File;
 import java.io.IOException;
-import java.io.ObjectInputStream;
-import java.io.ObjectOutputStream;
-import java.io.Serializable;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
 import java.util.Collection;
+import java.util.Collections;
+import java.util.HashMap;
 import java.util.Hashtable;
 import java.util.Iterator;
+import java.util.LinkedHashMap;
 import java.util.Map;
-import java.util.Set;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
 
 class PluginManagerService {
 
-	private static final String INSTALLED_KEY = "plugins.list";
-	private static final String PENDING_KEY = "plugins.pending";
+	//展开后的描述最多缓存这么多个
+	private static final int MAX_CACHED_DESCRIPTORS = 16;
 
-	private final Hashtable<String, PluginDescriptor> sInstalledPlugins = new Hashtable<String, PluginDescriptor>();
-	private final Hashtable<String, PluginDescriptor> sPendingPlugins = new Hashtable<String, PluginDescriptor>();
+	//已安装列表每次变化时递增, 初始值取启动时间, 并且大于上次发布的快照, 插件进程重启后也不会和之前的重复
+	//快照、查询结果、广播使用同一个generation
+	private static final AtomicLong sGeneration = new AtomicLong(System.currentTimeMillis());
+
+	//已安装插件的索引, 启动时只加载这部分
+	private final Hashtable<String, PluginHeader> sInstalledPlugins = new Hashtable<String, PluginHeader>();
+
+	//已展开的完整描述, 按访问顺序淘汰
+	private final LinkedHashMap<String, PluginDescriptor> mDescriptorCache = new LinkedHashMap<String, PluginDescriptor>(MAX_CACHED_DESCRIPTORS, 0.75f, true) {
+		@Override
+		protected boolean removeEldestEntry(Map.Entry<String, PluginDescriptor> eldest) {
+			if (size() <= MAX_CACHED_DESCRIPTORS) {
+				return false;
+			}
+			//运行中的插件已经填充过metaData的描述正在被使用, PackageManager代理等地方依赖这个实例, 不能丢弃
+			if (eldest.getValue().getMetaData() != null && PluginLauncher.instance().isRunning(eldest.getKey())) {
+				mPinnedDescriptors.put(eldest.getKey(), eldest.getValue());
+			}
+			return true;
+		}
+	};
+
+	private final Hashtable<String, PluginDescriptor> mPinnedDescriptors = new Hashtable<String, PluginDescriptor>();
+
+	//类名、fragment id、localservice名字、authority到包名的索引, 第一次按名字查询时从索引文件读入, 随安装卸载更新
+	private final PluginNameIndex mNameIndex = new PluginNameIndex();
+	private volatile boolean mNameIndexLoaded;
+
+	//所有插件IntentFilter的索引, 按需构建
+	private volatile PluginIntentIndex mIntentIndex;
+
+	private static final int NAME_CLASS = 0;
+	private static final int NAME_FRAGMENT = 1;
+	private static final int NAME_LOCAL_SERVICE = 2;
+	private static final int NAME_AUTHORITY = 3;
+
+	private final PluginStore mStore;
+
+	private final PluginVerifyCache mVerifyCache;
+
+	//给其他进程直接读取的已安装列表快照
+	private final PluginSnapshotWriter mSnapshot;
+	private boolean mSnapshotSynced;
+
+	private static final String APK_NAME = "base-1.apk";
+	private static final String STAGING_DIR_NAME = ".staging";
+
+	//异步安装、卸载, 按提交顺序
+	private final LinkedHashMap<Integer, InstallSession> mSessions = new LinkedHashMap<Integer, InstallSession>();
+	private final AtomicInteger mNextSessionId = new AtomicInteger(1);
+
+	//安装线程数, 同时也是签名校验的线程数
+	private static final int INSTALL_THREADS = Math.max(2, Math.min(4, Runtime.getRuntime().availableProcessors()));
+
+	//批量安装时每个插件一个任务
+	private final ExecutorService mInstallExecutor = newExecutor("plugin-install", INSTALL_THREADS);
+	//签名校验单独一个线程池, 避免安装任务等待校验任务时占满同一个线程池
+	private final ExecutorService mVerifyExecutor = newExecutor("plugin-verify", INSTALL_THREADS);
+
+	//按包名串行同一个插件的安装和卸载
+	private final HashMap<String, Object> mInstallLocks = new HashMap<String, Object>();
 
 	PluginManagerService() {
 		if (!ProcessUtil.isPluginProcess()) {
 			throw new IllegalAccessError("本类仅在插件进程使用");
 		}
+		mStore = new PluginStore(FairyGlobal.getHostApplication().getDir("plugin_registry", Context.MODE_PRIVATE));
+		mVerifyCache = new PluginVerifyCache(new File(FairyGlobal.getHostApplication().getDir("plugin_verify", Context.MODE_PRIVATE), "signatures.cache"));
+		mSnapshot = new PluginSnapshotWriter(PluginRegistrySnapshot.getSnapshotDir());
+		//时钟回拨时也不能小于上次发布的generation
+		long published = mSnapshot.getPublishedGeneration();
+		long current = sGeneration.get();
+		while (current <= published && !sGeneration.compareAndSet(current, published + 1)) {
+			current = sGeneration.get();
+		}
 	}
 
 	/**
@@ -54,81 +131,161 @@ class PluginManagerService {
 		if (pluginId.indexOf(File.separatorChar) >= 0 || pluginVersoin.indexOf(File.separatorChar) >= 0) {
 			throw new IllegalArgumentException("path contains a path separator");
 		}
-		return  getPluginRootDir() + "/" + pluginId + "/" + pluginVersoin + "/base-1.apk";
+		return  getPluginRootDir() + "/" + pluginId + "/" + pluginVersoin + "/" + APK_NAME;
+	}
+
+	/**
+	 * 安装过程中使用的临时目录, 和安装目录在同一个文件系统上,
+	 * 目录结构和安装目录相同, 安装时整体rename过去即可, 不需要再复制
+	 */
+	private File genStagingDir(String srcFileName) {
+		return new File(getPluginRootDir() + "/" + STAGING_DIR_NAME + "/" + System.currentTimeMillis() + "_" + srcFileName);
 	}
 
 	private String getPluginRootDir() {
 		return FairyGlobal.getHostApplication().getDir("plugin_dir", Context.MODE_PRIVATE).getAbsolutePath();
 	}
 
-	@SuppressWarnings("unchecked")
+	static long getGeneration() {
+		return sGeneration.get();
+	}
+
 	synchronized void loadInstalledPlugins() {
 
 		if (sInstalledPlugins.size() == 0) {
 			long t1 = System.currentTimeMillis();
 
-			Hashtable<String, PluginDescriptor> installedPlugin = readPlugins(INSTALLED_KEY);
-			if (installedPlugin != null) {
-				sInstalledPlugins.putAll(installedPlugin);
-			}
+			//先处理中断的安装, 再读取索引
+			recoverTransactions();
 
-			//把pending合并到install
-			Hashtable<String, PluginDescriptor> pendingPlugin = readPlugins(PENDING_KEY);
-			if (pendingPlugin != null) {
-				Iterator<Map.Entry<String, PluginDescriptor>> itr = pendingPlugin.entrySet().iterator();
-				while (itr.hasNext()) {
-					Map.Entry<String, PluginDescriptor> entry = itr.next();
-					//删除旧版
-					remove(entry.getKey());
+			//只加载头部, 完整的描述和名字索引在使用时再读取
+			ArrayList<String> unreadable = new ArrayList<String>();
+			sInstalledPlugins.putAll(mStore.readHeaders(unreadable));
+			for (String packageName : unreadable) {
+				PluginHeader header = recoverFromApk(packageName);
+				if (header != null) {
+					sInstalledPlugins.put(packageName, header);
 				}
-
-				//保存新版
-				sInstalledPlugins.putAll(pendingPlugin);
-				savePlugins(INSTALLED_KEY, sInstalledPlugins);
-
-				//清除pending
-				getSharedPreference().edit().remove(PENDING_KEY).commit();
 			}
 
 			long t2 = System.currentTimeMillis();
 			LogUtil.i("加载所有插件列表, 耗时 : " + (t2 - t1));
+
+			//快照的校验可能需要展开描述, 放到后台, 不影响启动
+			mInstallExecutor.execute(new Runnable() {
+				@Override
+				public void run() {
+					synchronized (PluginManagerService.this) {
+						syncSnapshotLocked();
+					}
+				}
+			});
+		}
+	}
+
+	/**
+	 * 启动后把上次的快照和已安装列表对齐, 只重新生成有变化的插件
+	 * 安装和卸载之前如果后台还没有对齐完成, 先在当前线程对齐, 保证每次变化都会发布新快照,
+	 * 否则其他进程在对齐之前会一直读到旧快照
+	 */
+	private void syncSnapshotLocked() {
+		if (mSnapshotSynced) {
+			return;
+		}
+		long t1 = System.currentTimeMillis();
+		ArrayList<String> stale = mSnapshot.load(sInstalledPlugins);
+		for (String packageName : stale) {
+			PluginHeader header = sInstalledPlugins.get(packageName);
+			PluginDescriptor descriptor = header == null ? null : peek(header);
+			if (descriptor != null) {
+				mSnapshot.put(descriptor);
+			}
+		}
+		mSnapshotSynced = true;
+		if (mSnapshot.isDirty()) {
+			mSnapshot.publish(sGeneration.get());
 		}
+		LogUtil.i("同步插件列表快照", stale.size(), "耗时 : " + (System.currentTimeMillis() - t1));
 	}
 
 	private boolean addOrReplace(PluginDescriptor pluginDescriptor) {
-		sInstalledPlugins.put(pluginDescriptor.getPackageName(), pluginDescriptor);
-        boolean isSaveSuccess = savePlugins(INSTALLED_KEY, sInstalledPlugins);
-        if (!isSaveSuccess) {
-            sInstalledPlugins.remove(pluginDescriptor.getPackageName());
+        syncSnapshotLocked();
+        //先读入旧的名字索引, 再改动已安装列表
+        PluginNameIndex nameIndex = nameIndex();
+        PluginHeader header = mStore.write(pluginDescriptor);
+        boolean isSaveSuccess = header != null;
+        if (isSaveSuccess) {
+            sInstalledPlugins.put(pluginDescriptor.getPackageName(), header);
+            nameIndex.put(PluginNameIndex.Names.of(pluginDescriptor, header.stamp));
+            //写入失败时下次读入会发现stamp不一致, 从记录重建
+            mStore.writeNameIndex(nameIndex.getAll());
+            cache(pluginDescriptor);
+            long generation = sGeneration.incrementAndGet();
+            mSnapshot.put(pluginDescriptor);
+            mSnapshot.publish(generation);
+            //快照发布之后再通知, 客户端收到通知时读到的是新快照
+            PluginChangeFeed.instance().publish(PluginRegistryListener.EVENT_INSTALL,
+                    pluginDescriptor.getPackageName(), pluginDescriptor.getVersion(), generation);
         }
         return isSaveSuccess;
 	}
 
-	private boolean pending(PluginDescriptor pluginDescriptor) {
-		sPendingPlugins.put(pluginDescriptor.getPackageName(), pluginDescriptor);
-		return savePlugins(PENDING_KEY, sPendingPlugins);
-	}
-
 	synchronized boolean removeAll() {
+		syncSnapshotLocked();
 		sInstalledPlugins.clear();
-		boolean isSuccess = savePlugins(INSTALLED_KEY, sInstalledPlugins);
+		synchronized (mNameIndex) {
+			//索引文件随deleteAll一起删除
+			mNameIndex.clear();
+			mNameIndexLoaded = true;
+		}
+		evict(null);
+		long generation = sGeneration.incrementAndGet();
+		boolean isSuccess = mStore.deleteAll();
+		mSnapshot.clear();
+		mSnapshot.publish(generation);
+		PluginChangeFeed.instance().publish(PluginRegistryListener.EVENT_REMOVE_ALL, null, null, generation);
 
 		FileUtil.deleteAll(new File(getPluginRootDir()));
 
 		return isSuccess;
 	}
 
-	synchronized int remove(String pluginId) {
+	int remove(String pluginId) {
+		synchronized (getInstallLock(pluginId)) {
+			synchronized (this) {
+				syncSnapshotLocked();
+				return removeLocked(pluginId);
+			}
+		}
+	}
+
+	private int removeLocked(String pluginId) {
 
-		PluginDescriptor old = sInstalledPlugins.remove(pluginId);
+		PluginNameIndex nameIndex = nameIndex();
+		PluginHeader old = sInstalledPlugins.remove(pluginId);
 
 		boolean result = false;
 
 		if (old != null) {
-			PluginLauncher.instance().stopPlugin(pluginId, old);
-			result = savePlugins(INSTALLED_KEY, sInstalledPlugins);
-			boolean deleteSuccess = FileUtil.deleteAll(new File(old.getInstalledPath()).getParentFile());
-			LogUtil.w("delete old", result, deleteSuccess, old.getInstalledPath(), old.getPackageName());
+			//不能在dexopt的过程中删除文件
+			DexOptScheduler.instance().cancel(pluginId);
+			//未运行的插件不需要为了stopPlugin展开描述
+			if (PluginLauncher.instance().isRunning(pluginId)) {
+				PluginDescriptor oldDescriptor = materialize(old);
+				if (oldDescriptor != null) {
+					PluginLauncher.instance().stopPlugin(pluginId, oldDescriptor);
+				}
+			}
+			nameIndex.remove(pluginId);
+			mStore.writeNameIndex(nameIndex.getAll());
+			evict(pluginId);
+			result = mStore.delete(pluginId);
+			long generation = sGeneration.incrementAndGet();
+			mSnapshot.remove(pluginId);
+			mSnapshot.publish(generation);
+			PluginChangeFeed.instance().publish(PluginRegistryListener.EVENT_REMOVE, old.packageName, old.version, generation);
+			boolean deleteSuccess = FileUtil.deleteAll(new File(old.installedPath).getParentFile());
+			LogUtil.w("delete old", result, deleteSuccess, old.installedPath, old.packageName);
 			if (deleteSuccess) {
 				return PluginManagerHelper.SUCCESS;
 			} else {
@@ -140,53 +297,503 @@ class PluginManagerService {
 		}
 	}
 
+	/**
+	 * 返回所有插件的完整描述, 会展开全部记录, 尽量使用按名字查询的方法
+	 * 展开的结果不放入缓存, 避免一次遍历把缓存中常用的插件全部挤出去
+	 */
 	Collection<PluginDescriptor> getPlugins() {
-		return sInstalledPlugins.values();
+		ArrayList<PluginDescriptor> list = new ArrayList<PluginDescriptor>(sInstalledPlugins.size());
+		Iterator<PluginHeader> itr = new ArrayList<PluginHeader>(sInstalledPlugins.values()).iterator();
+		while (itr.hasNext()) {
+			PluginDescriptor descriptor = peek(itr.next());
+			if (descriptor != null) {
+				list.add(descriptor);
+			}
+		}
+		return list;
 	}
 
 	/**
-	 * for Fragment
+	 * 所有插件声明的localservice, 直接从头部读取, 不展开描述
 	 *
-	 * @param clazzId
-	 * @return
+	 * @return 包名到(localservice名字到实现类)
 	 */
-	PluginDescriptor getPluginDescriptorByFragmenetId(String clazzId) {
-		Iterator<PluginDescriptor> itr = sInstalledPlugins.values().iterator();
+	HashMap<String, HashMap<String, String>> getLocalServices() {
+		HashMap<String, HashMap<String, String>> result = new HashMap<String, HashMap<String, String>>();
+		Iterator<PluginHeader> itr = new ArrayList<PluginHeader>(sInstalledPlugins.values()).iterator();
 		while (itr.hasNext()) {
-			PluginDescriptor descriptor = itr.next();
-			if (descriptor.containsFragment(clazzId)) {
-				return descriptor;
+			PluginHeader header = itr.next();
+			if (header.functions != null && header.functions.size() > 0) {
+				result.put(header.packageName, header.functions);
+			}
+		}
+		return result;
+	}
+
+	/**
+	 * 按包名顺序取after之后满足条件的插件, 最多limit个
+	 *
+	 * @param after 上一页最后一个包名, 第一页传空字符串
+	 * @param filter 见PluginDescriptorPager.FILTER_*
+	 * @return 下一页的起点, 没有下一页时返回null
+	 */
+	String queryPage(String after, int limit, int filter, ArrayList<PluginDescriptor> page) {
+		ArrayList<String> packageNames = new ArrayList<String>(sInstalledPlugins.keySet());
+		Collections.sort(packageNames);
+		String last = null;
+		for (String packageName : packageNames) {
+			if (packageName.compareTo(after) <= 0) {
+				continue;
+			}
+			if (page.size() >= limit) {
+				//还有剩下的
+				return last;
+			}
+			last = packageName;
+			PluginHeader header = sInstalledPlugins.get(packageName);
+			PluginDescriptor descriptor = header == null ? null : peek(header);
+			if (descriptor != null && PluginDescriptorPager.accept(descriptor, filter)) {
+				page.add(descriptor);
 			}
 		}
 		return null;
 	}
 
+	/**
+	 * for Fragment
+	 *
+	 * @param clazzId
+	 * @return
+	 */
+	PluginDescriptor getPluginDescriptorByFragmenetId(String clazzId) {
+		return findByName(clazzId, NAME_FRAGMENT);
+	}
+
 	PluginDescriptor getPluginDescriptorByPluginId(String pluginId) {
-		PluginDescriptor pluginDescriptor = sInstalledPlugins.get(pluginId);
-		if (pluginDescriptor != null && pluginDescriptor.isEnabled()) {
-			return pluginDescriptor;
+		PluginHeader header = sInstalledPlugins.get(pluginId);
+		if (header != null && header.enabled) {
+			return materialize(header);
 		}
 		return null;
 	}
 
 	PluginDescriptor getPluginDescriptorByClassName(String clazzName) {
-		Iterator<PluginDescriptor> itr = sInstalledPlugins.values().iterator();
+		return findByName(clazzName, NAME_CLASS);
+	}
+
+	PluginDescriptor getPluginDescriptorByLocalService(String serviceName) {
+		return findByName(serviceName, NAME_LOCAL_SERVICE);
+	}
+
+	PluginDescriptor getPluginDescriptorByAuthority(String authority) {
+		return findByName(authority, NAME_AUTHORITY);
+	}
+
+	/**
+	 * 在已安装插件中匹配intent, 逻辑和PluginIntentResolver.matchPlugin相同, 在插件进程中执行, 不需要把插件列表传过去
+	 * 没有指定包名时查IntentFilter索引, 不逐个插件匹配
+	 *
+	 * @param classNames 匹配到的类名
+	 * @return 第一个匹配到的插件
+	 */
+	PluginDescriptor matchPlugin(Intent intent, int type, ArrayList<String> classNames) {
+		String packageName = intent.getPackage();
+		if (packageName == null && intent.getComponent() != null) {
+			packageName = intent.getComponent().getPackageName();
+		}
+		//如果指定了packname，就不用遍历插件列表了
+		if (packageName != null && !packageName.equals(FairyGlobal.getHostApplication().getPackageName())) {
+			PluginDescriptor pluginDescriptor = getPluginDescriptorByPluginId(packageName);
+			if (pluginDescriptor != null) {
+				ArrayList<String> list = pluginDescriptor.matchPlugin(intent, type);
+				if (list != null && list.size() > 0) {
+					classNames.addAll(list);
+					return pluginDescriptor;
+				}
+			}
+			return null;
+		}
+		if (intent.getComponent() != null) {
+			//指向宿主包名的组件, 按类名查找
+			PluginDescriptor pluginDescriptor = getPluginDescriptorByClassName(intent.getComponent().getClassName());
+			if (pluginDescriptor != null) {
+				classNames.add(intent.getComponent().getClassName());
+			}
+			return pluginDescriptor;
+		}
+		String matched = getIntentIndex().match(intent, type, classNames);
+		return matched == null ? null : getPluginDescriptorByPluginId(matched);
+	}
+
+	/**
+	 * 已安装列表变化后第一次匹配时重建索引
+	 */
+	private PluginIntentIndex getIntentIndex() {
+		PluginIntentIndex index = mIntentIndex;
+		long generation = sGeneration.get();
+		if (index == null || index.generation != generation) {
+			long t1 = System.currentTimeMillis();
+			index = new PluginIntentIndex(getPlugins(), generation);
+			mIntentIndex = index;
+			LogUtil.i("重建IntentFilter索引, 耗时 : " + (System.currentTimeMillis() - t1));
+		}
+		return index;
+	}
+
+	/**
+	 * 名字索引包含所有已安装插件, 索引中没有就是没有, 不需要逐个插件查找
+	 * 返回值包括未启用的插件
+	 */
+	private PluginDescriptor findByName(String name, int type) {
+		PluginNameIndex nameIndex = nameIndex();
+		String packageName;
+		if (type == NAME_CLASS) {
+			packageName = nameIndex.findByClassName(name);
+		} else if (type == NAME_FRAGMENT) {
+			packageName = nameIndex.findByFragmentId(name);
+		} else if (type == NAME_AUTHORITY) {
+			packageName = nameIndex.findByAuthority(name);
+		} else {
+			packageName = nameIndex.findByLocalService(name);
+		}
+		if (packageName == null) {
+			return null;
+		}
+		//和原来逐个插件查找时一样, 按名字查询不过滤未启用的插件
+		PluginHeader header = sInstalledPlugins.get(packageName);
+		return header == null ? null : materialize(header);
+	}
+
+	/**
+	 * 第一次使用时从索引文件读入名字索引, 不在插件进程启动时读取
+	 * 索引文件中和头部stamp不一致或者缺少的插件从记录重建, 然后改写索引文件
+	 */
+	private PluginNameIndex nameIndex() {
+		if (!mNameIndexLoaded) {
+			synchronized (mNameIndex) {
+				if (!mNameIndexLoaded) {
+					loadNameIndexLocked();
+					mNameIndexLoaded = true;
+				}
+			}
+		}
+		return mNameIndex;
+	}
+
+	private void loadNameIndexLocked() {
+		long t1 = System.currentTimeMillis();
+		ArrayList<PluginNameIndex.Names> stored = mStore.readNameIndex();
+		boolean isDirty = stored == null;
+		if (stored != null) {
+			for (PluginNameIndex.Names names : stored) {
+				PluginHeader header = sInstalledPlugins.get(names.packageName);
+				if (header != null && header.stamp == names.stamp) {
+					mNameIndex.put(names);
+				} else {
+					isDirty = true;
+				}
+			}
+		}
+		int rebuilt = 0;
+		Iterator<PluginHeader> itr = new ArrayList<PluginHeader>(sInstalledPlugins.values()).iterator();
 		while (itr.hasNext()) {
-			PluginDescriptor descriptor = itr.next();
-			if (descriptor.containsName(clazzName)) {
+			PluginHeader header = itr.next();
+			if (mNameIndex.contains(header.packageName)) {
+				continue;
+			}
+			PluginDescriptor descriptor = peek(header);
+			if (descriptor != null) {
+				mNameIndex.put(PluginNameIndex.Names.of(descriptor, header.stamp));
+				rebuilt++;
+			}
+			isDirty = true;
+		}
+		if (isDirty) {
+			mStore.writeNameIndex(mNameIndex.getAll());
+		}
+		LogUtil.i("读取名字索引", "重建", rebuilt, "耗时 : " + (System.currentTimeMillis() - t1));
+	}
+
+	/**
+	 * 记录和记录的body都无法读取时, 从安装目录中的apk重新解析
+	 * 安装时已经校验过签名, 这里不再校验
+	 */
+	private PluginHeader recoverFromApk(String packageName) {
+		File[] versionDirs = new File(getPluginRootDir(), packageName).listFiles();
+		File apk = null;
+		if (versionDirs != null) {
+			for (File versionDir : versionDirs) {
+				File candidate = new File(versionDir, APK_NAME);
+				if (candidate.isFile() && (apk == null || candidate.lastModified() > apk.lastModified())) {
+					apk = candidate;
+				}
+			}
+		}
+		if (apk == null) {
+			LogUtil.e("插件记录已损坏, 也没有找到安装的apk, 忽略", packageName);
+			return null;
+		}
+		PluginDescriptor pluginDescriptor = PluginManifestParser.parseManifest(apk.getAbsolutePath());
+		if (pluginDescriptor == null || !packageName.equals(pluginDescriptor.getPackageName())) {
+			LogUtil.e("插件记录已损坏, 重新解析apk失败, 忽略", packageName, apk.getAbsolutePath());
+			return null;
+		}
+		pluginDescriptor.setInstalledPath(apk.getAbsolutePath());
+		pluginDescriptor.setInstallationTime(apk.lastModified());
+		applyPackageInfo(pluginDescriptor);
+		LogUtil.w("插件记录已损坏, 从apk重建", packageName, apk.getAbsolutePath());
+		return mStore.write(pluginDescriptor);
+	}
+
+	private static void applyPackageInfo(PluginDescriptor pluginDescriptor) {
+		PackageInfo packageInfo = pluginDescriptor.getPackageInfo(PackageManager.GET_GIDS);
+		if (packageInfo != null) {
+			pluginDescriptor.setApplicationTheme(packageInfo.applicationInfo.theme);
+			pluginDescriptor.setApplicationIcon(packageInfo.applicationInfo.icon);
+			pluginDescriptor.setApplicationLogo(packageInfo.applicationInfo.logo);
+		}
+	}
+
+	/**
+	 * 取得插件的完整描述, 不在缓存中时从记录文件中解码
+	 */
+	private PluginDescriptor materialize(PluginHeader header) {
+		PluginDescriptor descriptor;
+		synchronized (mDescriptorCache) {
+			descriptor = mDescriptorCache.get(header.packageName);
+			if (descriptor == null) {
+				descriptor = mPinnedDescriptors.remove(header.packageName);
+				if (descriptor != null) {
+					mDescriptorCache.put(header.packageName, descriptor);
+				}
+			}
+		}
+		if (descriptor != null) {
+			return descriptor;
+		}
+
+		long t1 = System.currentTimeMillis();
+		descriptor = mStore.read(header.packageName);
+		if (descriptor == null) {
+			LogUtil.e("读取插件记录失败", header.packageName);
+			return null;
+		}
+		LogUtil.v("展开插件描述", header.packageName, "耗时 : " + (System.currentTimeMillis() - t1));
+
+		synchronized (mDescriptorCache) {
+			//并发展开同一个插件时以先放入缓存的为准, 保证同一个插件只有一个实例
+			PluginDescriptor exists = mDescriptorCache.get(header.packageName);
+			if (exists != null) {
+				return exists;
+			}
+			if (sInstalledPlugins.get(header.packageName) != header) {
+				//展开过程中插件被卸载或者替换了
 				return descriptor;
 			}
+			mDescriptorCache.put(header.packageName, descriptor);
 		}
-		return null;
+		return descriptor;
+	}
+
+	/**
+	 * 遍历时使用, 已经在缓存中的直接返回, 否则从记录文件中解码, 但不放入缓存
+	 */
+	private PluginDescriptor peek(PluginHeader header) {
+		PluginDescriptor descriptor;
+		synchronized (mDescriptorCache) {
+			descriptor = mDescriptorCache.get(header.packageName);
+			if (descriptor == null) {
+				descriptor = mPinnedDescriptors.get(header.packageName);
+			}
+		}
+		if (descriptor != null) {
+			return descriptor;
+		}
+		descriptor = mStore.read(header.packageName);
+		if (descriptor == null) {
+			LogUtil.e("读取插件记录失败", header.packageName);
+		}
+		return descriptor;
+	}
+
+	/**
+	 * 插件被卸载后不再需要常驻, 仍然可以留在缓存中按顺序淘汰
+	 */
+	void releaseDescriptor(String packageName) {
+		synchronized (mDescriptorCache) {
+			mPinnedDescriptors.remove(packageName);
+		}
+	}
+
+	private void cache(PluginDescriptor pluginDescriptor) {
+		synchronized (mDescriptorCache) {
+			mPinnedDescriptors.remove(pluginDescriptor.getPackageName());
+			mDescriptorCache.put(pluginDescriptor.getPackageName(), pluginDescriptor);
+		}
+	}
+
+	/**
+	 * 从缓存中移除
+	 *
+	 * @param packageName 为null时全部清空
+	 */
+	private void evict(String packageName) {
+		synchronized (mDescriptorCache) {
+			if (packageName == null) {
+				mDescriptorCache.clear();
+				mPinnedDescriptors.clear();
+			} else {
+				mDescriptorCache.remove(packageName);
+				mPinnedDescriptors.remove(packageName);
+			}
+		}
+	}
+
+	/**
+	 * 在安装线程池中异步安装或卸载, 立即返回
+	 *
+	 * @param type PluginInstallHandle.TYPE_*
+	 * @param target 安装时是apk或补丁路径, 卸载时是插件包名
+	 * @param listener 通知进度和结果
+	 */
+	InstallSession startSession(int type, String target, PluginStatusChangeAdapter listener) {
+		final InstallSession session = new InstallSession(mNextSessionId.getAndIncrement(), type, target, listener);
+		synchronized (mSessions) {
+			mSessions.put(session.id, session);
+			session.enter(PluginStatusChangeListener.STAGE_QUEUED);
+			session.future = mInstallExecutor.submit(new Runnable() {
+				@Override
+				public void run() {
+					runSession(session);
+				}
+			});
+		}
+		return session;
+	}
+
+	private void runSession(InstallSession session) {
+		boolean isRemove = session.type == PluginInstallHandle.TYPE_REMOVE;
+		int code;
+		try {
+			if (isRemove) {
+				synchronized (getInstallLock(session.target)) {
+					if (!session.enter(PluginStatusChangeListener.STAGE_COMMIT)) {
+						code = PluginManagerHelper.REMOVE_CANCELED;
+					} else {
+						synchronized (this) {
+							syncSnapshotLocked();
+							code = removeLocked(session.target);
+						}
+					}
+				}
+				//取消的会话什么都没有改变, 只通过STAGE_FINISHED通知, 不发安装、卸载广播
+				if (!session.isCanceled()) {
+					session.listener.onRemove(session.target, code);
+				}
+			} else {
+				InstallResult result = session.type == PluginInstallHandle.TYPE_PATCH ?
+						installPatch(session.target, session) : installPlugin(session.target, session);
+				code = result.getResult();
+				if (!session.isCanceled()) {
+					session.listener.onInstall(code, result.getPackageName(), result.getVersion(), session.target);
+				}
+			}
+		} catch (Throwable e) {
+			LogUtil.printException("PluginManagerService.runSession", e);
+			code = isRemove ? PluginManagerHelper.REMOVE_FAIL : PluginManagerHelper.INSTALL_FAIL;
+		}
+		//进入STAGE_COMMIT之后不能再取消, 所以取消了的会话一定没有提交
+		if (session.isCanceled()) {
+			code = isRemove ? PluginManagerHelper.REMOVE_CANCELED : PluginManagerHelper.INSTALL_CANCELED;
+		}
+		synchronized (mSessions) {
+			mSessions.remove(session.id);
+		}
+		session.finish(code);
+	}
+
+	/**
+	 * 取消还没有开始提交的异步安装或卸载
+	 * @return 已经开始提交或者已经结束时返回false
+	 */
+	boolean cancelSession(int sessionId) {
+		InstallSession session;
+		synchronized (mSessions) {
+			session = mSessions.get(sessionId);
+			if (session == null || !session.cancel()) {
+				return false;
+			}
+			if (session.future.cancel(false)) {
+				//还在排队, 不会再执行, 直接结束
+				mSessions.remove(sessionId);
+			} else {
+				//已经开始执行, 在下一个阶段开始前停止
+				return true;
+			}
+		}
+		session.finish(session.type == PluginInstallHandle.TYPE_REMOVE ?
+				PluginManagerHelper.REMOVE_CANCELED : PluginManagerHelper.INSTALL_CANCELED);
+		return true;
+	}
+
+	/**
+	 * @return 排队中和执行中的异步安装、卸载, 按提交顺序
+	 */
+	ArrayList<InstallSession> getSessions() {
+		synchronized (mSessions) {
+			return new ArrayList<InstallSession>(mSessions.values());
+		}
+	}
+
+	private static boolean enterStage(InstallSession session, int stage) {
+		return session == null || session.enter(stage);
+	}
+
+	/**
+	 * 批量安装插件, 不同的插件在安装线程池中并行安装, 返回结果和参数顺序一致
+	 */
+	ArrayList<InstallResult> installPlugins(String[] srcPluginFiles) {
+		ArrayList<Future<InstallResult>> tasks = new ArrayList<Future<InstallResult>>(srcPluginFiles.length);
+		for (final String srcPluginFile : srcPluginFiles) {
+			tasks.add(mInstallExecutor.submit(new Callable<InstallResult>() {
+				@Override
+				public InstallResult call() throws Exception {
+					return installPlugin(srcPluginFile);
+				}
+			}));
+		}
+		ArrayList<InstallResult> results = new ArrayList<InstallResult>(tasks.size());
+		for (Future<InstallResult> task : tasks) {
+			InstallResult result = null;
+			try {
+				result = task.get();
+			} catch (InterruptedException e) {
+				LogUtil.printException("PluginManagerService.installPlugins", e);
+			} catch (ExecutionException e) {
+				LogUtil.printException("PluginManagerService.installPlugins", e);
+			}
+			results.add(result != null ? result : new InstallResult(PluginManagerHelper.INSTALL_FAIL));
+		}
+		return results;
 	}
 
 	/**
 	 * 安装一个插件
 	 *
+	 * 不同插件的安装可以并行, 同一个插件的安装和卸载按包名串行,
+	 * 只有写入已安装列表这一步是全局串行的
+	 *
 	 * @param srcPluginFile
 	 * @return
 	 */
-	synchronized InstallResult installPlugin(String srcPluginFile) {
+	InstallResult installPlugin(String srcPluginFile) {
+		return installPlugin(srcPluginFile, null);
+	}
+
+	/**
+	 * @param session 异步安装时用于通知进度和检查是否已取消, 同步安装时为null
+	 */
+	private InstallResult installPlugin(String srcPluginFile, InstallSession session) {
 		LogUtil.w("开始安装插件", srcPluginFile);
 		long startAt = System.currentTimeMillis();
 		if (TextUtils.isEmpty(srcPluginFile)) {
@@ -206,30 +813,101 @@ class PluginManagerService {
 			return new InstallResult(PluginManagerHelper.INSTALL_FAIL);
         }
 
-        // 先将apk复制到宿主程序私有目录，防止在安装过程中文件被篡改
-		if (!srcPluginFile.startsWith(FairyGlobal.getHostApplication().getCacheDir().getAbsolutePath())) {
-			String tempFilePath = FairyGlobal.getHostApplication().getCacheDir().getAbsolutePath()
-					+ File.separator + System.currentTimeMillis() + "_" + srcFile.getName() + ".apk";
-			if (FileUtil.copyFile(srcPluginFile, tempFilePath)) {
-				srcPluginFile = tempFilePath;
-			} else {
-				LogUtil.e("复制插件文件失败", srcPluginFile, tempFilePath);
-				return new InstallResult(PluginManagerHelper.COPY_FILE_FAIL);
+        if (!enterStage(session, PluginStatusChangeListener.STAGE_COPY)) {
+			return new InstallResult(PluginManagerHelper.INSTALL_CANCELED);
+		}
+
+        // 先将apk放到宿主程序私有目录，防止在安装过程中文件被篡改
+        // 这里只复制一次, 之后解析、校验、解压都直接使用这个文件, 安装时rename到安装目录
+		final File stagingDir = genStagingDir(srcFile.getName());
+		String stagedApkPath = new File(stagingDir, APK_NAME).getAbsolutePath();
+		String apkDigest = stageApk(srcPluginFile, stagedApkPath);
+		if (apkDigest == null) {
+			LogUtil.e("复制插件文件失败", srcPluginFile, stagedApkPath);
+			FileUtil.deleteAll(stagingDir);
+			return new InstallResult(PluginManagerHelper.COPY_FILE_FAIL);
+		}
+
+		return installStaged(stagingDir, apkDigest, startAt, session, null);
+	}
+
+	/**
+	 * 增量升级一个已安装的插件
+	 *
+	 * 用已安装版本的apk和补丁还原出新apk, 摘要和补丁中记录的一致后, 按正常流程校验签名并安装
+	 *
+	 * @param patchFile
+	 * @return
+	 */
+	InstallResult installPatch(String patchFile) {
+		return installPatch(patchFile, null);
+	}
+
+	private InstallResult installPatch(String patchFile, InstallSession session) {
+		LogUtil.w("开始增量安装插件", patchFile);
+		long startAt = System.currentTimeMillis();
+		if (TextUtils.isEmpty(patchFile) || !new File(patchFile).isFile()) {
+			return new InstallResult(PluginManagerHelper.SRC_FILE_NOT_FOUND);
+		}
+
+		PluginPatcher.Header patch = PluginPatcher.readHeader(patchFile);
+		if (patch == null) {
+			return new InstallResult(PluginManagerHelper.PATCH_FAIL);
+		}
+
+		//还原补丁相当于复制apk
+		if (!enterStage(session, PluginStatusChangeListener.STAGE_COPY)) {
+			return new InstallResult(PluginManagerHelper.INSTALL_CANCELED, patch.packageName, patch.baseVersion);
+		}
+
+		File stagingDir = genStagingDir(new File(patchFile).getName());
+		String stagedApkPath = new File(stagingDir, APK_NAME).getAbsolutePath();
+		String apkDigest;
+		//还原过程中旧版不能被卸载或替换
+		synchronized (getInstallLock(patch.packageName)) {
+			PluginHeader installed = sInstalledPlugins.get(patch.packageName);
+			if (installed == null || !patch.baseVersion.equals(installed.version)) {
+				LogUtil.e("增量包和已安装版本不匹配", patch.packageName, patch.baseVersion, installed == null ? null : installed.version);
+				return new InstallResult(PluginManagerHelper.PATCH_BASE_NOT_MATCH, patch.packageName, patch.baseVersion);
 			}
+			apkDigest = PluginPatcher.apply(installed.installedPath, patchFile, stagedApkPath);
 		}
+		if (apkDigest == null || !apkDigest.equalsIgnoreCase(patch.targetDigest)) {
+			LogUtil.e("还原增量包失败", patchFile, apkDigest, patch.targetDigest);
+			FileUtil.deleteAll(stagingDir);
+			return new InstallResult(PluginManagerHelper.PATCH_FAIL, patch.packageName, patch.baseVersion);
+		}
+
+		//补丁头部的包名就是已安装基础版本的包名, 还原出的apk必须是同一个插件
+		return installStaged(stagingDir, apkDigest, startAt, session, patch.packageName);
+	}
+
+	/**
+	 * 安装已经放到临时目录中的apk
+	 *
+	 * @param expectedPackageName 增量安装时为补丁对应的包名, 解析出的包名不同时拒绝安装, 全量安装时为null
+	 */
+	private InstallResult installStaged(final File stagingDir, String apkDigest, long startAt, InstallSession session, String expectedPackageName) {
+		String srcPluginFile = new File(stagingDir, APK_NAME).getAbsolutePath();
 
 		// 解析Manifest，获得插件详情
 		final PluginDescriptor pluginDescriptor = PluginManifestParser.parseManifest(srcPluginFile);
 		if (pluginDescriptor == null || TextUtils.isEmpty(pluginDescriptor.getPackageName())) {
 			LogUtil.e("解析插件Manifest文件失败", srcPluginFile);
-			new File(srcPluginFile).delete();
+			FileUtil.deleteAll(stagingDir);
 			return new InstallResult(PluginManagerHelper.PARSE_MANIFEST_FAIL);
 		}
 
+		if (expectedPackageName != null && !expectedPackageName.equals(pluginDescriptor.getPackageName())) {
+			LogUtil.e("增量包还原出的插件包名和已安装插件不一致", expectedPackageName, pluginDescriptor.getPackageName());
+			FileUtil.deleteAll(stagingDir);
+			return new InstallResult(PluginManagerHelper.PATCH_FAIL, expectedPackageName, pluginDescriptor.getVersion());
+		}
+
 		//判断插件适用系统版本
 		if (pluginDescriptor.getMinSdkVersion() != null && Build.VERSION.SDK_INT < Integer.valueOf(pluginDescriptor.getMinSdkVersion()))  {
 			LogUtil.e("当前系统版本过低, 不支持此插件", "系统:" + Build.VERSION.SDK_INT, "插件:" + pluginDescriptor.getMinSdkVersion(), pluginDescriptor.getPackageName());
-			new File(srcPluginFile).delete();
+			FileUtil.deleteAll(stagingDir);
 			return new InstallResult(PluginManagerHelper.MIN_API_NOT_SUPPORTED, pluginDescriptor.getPackageName(), pluginDescriptor.getVersion());
 		}
 
@@ -238,230 +916,361 @@ class PluginManagerService {
         // 是因为不同的minSdkVersion在签名时使用的sha算法长度不同，
         // 也即高版本的minSdkVersion的插件，即使签名没有被篡改过，在低版本的系统中仍然会校验失败
         // 所以先校验minSdkVersion，再校验签名
-        //sApplication.getPackageManager().getPackageArchiveInfo(srcPluginFile, PackageManager.GET_SIGNATURES);
-        Signature[] pluginSignatures = PackageVerifyer.collectCertificates(srcPluginFile, false);
-        boolean isDebugable = (0 != (FairyGlobal.getHostApplication().getApplicationInfo().flags & ApplicationInfo.FLAG_DEBUGGABLE));
-        if (pluginSignatures == null) {
-            LogUtil.e("插件签名验证失败", srcPluginFile);
-            new File(srcPluginFile).delete();
-            return new InstallResult(PluginManagerHelper.SIGNATURES_INVALIDATE);
-        }
-
-        //可选步骤，验证插件APK证书是否和宿主程序证书相同。
-        //证书中存放的是公钥和算法信息，而公钥和私钥是1对1的
-        //公钥相同意味着是同一个作者发布的程序
-        if (FairyGlobal.isNeedVerifyPlugin() && !isDebugable) {
-            Signature[] mainSignatures = null;
-            try {
-                PackageInfo pkgInfo = FairyGlobal.getHostApplication().getPackageManager().getPackageInfo(FairyGlobal.getHostApplication().getPackageName(), PackageManager.GET_SIGNATURES);
-                mainSignatures = pkgInfo.signatures;
-            } catch (PackageManager.NameNotFoundException e) {
-				LogUtil.printException("PluginManagerService.installPlugin", e);
-			}
-            if (!PackageVerifyer.isSignaturesSame(mainSignatures, pluginSignatures)) {
-                LogUtil.e("插件证书和宿主证书不一致", srcPluginFile);
-                new File(srcPluginFile).delete();
-                return new InstallResult(PluginManagerHelper.VERIFY_SIGNATURES_FAIL);
+        // 签名校验要读取并摘要每个jar entry, 是最耗时的一步, 放到校验线程中和解压so并行
+        if (!enterStage(session, PluginStatusChangeListener.STAGE_VERIFY)) {
+			FileUtil.deleteAll(stagingDir);
+			return new InstallResult(PluginManagerHelper.INSTALL_CANCELED, pluginDescriptor.getPackageName(), pluginDescriptor.getVersion());
+		}
+        final boolean isDebugable = (0 != (FairyGlobal.getHostApplication().getApplicationInfo().flags & ApplicationInfo.FLAG_DEBUGGABLE));
+        final String verifyPath = srcPluginFile;
+        final String verifyDigest = apkDigest;
+        Future<Integer> verifyTask = mVerifyExecutor.submit(new Callable<Integer>() {
+            @Override
+            public Integer call() throws Exception {
+                return verifySignatures(verifyPath, verifyDigest, isDebugable);
             }
+        });
+
+        //so直接解压到临时目录下的lib目录, 安装时随目录一起rename，不依赖签名校验的结果
+        //在构造插件Dexclassloader的时候，会使用这个so目录作为参数
+        //已取消时不再解压, 但仍要等校验任务结束再删除临时目录
+        if (enterStage(session, PluginStatusChangeListener.STAGE_EXTRACT)) {
+            FileUtil.extractSo(srcPluginFile, new File(stagingDir, "lib"));
         }
 
         // 检查当前宿主版本是否匹配此非独立插件需要的版本
-        PackageManager packageManager = FairyGlobal.getHostApplication().getPackageManager();
-        String requireHostVerName = pluginDescriptor.getRequiredHostVersionName();
-        if (!pluginDescriptor.isStandalone() && requireHostVerName != null) {
-            //是非独立插件，而且指定了插件运行需要的的宿主版本
-            try {
-                PackageInfo hostPackageInfo = packageManager.getPackageInfo(FairyGlobal.getHostApplication().getPackageName(), PackageManager.GET_META_DATA);
-                //判断宿主版本是否满足要求
-                LogUtil.v(pluginDescriptor.getPackageName(), requireHostVerName, hostPackageInfo.versionName);
-                if (!requireHostVerName.equals(hostPackageInfo.versionName)) {
-                    //不满足要求，不可安装此插件
-                    LogUtil.e("当前宿主版本不支持此插件版本", "宿主versionName:" + hostPackageInfo.versionName, "插件RequiredHostVersionName:" + pluginDescriptor.getRequiredHostVersionName());
-                    new File(srcPluginFile).delete();
-                    return new InstallResult(PluginManagerHelper.HOST_VERSION_NOT_SUPPORT_CURRENT_PLUGIN, pluginDescriptor.getPackageName(), pluginDescriptor.getVersion());
-                }
-            } catch (PackageManager.NameNotFoundException e) {
-				LogUtil.printException("PluginManagerService.installPlugin", e);
-			}
+        int hostCheckResult = checkHostVersion(pluginDescriptor);
+
+        int verifyResult = PluginManagerHelper.SIGNATURES_INVALIDATE;
+        try {
+            verifyResult = verifyTask.get();
+        } catch (InterruptedException e) {
+            LogUtil.printException("PluginManagerService.installPlugin", e);
+        } catch (ExecutionException e) {
+            LogUtil.printException("PluginManagerService.installPlugin", e);
         }
+        if (verifyResult != PluginManagerHelper.SUCCESS) {
+            FileUtil.deleteAll(stagingDir);
+            return new InstallResult(verifyResult);
+        }
+        if (hostCheckResult != PluginManagerHelper.SUCCESS) {
+            FileUtil.deleteAll(stagingDir);
+            return new InstallResult(hostCheckResult, pluginDescriptor.getPackageName(), pluginDescriptor.getVersion());
+        }
+
+		//同一个插件的替换、复制、dexopt需要串行
+		synchronized (getInstallLock(pluginDescriptor.getPackageName())) {
+			//进入提交阶段后不能再取消
+			if (!enterStage(session, PluginStatusChangeListener.STAGE_COMMIT)) {
+				FileUtil.deleteAll(stagingDir);
+				return new InstallResult(PluginManagerHelper.INSTALL_CANCELED, pluginDescriptor.getPackageName(), pluginDescriptor.getVersion());
+			}
+			InstallResult result = installLocked(pluginDescriptor, stagingDir, isDebugable);
+			//删掉临时文件, 安装成功时已经被rename走了
+			if (stagingDir.exists()) {
+				FileUtil.deleteAll(stagingDir);
+			}
+			if (result.getResult() == PluginManagerHelper.SUCCESS) {
+				long endAt = System.currentTimeMillis();
+				LogUtil.w("插件安装成功", pluginDescriptor.getPackageName(), "耗时 : " + (endAt - startAt));
+				//dexopt已经在后台排队, 进度见onOptimize
+				enterStage(session, PluginStatusChangeListener.STAGE_OPTIMIZE);
+			}
+			return result;
+		}
+	}
+
+	private InstallResult installLocked(PluginDescriptor pluginDescriptor, File stagingDir, boolean isDebugable) {
 
-		// 检查插件是否已经存在,若存在删除旧的
-		PluginDescriptor oldPluginDescriptor = getPluginDescriptorByPluginId(pluginDescriptor.getPackageName());
+		String packageName = pluginDescriptor.getPackageName();
+
+		// 检查插件是否已经存在, 若存在, 新版提交成功后再删除旧版
+		PluginDescriptor oldPluginDescriptor = getPluginDescriptorByPluginId(packageName);
 		if (oldPluginDescriptor != null) {
 			LogUtil.d("已安装过，安装路径为", oldPluginDescriptor.getInstalledPath(), oldPluginDescriptor.getVersion(), pluginDescriptor.getVersion());
 
 			//检查插件是否已经加载
-			if (PluginLauncher.instance().isRunning(oldPluginDescriptor.getPackageName())) {
+			if (PluginLauncher.instance().isRunning(packageName)) {
 				if (!oldPluginDescriptor.getVersion().equals(pluginDescriptor.getVersion())) {
-					LogUtil.w("旧版插件已经加载， 且新版插件和旧版插件版本不同，直接删除旧版，进行热更新");
-					remove(oldPluginDescriptor.getPackageName());
+					LogUtil.w("旧版插件已经加载， 且新版插件和旧版插件版本不同，停止旧版，进行热更新");
+					PluginLauncher.instance().stopPlugin(packageName, oldPluginDescriptor);
 				} else {
 					LogUtil.e("旧版插件已经加载， 且新版插件和旧版插件版本相同，拒绝安装");
-					new File(srcPluginFile).delete();
-					return new InstallResult(PluginManagerHelper.FAIL_BECAUSE_SAME_VER_HAS_LOADED, pluginDescriptor.getPackageName(), pluginDescriptor.getVersion());
+					return new InstallResult(PluginManagerHelper.FAIL_BECAUSE_SAME_VER_HAS_LOADED, packageName, pluginDescriptor.getVersion());
 				}
 			} else {
-				LogUtil.v("旧版插件还未加载，忽略版本，直接删除旧版，尝试安装新版");
-				remove(oldPluginDescriptor.getPackageName());
+				LogUtil.v("旧版插件还未加载，忽略版本，尝试安装新版");
 			}
 		}
 
-		// 复制插件到插件目录
-		String destApkPath = genInstallPath(pluginDescriptor.getPackageName(), pluginDescriptor.getVersion());
-        boolean isCopySuccess = FileUtil.copyFile(srcPluginFile, destApkPath);
+		String destApkPath = genInstallPath(packageName, pluginDescriptor.getVersion());
+		File apkParent = new File(destApkPath).getParentFile();
+
+		//未启用的插件也要替换掉, 这里直接取索引
+		PluginHeader oldHeader = sInstalledPlugins.get(packageName);
+		File oldDir = oldHeader == null ? null : new File(oldHeader.installedPath).getParentFile();
+		File backupDir = null;
+		if (oldDir != null) {
+			//旧版的文件即将被移走, 不能还在dexopt
+			DexOptScheduler.instance().cancel(packageName);
+			if (oldDir.equals(apkParent)) {
+				//版本号相同, 旧版目录先挪开, 提交后再删除
+				backupDir = new File(stagingDir.getPath() + ".old");
+			}
+		}
+		if (apkParent.exists() && !apkParent.equals(oldDir)) {
+			//上次安装失败残留的目录
+			FileUtil.deleteAll(apkParent);
+		}
+		apkParent.getParentFile().mkdirs();
 
-		if (!isCopySuccess) {
+		pluginDescriptor.setInstalledPath(destApkPath);
+		pluginDescriptor.setInstallationTime(System.currentTimeMillis());
 
-			LogUtil.e("复制插件到安装目录失败", srcPluginFile);
-			//删掉临时文件
-			new File(srcPluginFile).delete();
-			return new InstallResult(PluginManagerHelper.COPY_FILE_FAIL, pluginDescriptor.getPackageName(), pluginDescriptor.getVersion());
-		} else {
+		// 先写journal再移动文件, 中途被杀掉时启动后按journal回滚
+		InstallTransaction transaction = new InstallTransaction(packageName, pluginDescriptor.getInstallationTime(),
+				stagingDir, apkParent, backupDir, oldDir);
+		if (!mStore.writeTransaction(transaction)) {
+			LogUtil.e("写入安装journal失败", packageName);
+			return new InstallResult(PluginManagerHelper.INSTALL_FAIL, packageName, pluginDescriptor.getVersion());
+		}
 
-			//第5步，先解压so到临时目录，再从临时目录复制到插件so目录。 在构造插件Dexclassloader的时候，会使用这个so目录作为参数
-			File apkParent = new File(destApkPath).getParentFile();
-			File tempSoDir = new File(apkParent, "temp");
-			Set<String> soList = FileUtil.unZipSo(srcPluginFile, tempSoDir);
-			if (soList != null) {
-				for (String soName : soList) {
-					FileUtil.copySo(tempSoDir, soName, apkParent.getAbsolutePath());
-				}
-				//删掉临时文件
-				FileUtil.deleteAll(tempSoDir);
-			}
-
-			//try {
-				//ArrayList<String> multiDexFiles = PluginMultiDexExtractor.performExtractions(new File(destApkPath), new File(apkParent, "secondDexes"));
-				//pluginDescriptor.setMuliDexList(multiDexFiles);
-			//} catch (IOException e) {
-			//	e.printStackTrace();
-			//}
-
-            //万事具备 添加到已安装插件列表
-			pluginDescriptor.setInstalledPath(destApkPath);
-			pluginDescriptor.setInstallationTime(System.currentTimeMillis());
-            PackageInfo packageInfo = pluginDescriptor.getPackageInfo(PackageManager.GET_GIDS);
-            if (packageInfo != null) {
-                pluginDescriptor.setApplicationTheme(packageInfo.applicationInfo.theme);
-                pluginDescriptor.setApplicationIcon(packageInfo.applicationInfo.icon);
-                pluginDescriptor.setApplicationLogo(packageInfo.applicationInfo.logo);
-            }
+		// 把临时目录整体移动到插件目录, apk和so都不再复制
+		boolean isMoveSuccess = (backupDir == null || apkParent.renameTo(backupDir)) && stagingDir.renameTo(apkParent);
 
-			boolean isInstallSuccess = addOrReplace(pluginDescriptor);
+		if (!isMoveSuccess) {
+			LogUtil.e("移动插件到安装目录失败", stagingDir.getAbsolutePath(), apkParent.getAbsolutePath());
+			rollback(transaction);
+			return new InstallResult(PluginManagerHelper.COPY_FILE_FAIL, packageName, pluginDescriptor.getVersion());
+		}
 
-			//删掉临时文件
-			new File(srcPluginFile).delete();
+		//try {
+			//ArrayList<String> multiDexFiles = PluginMultiDexExtractor.performExtractions(new File(destApkPath), new File(apkParent, "secondDexes"));
+			//pluginDescriptor.setMuliDexList(multiDexFiles);
+		//} catch (IOException e) {
+		//	e.printStackTrace();
+		//}
 
-			if (!isInstallSuccess) {
-				LogUtil.e("安装插件失败", srcPluginFile);
+        //万事具备 添加到已安装插件列表
+        applyPackageInfo(pluginDescriptor);
 
-				new File(destApkPath).delete();
+		//写入插件记录是提交点, 也是唯一需要全局串行的步骤
+		boolean isInstallSuccess;
+		synchronized (this) {
+			isInstallSuccess = addOrReplace(pluginDescriptor);
+		}
 
-				return new InstallResult(PluginManagerHelper.INSTALL_FAIL, pluginDescriptor.getPackageName(), pluginDescriptor.getVersion());
-			} else {
-				//通过创建classloader来触发dexopt，但不加载
-				LogUtil.d("正在进行DEXOPT...", pluginDescriptor.getInstalledPath());
-				//ActivityThread.getPackageManager().performDexOptIfNeeded()
-				FileUtil.deleteAll(new File(apkParent, "dalvik-cache"));
-				ClassLoader cl = PluginCreator.createPluginClassLoader(pluginDescriptor.getInstalledPath(), pluginDescriptor.isStandalone(), null, null);
-				try {
-					cl.loadClass(Object.class.getName());
-				} catch (ClassNotFoundException e) {
-					LogUtil.printException("PluginManagerService.installPlugin", e);
-				}
-				LogUtil.d("DEXOPT完毕");
+		if (!isInstallSuccess) {
+			LogUtil.e("安装插件失败", destApkPath);
 
-				LogUtil.d("注册localService");
-				LocalServiceManager.registerService(pluginDescriptor);
+			rollback(transaction);
 
-				long endAt = System.currentTimeMillis();
-				LogUtil.w("插件安装成功", pluginDescriptor.getPackageName(), "耗时 : " + (endAt - startAt));
+			return new InstallResult(PluginManagerHelper.INSTALL_FAIL, packageName, pluginDescriptor.getVersion());
+		}
 
-				LogUtil.v("安装路径", pluginDescriptor.getInstalledPath());
+		finish(transaction);
 
-				//打印一下目录结构
-				if (isDebugable) {
-					FileUtil.printAll(new File(FairyGlobal.getHostApplication().getApplicationInfo().dataDir));
-				}
+		//dexopt放到后台排队执行，文件就位后安装即可返回
+		FileUtil.deleteAll(new File(apkParent, "dalvik-cache"));
+		DexOptScheduler.instance().schedule(pluginDescriptor, DexOptScheduler.PRIORITY_INSTALL);
 
-				return new InstallResult(PluginManagerHelper.SUCCESS, pluginDescriptor.getPackageName(), pluginDescriptor.getVersion());
-			}
+		LogUtil.d("注册localService");
+		LocalServiceManager.registerService(pluginDescriptor);
+
+		LogUtil.v("安装路径", pluginDescriptor.getInstalledPath());
+
+		//打印一下目录结构
+		if (isDebugable) {
+			FileUtil.printAll(new File(FairyGlobal.getHostApplication().getApplicationInfo().dataDir));
 		}
+
+		return new InstallResult(PluginManagerHelper.SUCCESS, pluginDescriptor.getPackageName(), pluginDescriptor.getVersion());
 	}
 
-	private static SharedPreferences getSharedPreference() {
-		SharedPreferences sp = FairyGlobal.getHostApplication().getSharedPreferences("plugins.installed",
-				Build.VERSION.SDK_INT < 11 ? Context.MODE_PRIVATE : Context.MODE_PRIVATE | 0x0004);
-		return sp;
+	/**
+	 * 事务已提交, 删除旧版
+	 */
+	private void finish(InstallTransaction transaction) {
+		if (transaction.backupDir != null) {
+			FileUtil.deleteAll(transaction.backupDir);
+		}
+		if (transaction.oldDir != null && !transaction.oldDir.equals(transaction.targetDir)) {
+			FileUtil.deleteAll(transaction.oldDir);
+		}
+		FileUtil.deleteAll(transaction.stagingDir);
+		mStore.deleteTransaction(transaction.packageName);
+	}
+
+	/**
+	 * 事务未提交, 删除新版, 还原旧版
+	 */
+	private void rollback(InstallTransaction transaction) {
+		if (!transaction.targetDir.equals(transaction.oldDir)) {
+			FileUtil.deleteAll(transaction.targetDir);
+		} else if (transaction.backupDir.exists()) {
+			//旧版已经被挪开, 安装目录中如果有文件, 是新版的
+			FileUtil.deleteAll(transaction.targetDir);
+			transaction.backupDir.renameTo(transaction.targetDir);
+		}
+		FileUtil.deleteAll(transaction.stagingDir);
+		mStore.deleteTransaction(transaction.packageName);
 	}
 
-	private synchronized boolean savePlugins(String key, Hashtable<String, PluginDescriptor> plugins) {
+	/**
+	 * 处理上次被中断的安装, 只需要看journal, 不需要扫描插件目录
+	 */
+	private void recoverTransactions() {
+		ArrayList<InstallTransaction> transactions = mStore.readTransactions();
+		for (InstallTransaction transaction : transactions) {
+			PluginDescriptor current = mStore.read(transaction.packageName);
+			if (current != null && current.getInstallationTime() == transaction.installationTime) {
+				LogUtil.w("安装已提交, 清理旧版", transaction.packageName);
+				finish(transaction);
+			} else {
+				LogUtil.w("安装未完成, 回滚", transaction.packageName);
+				rollback(transaction);
+			}
+		}
+		//还没有写journal就被中断的安装只留下了临时文件
+		FileUtil.deleteAll(new File(getPluginRootDir(), STAGING_DIR_NAME));
+	}
 
-		ObjectOutputStream objectOutputStream = null;
-		ByteArrayOutputStream byteArrayOutputStream = new ByteArrayOutputStream();
+	/**
+	 * 把待安装的apk放到临时目录, 同时计算内容摘要
+	 *
+	 * 已经在宿主缓存目录中的文件安装完本来就会删除, 直接rename过来;
+	 * 其他位置的文件复制一次, 复制的同时计算摘要
+	 *
+	 * @return 摘要的16进制字符串, 失败返回null
+	 */
+	private static String stageApk(String srcPluginFile, String stagedApkPath) {
+		MessageDigest digest;
 		try {
-			objectOutputStream = new ObjectOutputStream(byteArrayOutputStream);
-			objectOutputStream.writeObject(plugins);
-			objectOutputStream.flush();
+			digest = MessageDigest.getInstance("SHA-256");
+		} catch (NoSuchAlgorithmException e) {
+			LogUtil.printException("PluginManagerService.stageApk", e);
+			return null;
+		}
+		File stagedApk = new File(stagedApkPath);
+		stagedApk.getParentFile().mkdirs();
+		boolean isSuccess;
+		if (srcPluginFile.startsWith(FairyGlobal.getHostApplication().getCacheDir().getAbsolutePath())
+				&& new File(srcPluginFile).renameTo(stagedApk)) {
+			isSuccess = FileUtil.digestFile(stagedApkPath, digest);
+		} else {
+			isSuccess = FileUtil.copyFile(srcPluginFile, stagedApkPath, digest);
+		}
+		return isSuccess ? FileUtil.toHex(digest.digest()) : null;
+	}
 
-			byte[] data = byteArrayOutputStream.toByteArray();
-			String list = Base64.encodeToString(data, Base64.DEFAULT);
+	private int verifySignatures(String srcPluginFile, String apkDigest, boolean isDebugable) {
+        Signature[] pluginSignatures = collectCertificates(srcPluginFile, apkDigest);
+        if (pluginSignatures == null) {
+            LogUtil.e("插件签名验证失败", srcPluginFile);
+            return PluginManagerHelper.SIGNATURES_INVALIDATE;
+        }
 
-			getSharedPreference().edit().putString(key, list).commit();
-			return true;
-		} catch (Exception e) {
-			LogUtil.printException("PluginManagerService.savePlugins", e);
-		} finally {
-			if (objectOutputStream != null) {
-				try {
-					objectOutputStream.close();
-				} catch (IOException e) {
-					LogUtil.printException("PluginManagerService.savePlugins", e);
-				}
+        //可选步骤，验证插件APK证书是否和宿主程序证书相同。
+        //证书中存放的是公钥和算法信息，而公钥和私钥是1对1的
+        //公钥相同意味着是同一个作者发布的程序
+        if (FairyGlobal.isNeedVerifyPlugin() && !isDebugable) {
+            Signature[] mainSignatures = null;
+            try {
+                PackageInfo pkgInfo = FairyGlobal.getHostApplication().getPackageManager().getPackageInfo(FairyGlobal.getHostApplication().getPackageName(), PackageManager.GET_SIGNATURES);
+                mainSignatures = pkgInfo.signatures;
+            } catch (PackageManager.NameNotFoundException e) {
+				LogUtil.printException("PluginManagerService.verifySignatures", e);
 			}
-			if (byteArrayOutputStream != null) {
-				try {
-					byteArrayOutputStream.close();
-				} catch (IOException e) {
-					LogUtil.printException("PluginManagerService.savePlugins", e);
-				}
+            if (!PackageVerifyer.isSignaturesSame(mainSignatures, pluginSignatures)) {
+                LogUtil.e("插件证书和宿主证书不一致", srcPluginFile);
+                return PluginManagerHelper.VERIFY_SIGNATURES_FAIL;
+            }
+        }
+        return PluginManagerHelper.SUCCESS;
+	}
+
+	/**
+	 * 内容相同的apk已经校验过时直接使用缓存的证书,
+	 * 否则根据配置校验v2/v3签名块或者逐个校验jar entry, 校验通过后加入缓存
+	 */
+	private Signature[] collectCertificates(String srcPluginFile, String apkDigest) {
+		String cacheKey = PluginVerifyCache.buildKey(apkDigest, ApkSignatureSchemeV2Verifier.getSigningBlockDigest(srcPluginFile));
+		Signature[] pluginSignatures = mVerifyCache.get(cacheKey);
+		if (pluginSignatures != null) {
+			LogUtil.d("命中签名校验缓存", srcPluginFile);
+			return pluginSignatures;
+		}
+
+		long t1 = System.currentTimeMillis();
+		if (FairyGlobal.isVerifyBySigningBlock()) {
+			try {
+				pluginSignatures = ApkSignatureSchemeV2Verifier.verify(srcPluginFile);
+			} catch (IOException e) {
+				LogUtil.printException("PluginManagerService.collectCertificates", e);
+			} catch (SecurityException e) {
+				//签名块存在但是校验不通过, 说明apk被篡改过, 不再回退到jar签名
+				LogUtil.printException("PluginManagerService.collectCertificates", e);
+				return null;
 			}
 		}
-		return false;
+		if (pluginSignatures == null) {
+			//sApplication.getPackageManager().getPackageArchiveInfo(srcPluginFile, PackageManager.GET_SIGNATURES);
+			pluginSignatures = PackageVerifyer.collectCertificates(srcPluginFile, false);
+		}
+		LogUtil.d("签名校验耗时", System.currentTimeMillis() - t1);
+
+		if (pluginSignatures != null) {
+			mVerifyCache.put(cacheKey, pluginSignatures);
+		}
+		return pluginSignatures;
 	}
 
-	@SuppressWarnings("unchecked")
-	private synchronized Hashtable<String, PluginDescriptor> readPlugins(String key) {
-		String list = getSharedPreference().getString(key, "");
-		Serializable object = null;
-		if (!TextUtils.isEmpty(list)) {
-			ByteArrayInputStream byteArrayInputStream = null;
-			ObjectInputStream objectInputStream = null;
-			try {
-				byteArrayInputStream = new ByteArrayInputStream(Base64.decode(list, Base64.DEFAULT));
-				objectInputStream = new ObjectInputStream(byteArrayInputStream);
-				object = (Serializable) objectInputStream.readObject();
-			} catch (Exception e) {
-				LogUtil.printException("PluginManagerService.readPlugins", e);
-			} finally {
-				if (objectInputStream != null) {
-					try {
-						objectInputStream.close();
-					} catch (IOException e) {
-						LogUtil.printException("PluginManagerService.readPlugins", e);
-					}
-				}
-				if (byteArrayInputStream != null) {
-					try {
-						byteArrayInputStream.close();
-					} catch (IOException e) {
-						LogUtil.printException("PluginManagerService.readPlugins", e);
-					}
-				}
+	private static int checkHostVersion(PluginDescriptor pluginDescriptor) {
+        PackageManager packageManager = FairyGlobal.getHostApplication().getPackageManager();
+        String requireHostVerName = pluginDescriptor.getRequiredHostVersionName();
+        if (!pluginDescriptor.isStandalone() && requireHostVerName != null) {
+            //是非独立插件，而且指定了插件运行需要的的宿主版本
+            try {
+                PackageInfo hostPackageInfo = packageManager.getPackageInfo(FairyGlobal.getHostApplication().getPackageName(), PackageManager.GET_META_DATA);
+                //判断宿主版本是否满足要求
+                LogUtil.v(pluginDescriptor.getPackageName(), requireHostVerName, hostPackageInfo.versionName);
+                if (!requireHostVerName.equals(hostPackageInfo.versionName)) {
+                    //不满足要求，不可安装此插件
+                    LogUtil.e("当前宿主版本不支持此插件版本", "宿主versionName:" + hostPackageInfo.versionName, "插件RequiredHostVersionName:" + pluginDescriptor.getRequiredHostVersionName());
+                    return PluginManagerHelper.HOST_VERSION_NOT_SUPPORT_CURRENT_PLUGIN;
+                }
+            } catch (PackageManager.NameNotFoundException e) {
+				LogUtil.printException("PluginManagerService.checkHostVersion", e);
 			}
+        }
+        return PluginManagerHelper.SUCCESS;
+	}
+
+	private Object getInstallLock(String packageName) {
+		synchronized (mInstallLocks) {
+			Object lock = mInstallLocks.get(packageName);
+			if (lock == null) {
+				lock = new Object();
+				mInstallLocks.put(packageName, lock);
+			}
+			return lock;
 		}
+	}
 
-		return (Hashtable<String, PluginDescriptor>) object;
+	private static ExecutorService newExecutor(final String name, int threads) {
+		ThreadPoolExecutor executor = new ThreadPoolExecutor(threads, threads, 30, TimeUnit.SECONDS,
+				new LinkedBlockingQueue<Runnable>(), new ThreadFactory() {
+			private final AtomicInteger count = new AtomicInteger();
+			@Override
+			public Thread newThread(Runnable runnable) {
+				Thread thread = new Thread(runnable, name + "-" + count.incrementAndGet());
+				thread.setPriority(Thread.NORM_PRIORITY - 1);
+				return thread;
+			}
+		});
+		//空闲时不占用线程
+		executor.allowCoreThreadTimeOut(true);
+		return executor;
 	}
 
-}
\ No newline at end of file
+}
@@ -0,0 +1,194 @@
+package com.limpoxe.fairy.manager;
+
+import android.app.Application;
+
+import com.limpoxe.fairy.content.PluginDescriptor;
+import com.limpoxe.fairy.content.PluginProviderInfo;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * 类名、fragment id、ContentProvider authority、localservice名字到插件包名的反向索引
+ *
+ * 包括所有已安装插件(包括未启用的), 持久化在PluginStore的一个索引文件中,
+ * 第一次按名字查询时整体读入, 不在插件进程启动时加载, 之后随安装和卸载更新, 索引中查不到就是没有。
+ * 同一个插件的所有名字在一次加锁中整体替换, 查询时不会看到安装了一半的插件。
+ * 不同插件声明了相同名字时, 先到先得
+ */
+class PluginNameIndex {
+
+	private final HashMap<String, String> mClassNames = new HashMap<String, String>();
+	private final HashMap<String, String> mFragmentIds = new HashMap<String, String>();
+	private final HashMap<String, String> mLocalServices = new HashMap<String, String>();
+	private final HashMap<String, String> mAuthorities = new HashMap<String, String>();
+
+	//每个插件加入了哪些名字, 移除时使用
+	private final HashMap<String, ArrayList<String>[]> mOwnedNames = new HashMap<String, ArrayList<String>[]>();
+	//每个插件声明的名字, 按加入的顺序, 持久化时使用
+	private final LinkedHashMap<String, Names> mDeclared = new LinkedHashMap<String, Names>();
+
+	/**
+	 * 一个插件声明的所有名字
+	 */
+	static class Names {
+		final String packageName;
+		//和PluginHeader.stamp对应
+		final long stamp;
+		final ArrayList<String> classNames;
+		final ArrayList<String> fragmentIds;
+		final ArrayList<String> authorities;
+		final ArrayList<String> serviceNames;
+
+		Names(String packageName, long stamp, ArrayList<String> classNames, ArrayList<String> fragmentIds,
+			  ArrayList<String> authorities, ArrayList<String> serviceNames) {
+			this.packageName = packageName;
+			this.stamp = stamp;
+			this.classNames = classNames;
+			this.fragmentIds = fragmentIds;
+			this.authorities = authorities;
+			this.serviceNames = serviceNames;
+		}
+
+		static Names of(PluginDescriptor pluginDescriptor, long stamp) {
+			return new Names(pluginDescriptor.getPackageName(), stamp,
+					collectClassNames(pluginDescriptor),
+					keys(pluginDescriptor.getFragments()),
+					collectAuthorities(pluginDescriptor),
+					keys(pluginDescriptor.getFunctions()));
+		}
+	}
+
+	synchronized String findByClassName(String clazzName) {
+		return mClassNames.get(clazzName);
+	}
+
+	synchronized String findByFragmentId(String clazzId) {
+		return mFragmentIds.get(clazzId);
+	}
+
+	synchronized String findByLocalService(String serviceName) {
+		return mLocalServices.get(serviceName);
+	}
+
+	synchronized String findByAuthority(String authority) {
+		return mAuthorities.get(authority);
+	}
+
+	synchronized boolean contains(String packageName) {
+		return mDeclared.containsKey(packageName);
+	}
+
+	/**
+	 * 加入或者替换一个插件的所有名字
+	 */
+	@SuppressWarnings("unchecked")
+	synchronized void put(Names names) {
+		String packageName = names.packageName;
+		remove(packageName);
+
+		ArrayList<String>[] owned = new ArrayList[4];
+		owned[0] = putAll(mClassNames, packageName, names.classNames);
+		owned[1] = putAll(mFragmentIds, packageName, names.fragmentIds);
+		owned[2] = putAll(mLocalServices, packageName, names.serviceNames);
+		owned[3] = putAll(mAuthorities, packageName, names.authorities);
+		mOwnedNames.put(packageName, owned);
+		mDeclared.put(packageName, names);
+	}
+
+	synchronized void remove(String packageName) {
+		mDeclared.remove(packageName);
+		ArrayList<String>[] owned = mOwnedNames.remove(packageName);
+		if (owned == null) {
+			return;
+		}
+		removeAll(mClassNames, packageName, owned[0]);
+		removeAll(mFragmentIds, packageName, owned[1]);
+		removeAll(mLocalServices, packageName, owned[2]);
+		removeAll(mAuthorities, packageName, owned[3]);
+	}
+
+	synchronized void clear() {
+		mClassNames.clear();
+		mFragmentIds.clear();
+		mLocalServices.clear();
+		mAuthorities.clear();
+		mOwnedNames.clear();
+		mDeclared.clear();
+	}
+
+	/**
+	 * @return 所有插件声明的名字, 按加入的顺序
+	 */
+	synchronized ArrayList<Names> getAll() {
+		return new ArrayList<Names>(mDeclared.values());
+	}
+
+	private static ArrayList<String> putAll(HashMap<String, String> index, String packageName, ArrayList<String> names) {
+		ArrayList<String> owned = new ArrayList<String>();
+		if (names == null) {
+			return owned;
+		}
+		for (String name : names) {
+			if (!index.containsKey(name)) {
+				index.put(name, packageName);
+				owned.add(name);
+			}
+		}
+		return owned;
+	}
+
+	private static void removeAll(HashMap<String, String> index, String packageName, ArrayList<String> names) {
+		for (String name : names) {
+			if (packageName.equals(index.get(name))) {
+				index.remove(name);
+			}
+		}
+	}
+
+	/**
+	 * 和PluginDescriptor.containsName的查询范围保持一致
+	 */
+	static ArrayList<String> collectClassNames(PluginDescriptor pluginDescriptor) {
+		ArrayList<String> names = new ArrayList<String>();
+		if (pluginDescriptor.getFragments() != null) {
+			names.addAll(new HashSet<String>(pluginDescriptor.getFragments().values()));
+		}
+		names.addAll(keys(pluginDescriptor.getActivitys()));
+		names.addAll(keys(pluginDescriptor.getReceivers()));
+		names.addAll(keys(pluginDescriptor.getServices()));
+		names.addAll(keys(pluginDescriptor.getProviderInfos()));
+		String applicationName = pluginDescriptor.getApplicationName();
+		if (applicationName != null && !applicationName.equals(Application.class.getName())) {
+			names.add(applicationName);
+		}
+		return names;
+	}
+
+	static ArrayList<String> collectAuthorities(PluginDescriptor pluginDescriptor) {
+		ArrayList<String> authorities = new ArrayList<String>();
+		if (pluginDescriptor.getProviderInfos() != null) {
+			for (PluginProviderInfo pluginProviderInfo : pluginDescriptor.getProviderInfos().values()) {
+				if (pluginProviderInfo.getAuthority() != null) {
+					authorities.add(pluginProviderInfo.getAuthority());
+				}
+			}
+		}
+		return authorities;
+	}
+
+	static ArrayList<String> keys(Map<String, ?> map) {
+		ArrayList<String> keys = new ArrayList<String>();
+		if (map != null) {
+			Iterator<String> itr = map.keySet().iterator();
+			while (itr.hasNext()) {
+				keys.add(itr.next());
+			}
+		}
+		return keys;
+	}
+}
@@ -0,0 +1,184 @@
+package com.limpoxe.fairy.manager;
+
+import com.limpoxe.fairy.util.FileUtil;
+import com.limpoxe.fairy.util.LogUtil;
+
+import java.io.BufferedInputStream;
+import java.io.DataInputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.zip.GZIPInputStream;
+
+/**
+ * 增量升级包
+ *
+ * 补丁是针对已安装版本的base-1.apk的二进制差分, 格式：
+ * magic | version | gzip(header | op... | END)
+ * header：packageName | baseVersion | targetDigest(新apk的SHA-256) | targetLength
+ * op：COPY offset length, 从旧apk复制；ADD length bytes, 补丁中的新数据
+ *
+ * 还原时顺序读补丁、随机读旧apk、顺序写新apk, 同时计算摘要, 不需要把任何一个文件整个读入内存
+ */
+class PluginPatcher {
+
+	static final int PATCH_MAGIC = 0x4650444C;//FPDL
+	static final int PATCH_VERSION = 1;
+
+	private static final int OP_END = 0;
+	private static final int OP_COPY = 1;
+	private static final int OP_ADD = 2;
+
+	private static final int BUFFER_SIZE = 64 * 1024;
+
+	static class Header {
+		final String packageName;
+		final String baseVersion;
+		final String targetDigest;
+		final long targetLength;
+
+		Header(String packageName, String baseVersion, String targetDigest, long targetLength) {
+			this.packageName = packageName;
+			this.baseVersion = baseVersion;
+			this.targetDigest = targetDigest;
+			this.targetLength = targetLength;
+		}
+	}
+
+	/**
+	 * 只读取补丁头, 用于在还原前找到对应的已安装插件
+	 */
+	static Header readHeader(String patchFile) {
+		DataInputStream in = null;
+		try {
+			in = open(patchFile);
+			return readHeader(in);
+		} catch (IOException e) {
+			LogUtil.printException("PluginPatcher.readHeader", e);
+		} finally {
+			PluginStore.closeQuietly(in);
+		}
+		return null;
+	}
+
+	/**
+	 * 用旧apk和补丁还原出新apk
+	 *
+	 * @return 新apk摘要的16进制字符串, 失败返回null
+	 */
+	static String apply(String baseApk, String patchFile, String targetApk) {
+		MessageDigest digest;
+		try {
+			digest = MessageDigest.getInstance("SHA-256");
+		} catch (NoSuchAlgorithmException e) {
+			LogUtil.printException("PluginPatcher.apply", e);
+			return null;
+		}
+
+		long t1 = System.currentTimeMillis();
+		File target = new File(targetApk);
+		target.getParentFile().mkdirs();
+
+		DataInputStream in = null;
+		RandomAccessFile base = null;
+		FileOutputStream out = null;
+		try {
+			in = open(patchFile);
+			Header header = readHeader(in);
+			base = new RandomAccessFile(baseApk, "r");
+			out = new FileOutputStream(target);
+
+			FileChannel baseChannel = base.getChannel();
+			long baseLength = baseChannel.size();
+			ByteBuffer buffer = ByteBuffer.allocate(BUFFER_SIZE);
+			long written = 0;
+			while (true) {
+				int op = in.readByte();
+				if (op == OP_END) {
+					break;
+				}
+				long length;
+				if (op == OP_COPY) {
+					long offset = in.readLong();
+					length = in.readInt() & 0xFFFFFFFFL;
+					if (offset < 0 || offset + length > baseLength) {
+						throw new IOException("copy out of range " + offset + "+" + length + " > " + baseLength);
+					}
+					long remaining = length;
+					while (remaining > 0) {
+						buffer.clear();
+						buffer.limit((int) Math.min(remaining, BUFFER_SIZE));
+						int read = baseChannel.read(buffer, offset);
+						if (read <= 0) {
+							throw new IOException("unexpected end of base apk");
+						}
+						digest.update(buffer.array(), 0, read);
+						out.write(buffer.array(), 0, read);
+						offset += read;
+						remaining -= read;
+					}
+				} else if (op == OP_ADD) {
+					length = in.readInt() & 0xFFFFFFFFL;
+					long remaining = length;
+					byte[] bytes = buffer.array();
+					while (remaining > 0) {
+						int count = (int) Math.min(remaining, BUFFER_SIZE);
+						in.readFully(bytes, 0, count);
+						digest.update(bytes, 0, count);
+						out.write(bytes, 0, count);
+						remaining -= count;
+					}
+				} else {
+					throw new IOException("unknown op " + op);
+				}
+				written += length;
+				if (written > header.targetLength) {
+					throw new IOException("target too long " + written + " > " + header.targetLength);
+				}
+			}
+			if (written != header.targetLength) {
+				throw new IOException("target length mismatch " + written + " != " + header.targetLength);
+			}
+			out.flush();
+			out.getFD().sync();
+			LogUtil.d("还原增量包", header.packageName, written, "耗时", System.currentTimeMillis() - t1);
+			return FileUtil.toHex(digest.digest());
+		} catch (IOException e) {
+			LogUtil.printException("PluginPatcher.apply", e);
+		} finally {
+			PluginStore.closeQuietly(in);
+			PluginStore.closeQuietly(base);
+			PluginStore.closeQuietly(out);
+		}
+		target.delete();
+		return null;
+	}
+
+	private static DataInputStream open(String patchFile) throws IOException {
+		FileInputStream fis = new FileInputStream(patchFile);
+		try {
+			DataInputStream raw = new DataInputStream(fis);
+			if (raw.readInt() != PATCH_MAGIC || raw.readInt() != PATCH_VERSION) {
+				throw new IOException("not a plugin patch " + patchFile);
+			}
+			return new DataInputStream(new BufferedInputStream(new GZIPInputStream(fis, BUFFER_SIZE), BUFFER_SIZE));
+		} catch (IOException e) {
+			PluginStore.closeQuietly(fis);
+			throw e;
+		}
+	}
+
+	private static Header readHeader(DataInputStream in) throws IOException {
+		String packageName = in.readUTF();
+		String baseVersion = in.readUTF();
+		String targetDigest = in.readUTF();
+		long targetLength = in.readLong();
+		return new Header(packageName, baseVersion, targetDigest, targetLength);
+	}
+}
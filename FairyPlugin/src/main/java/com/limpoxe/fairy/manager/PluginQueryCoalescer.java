@@ -0,0 +1,103 @@
+package com.limpoxe.fairy.manager;
+
+import com.limpoxe.fairy.content.PluginDescriptor;
+
+import java.util.HashMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * 合并并发的相同查询
+ *
+ * Activity连续启动、多个receiver同时触发时, 多个线程会同时查询同一个类名或者插件id,
+ * 同一时刻相同的查询只发起一次跨进程调用, 其他线程等待并共享解码后的结果。
+ * 只有缓存在同一次清空之后发起的查询才会合并, 安装、卸载之后的查询不会拿到之前发起的查询的结果
+ */
+class PluginQueryCoalescer {
+
+	interface Fetcher {
+		/**
+		 * @param type PluginDescriptorCache.BY_*
+		 * @param epoch 发起查询时缓存的epoch
+		 */
+		PluginDescriptor fetch(int type, String key, long epoch);
+	}
+
+	private static class Call {
+		PluginDescriptor result;
+		boolean done;
+	}
+
+	private final Fetcher mFetcher;
+	//正在进行中的查询
+	private final HashMap<String, Call> mInflight = new HashMap<String, Call>();
+
+	private final AtomicLong mRequests = new AtomicLong();
+	private final AtomicLong mCoalesced = new AtomicLong();
+
+	PluginQueryCoalescer(Fetcher fetcher) {
+		mFetcher = fetcher;
+	}
+
+	/**
+	 * @param epoch PluginDescriptorCache.getEpoch
+	 */
+	PluginDescriptor query(int type, String key, long epoch) {
+		mRequests.incrementAndGet();
+		String flightKey = epoch + ":" + type + ":" + key;
+		Call call;
+		boolean isLeader = false;
+		synchronized (mInflight) {
+			call = mInflight.get(flightKey);
+			if (call == null) {
+				call = new Call();
+				mInflight.put(flightKey, call);
+				isLeader = true;
+			}
+		}
+
+		if (!isLeader) {
+			mCoalesced.incrementAndGet();
+			synchronized (call) {
+				while (!call.done) {
+					try {
+						call.wait();
+					} catch (InterruptedException e) {
+						//不再等待, 自己查询
+						Thread.currentThread().interrupt();
+						return mFetcher.fetch(type, key, epoch);
+					}
+				}
+				return call.result;
+			}
+		}
+
+		PluginDescriptor result = null;
+		try {
+			result = mFetcher.fetch(type, key, epoch);
+		} finally {
+			synchronized (mInflight) {
+				mInflight.remove(flightKey);
+			}
+			synchronized (call) {
+				call.result = result;
+				call.done = true;
+				call.notifyAll();
+			}
+		}
+		return result;
+	}
+
+	/**
+	 * @return 经过这里的查询总数
+	 */
+	long getRequestCount() {
+		return mRequests.get();
+	}
+
+	/**
+	 * @return 共享了其他线程的结果、省掉的跨进程调用数
+	 */
+	long getCoalescedCount() {
+		return mCoalesced.get();
+	}
+}
@@ -0,0 +1,20 @@
+package com.limpoxe.fairy.manager;
+
+/**
+ * 已安装列表变化的监听, 见PluginManagerHelper.addRegistryListener
+ *
+ * 插件进程在提交安装、卸载后通过binder直接回调各进程, 不经过系统广播, 在主线程中回调
+ */
+public interface PluginRegistryListener {
+
+	public static final int EVENT_INSTALL = 1;
+	public static final int EVENT_REMOVE = 2;
+	//清空了所有插件, packageName和version为null
+	public static final int EVENT_REMOVE_ALL = 3;
+
+	/**
+	 * @param event EVENT_*
+	 * @param generation 变化后的已安装列表generation
+	 */
+	void onRegistryChanged(int event, String packageName, String version, long generation);
+}
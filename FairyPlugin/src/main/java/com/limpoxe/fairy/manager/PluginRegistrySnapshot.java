@@ -0,0 +1,286 @@
+package com.limpoxe.fairy.manager;
+
+import android.content.Context;
+
+import com.limpoxe.fairy.content.PluginDescriptor;
+import com.limpoxe.fairy.content.PluginDescriptorCodec;
+import com.limpoxe.fairy.core.FairyGlobal;
+import com.limpoxe.fairy.util.LogUtil;
+
+import java.io.DataInputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * 已安装插件列表的只读快照
+ *
+ * 插件进程在每次安装、卸载后重写快照文件, 并把generation文件更新为PluginManagerService的generation,
+ * 和查询结果、广播中的generation是同一个计数。其他进程直接mmap快照文件查询, 不需要跨进程调用。
+ * generation文件也是mmap的, 查询前比较一下计数即可知道快照是否有变化。
+ * 读取失败的快照按generation记住, generation变化之前不再重试, 直接回退到跨进程查询
+ *
+ * 快照格式：magic | version | generation | count | section...
+ * section：length | packageName | version | installedPath | enabled | classNames | fragmentIds | bodyLength | body
+ * body是PluginDescriptorCodec编码的完整描述, 查询到时才解码
+ */
+class PluginRegistrySnapshot {
+
+	static final int SNAPSHOT_MAGIC = 0x46505253;//FPRS
+	static final int SNAPSHOT_VERSION = 1;
+
+	static final String SNAPSHOT_NAME = "registry.snapshot";
+	static final String GENERATION_NAME = "registry.generation";
+
+	private static volatile MappedByteBuffer sGenerationBuffer;
+	private static volatile PluginRegistrySnapshot sCurrent;
+	//读取失败的快照的generation
+	private static volatile long sFailedGeneration;
+
+	private final long generation;
+	private final ByteBuffer buffer;
+	//包名 -> body的位置
+	private final LinkedHashMap<String, Record> entries;
+	private final HashMap<String, String> classNames;
+	private final HashMap<String, String> fragmentIds;
+	//同一个快照中的描述只解码一次
+	private final HashMap<String, PluginDescriptor> decoded = new HashMap<String, PluginDescriptor>();
+
+	private PluginRegistrySnapshot(long generation, ByteBuffer buffer, LinkedHashMap<String, Record> entries,
+								   HashMap<String, String> classNames, HashMap<String, String> fragmentIds) {
+		this.generation = generation;
+		this.buffer = buffer;
+		this.entries = entries;
+		this.classNames = classNames;
+		this.fragmentIds = fragmentIds;
+	}
+
+	static File getSnapshotDir() {
+		return FairyGlobal.getHostApplication().getDir("plugin_snapshot", Context.MODE_PRIVATE);
+	}
+
+	/**
+	 * 返回最新的快照, 快照不存在或者读取失败时返回null, 调用方应回退到跨进程查询
+	 */
+	static PluginRegistrySnapshot current() {
+		long generation = readGeneration();
+		if (generation <= 0) {
+			return null;
+		}
+		PluginRegistrySnapshot snapshot = sCurrent;
+		if (snapshot != null && snapshot.generation == generation) {
+			return snapshot;
+		}
+		if (sFailedGeneration == generation) {
+			return null;
+		}
+		synchronized (PluginRegistrySnapshot.class) {
+			snapshot = sCurrent;
+			if (snapshot != null && snapshot.generation == generation) {
+				return snapshot;
+			}
+			if (sFailedGeneration == generation) {
+				return null;
+			}
+			snapshot = load(new File(getSnapshotDir(), SNAPSHOT_NAME));
+			if (snapshot == null || snapshot.generation != generation) {
+				//快照损坏, 或者和generation文件不一致, 等generation变化后再读
+				LogUtil.w("插件列表快照不可用, 回退到跨进程查询", generation);
+				sFailedGeneration = generation;
+				return null;
+			}
+			sCurrent = snapshot;
+		}
+		return snapshot;
+	}
+
+	long getGeneration() {
+		return generation;
+	}
+
+	synchronized PluginDescriptor queryById(String packageName) {
+		Record entry = entries.get(packageName);
+		if (entry == null || !entry.enabled) {
+			return null;
+		}
+		return decode(packageName, entry);
+	}
+
+	//按名字查询和插件进程中一样, 不过滤未启用的插件
+	synchronized PluginDescriptor queryByClassName(String clazzName) {
+		return queryByName(classNames.get(clazzName));
+	}
+
+	synchronized PluginDescriptor queryByFragmentId(String clazzId) {
+		return queryByName(fragmentIds.get(clazzId));
+	}
+
+	private PluginDescriptor queryByName(String packageName) {
+		Record entry = packageName == null ? null : entries.get(packageName);
+		return entry == null ? null : decode(packageName, entry);
+	}
+
+	synchronized ArrayList<PluginDescriptor> queryAll() {
+		ArrayList<PluginDescriptor> list = new ArrayList<PluginDescriptor>(entries.size());
+		for (Map.Entry<String, Record> entry : entries.entrySet()) {
+			PluginDescriptor pluginDescriptor = decode(entry.getKey(), entry.getValue());
+			if (pluginDescriptor != null) {
+				list.add(pluginDescriptor);
+			}
+		}
+		return list;
+	}
+
+	private PluginDescriptor decode(String packageName, Record entry) {
+		PluginDescriptor pluginDescriptor = decoded.get(packageName);
+		if (pluginDescriptor == null) {
+			ByteBuffer body = buffer.duplicate();
+			body.position(entry.bodyOffset);
+			body.limit(entry.bodyOffset + entry.bodyLength);
+			try {
+				pluginDescriptor = PluginDescriptorCodec.decode(new DataInputStream(new ByteBufferInputStream(body)));
+				decoded.put(packageName, pluginDescriptor);
+			} catch (IOException e) {
+				LogUtil.printException("PluginRegistrySnapshot.decode", e);
+			}
+		}
+		return pluginDescriptor;
+	}
+
+	private static long readGeneration() {
+		MappedByteBuffer buffer = sGenerationBuffer;
+		if (buffer != null) {
+			return buffer.getLong(0);
+		}
+		synchronized (PluginRegistrySnapshot.class) {
+			if (sGenerationBuffer == null) {
+				File file = new File(getSnapshotDir(), GENERATION_NAME);
+				if (!file.exists()) {
+					return 0;
+				}
+				RandomAccessFile raf = null;
+				try {
+					raf = new RandomAccessFile(file, "r");
+					if (raf.length() < 8) {
+						return 0;
+					}
+					sGenerationBuffer = raf.getChannel().map(FileChannel.MapMode.READ_ONLY, 0, 8);
+				} catch (IOException e) {
+					LogUtil.printException("PluginRegistrySnapshot.readGeneration", e);
+					return 0;
+				} finally {
+					PluginStore.closeQuietly(raf);
+				}
+			}
+			return sGenerationBuffer.getLong(0);
+		}
+	}
+
+	private static PluginRegistrySnapshot load(File file) {
+		if (!file.exists()) {
+			return null;
+		}
+		long t1 = System.currentTimeMillis();
+		RandomAccessFile raf = null;
+		try {
+			raf = new RandomAccessFile(file, "r");
+			//mmap之后文件可以关闭, 写入方是先写临时文件再rename的, 已经映射的内容不会被修改
+			MappedByteBuffer buffer = raf.getChannel().map(FileChannel.MapMode.READ_ONLY, 0, raf.length());
+			DataInputStream in = new DataInputStream(new ByteBufferInputStream(buffer.duplicate()));
+			if (in.readInt() != SNAPSHOT_MAGIC || in.readInt() != SNAPSHOT_VERSION) {
+				return null;
+			}
+			long generation = in.readLong();
+			int count = in.readInt();
+
+			LinkedHashMap<String, Record> entries = new LinkedHashMap<String, Record>();
+			HashMap<String, String> classNames = new HashMap<String, String>();
+			HashMap<String, String> fragmentIds = new HashMap<String, String>();
+			int position = 4 + 4 + 8 + 4;
+			for (int i = 0; i < count; i++) {
+				ByteBuffer section = buffer.duplicate();
+				section.position(position);
+				int sectionLength = section.getInt();
+				section.limit(position + 4 + sectionLength);
+				ByteBufferInputStream sectionStream = new ByteBufferInputStream(section);
+				DataInputStream sectionIn = new DataInputStream(sectionStream);
+
+				String packageName = PluginDescriptorCodec.readString(sectionIn);
+				PluginDescriptorCodec.readString(sectionIn);
+				PluginDescriptorCodec.readString(sectionIn);
+				boolean enabled = sectionIn.readBoolean();
+				for (String name : PluginDescriptorCodec.readStringList(sectionIn)) {
+					if (!classNames.containsKey(name)) {
+						classNames.put(name, packageName);
+					}
+				}
+				for (String name : PluginDescriptorCodec.readStringList(sectionIn)) {
+					if (!fragmentIds.containsKey(name)) {
+						fragmentIds.put(name, packageName);
+					}
+				}
+				int bodyLength = sectionIn.readInt();
+				entries.put(packageName, new Record(enabled, section.position(), bodyLength));
+
+				position += 4 + sectionLength;
+			}
+			LogUtil.d("加载插件列表快照", generation, count, "耗时", System.currentTimeMillis() - t1);
+			return new PluginRegistrySnapshot(generation, buffer, entries, classNames, fragmentIds);
+		} catch (Exception e) {
+			//快照写到一半或者已损坏, 回退到跨进程查询
+			LogUtil.printException("PluginRegistrySnapshot.load", e);
+		} finally {
+			PluginStore.closeQuietly(raf);
+		}
+		return null;
+	}
+
+	private static class Record {
+		final boolean enabled;
+		final int bodyOffset;
+		final int bodyLength;
+
+		Record(boolean enabled, int bodyOffset, int bodyLength) {
+			this.enabled = enabled;
+			this.bodyOffset = bodyOffset;
+			this.bodyLength = bodyLength;
+		}
+	}
+
+	static class ByteBufferInputStream extends InputStream {
+
+		private final ByteBuffer buffer;
+
+		ByteBufferInputStream(ByteBuffer buffer) {
+			this.buffer = buffer;
+		}
+
+		@Override
+		public int read() {
+			return buffer.hasRemaining() ? buffer.get() & 0xFF : -1;
+		}
+
+		@Override
+		public int read(byte[] bytes, int offset, int length) {
+			if (!buffer.hasRemaining()) {
+				return -1;
+			}
+			length = Math.min(length, buffer.remaining());
+			buffer.get(bytes, offset, length);
+			return length;
+		}
+
+		@Override
+		public int available() {
+			return buffer.remaining();
+		}
+	}
+}
@@ -0,0 +1,241 @@
+package com.limpoxe.fairy.manager;
+
+import com.limpoxe.fairy.content.PluginDescriptor;
+import com.limpoxe.fairy.content.PluginDescriptorCodec;
+import com.limpoxe.fairy.util.LogUtil;
+
+import java.io.BufferedInputStream;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * 在插件进程中维护PluginRegistrySnapshot
+ *
+ * 每个插件的section编码一次后缓存在内存中, 安装、卸载时只需要重新编码变化的插件,
+ * 其他插件的section原样写回
+ */
+class PluginSnapshotWriter {
+
+	private final File snapshotFile;
+	private final File generationFile;
+
+	//包名 -> section, 不含section前面的长度
+	private final LinkedHashMap<String, Section> sections = new LinkedHashMap<String, Section>();
+	private long generation;
+	private MappedByteBuffer generationBuffer;
+	//内存中的section和文件中的不一致
+	private boolean dirty;
+
+	PluginSnapshotWriter(File snapshotDir) {
+		snapshotFile = new File(snapshotDir, PluginRegistrySnapshot.SNAPSHOT_NAME);
+		generationFile = new File(snapshotDir, PluginRegistrySnapshot.GENERATION_NAME);
+	}
+
+	/**
+	 * 读入已有的快照, 和已安装列表不一致的section会被丢弃
+	 *
+	 * @return 需要重新生成section的插件
+	 */
+	synchronized ArrayList<String> load(Map<String, PluginHeader> installed) {
+		sections.clear();
+		dirty = !snapshotFile.exists();
+		if (snapshotFile.exists()) {
+			DataInputStream in = null;
+			try {
+				in = new DataInputStream(new BufferedInputStream(new FileInputStream(snapshotFile)));
+				if (in.readInt() == PluginRegistrySnapshot.SNAPSHOT_MAGIC
+						&& in.readInt() == PluginRegistrySnapshot.SNAPSHOT_VERSION) {
+					generation = in.readLong();
+					int count = in.readInt();
+					for (int i = 0; i < count; i++) {
+						byte[] bytes = new byte[in.readInt()];
+						in.readFully(bytes);
+						Section section = Section.parse(bytes);
+						sections.put(section.packageName, section);
+					}
+				}
+			} catch (IOException e) {
+				LogUtil.printException("PluginSnapshotWriter.load", e);
+				sections.clear();
+				dirty = true;
+			} finally {
+				PluginStore.closeQuietly(in);
+			}
+		}
+
+		ArrayList<String> stale = new ArrayList<String>();
+		Iterator<Section> itr = sections.values().iterator();
+		while (itr.hasNext()) {
+			Section section = itr.next();
+			PluginHeader header = installed.get(section.packageName);
+			if (header == null) {
+				itr.remove();
+				dirty = true;
+			} else if (!equals(header.version, section.version)
+					|| !equals(header.installedPath, section.installedPath)
+					|| header.enabled != section.enabled) {
+				itr.remove();
+				stale.add(section.packageName);
+			}
+		}
+		for (String packageName : installed.keySet()) {
+			if (!sections.containsKey(packageName) && !stale.contains(packageName)) {
+				stale.add(packageName);
+			}
+		}
+		if (!stale.isEmpty()) {
+			dirty = true;
+		}
+		return stale;
+	}
+
+	synchronized boolean isDirty() {
+		return dirty;
+	}
+
+	synchronized void put(PluginDescriptor pluginDescriptor) {
+		try {
+			Section section = Section.of(pluginDescriptor);
+			sections.put(section.packageName, section);
+			dirty = true;
+		} catch (IOException e) {
+			LogUtil.printException("PluginSnapshotWriter.put", e);
+		}
+	}
+
+	synchronized void remove(String packageName) {
+		if (sections.remove(packageName) != null) {
+			dirty = true;
+		}
+	}
+
+	synchronized void clear() {
+		sections.clear();
+		dirty = true;
+	}
+
+
+	/**
+	 * @return 上次发布的generation, 没有发布过时返回0
+	 */
+	synchronized long getPublishedGeneration() {
+		return Math.max(generation, readGeneration());
+	}
+
+	/**
+	 * 写入新的快照, 然后更新generation文件通知其他进程
+	 *
+	 * @param next PluginManagerService的generation, 和查询结果、广播中的一致
+	 */
+	synchronized boolean publish(long next) {
+		try {
+			ByteArrayOutputStream byteArrayOutputStream = new ByteArrayOutputStream();
+			DataOutputStream out = new DataOutputStream(byteArrayOutputStream);
+			out.writeInt(PluginRegistrySnapshot.SNAPSHOT_MAGIC);
+			out.writeInt(PluginRegistrySnapshot.SNAPSHOT_VERSION);
+			out.writeLong(next);
+			out.writeInt(sections.size());
+			for (Section section : sections.values()) {
+				out.writeInt(section.bytes.length);
+				out.write(section.bytes);
+			}
+			out.flush();
+			if (!PluginStore.writeAtomically(snapshotFile, byteArrayOutputStream.toByteArray())) {
+				return false;
+			}
+		} catch (IOException e) {
+			LogUtil.printException("PluginSnapshotWriter.publish", e);
+			return false;
+		}
+		generation = next;
+		dirty = false;
+		writeGeneration(next);
+		LogUtil.d("更新插件列表快照", next, sections.size());
+		return true;
+	}
+
+	private long readGeneration() {
+		MappedByteBuffer buffer = mapGeneration();
+		return buffer == null ? 0 : buffer.getLong(0);
+	}
+
+	private void writeGeneration(long value) {
+		MappedByteBuffer buffer = mapGeneration();
+		if (buffer != null) {
+			buffer.putLong(0, value);
+		}
+	}
+
+	private MappedByteBuffer mapGeneration() {
+		if (generationBuffer == null) {
+			RandomAccessFile raf = null;
+			try {
+				raf = new RandomAccessFile(generationFile, "rw");
+				generationBuffer = raf.getChannel().map(FileChannel.MapMode.READ_WRITE, 0, 8);
+			} catch (IOException e) {
+				LogUtil.printException("PluginSnapshotWriter.mapGeneration", e);
+			} finally {
+				PluginStore.closeQuietly(raf);
+			}
+		}
+		return generationBuffer;
+	}
+
+	private static boolean equals(String a, String b) {
+		return a == null ? b == null : a.equals(b);
+	}
+
+	private static class Section {
+		final String packageName;
+		final String version;
+		final String installedPath;
+		final boolean enabled;
+		final byte[] bytes;
+
+		Section(String packageName, String version, String installedPath, boolean enabled, byte[] bytes) {
+			this.packageName = packageName;
+			this.version = version;
+			this.installedPath = installedPath;
+			this.enabled = enabled;
+			this.bytes = bytes;
+		}
+
+		static Section of(PluginDescriptor pluginDescriptor) throws IOException {
+			byte[] body = PluginDescriptorCodec.encode(pluginDescriptor);
+			ByteArrayOutputStream byteArrayOutputStream = new ByteArrayOutputStream(body.length + 1024);
+			DataOutputStream out = new DataOutputStream(byteArrayOutputStream);
+			PluginDescriptorCodec.writeString(out, pluginDescriptor.getPackageName());
+			PluginDescriptorCodec.writeString(out, pluginDescriptor.getVersion());
+			PluginDescriptorCodec.writeString(out, pluginDescriptor.getInstalledPath());
+			out.writeBoolean(pluginDescriptor.isEnabled());
+			PluginDescriptorCodec.writeStringList(out, PluginNameIndex.collectClassNames(pluginDescriptor));
+			PluginDescriptorCodec.writeStringList(out, PluginNameIndex.keys(pluginDescriptor.getFragments()));
+			out.writeInt(body.length);
+			out.write(body);
+			out.flush();
+			return new Section(pluginDescriptor.getPackageName(), pluginDescriptor.getVersion(),
+					pluginDescriptor.getInstalledPath(), pluginDescriptor.isEnabled(), byteArrayOutputStream.toByteArray());
+		}
+
+		static Section parse(byte[] bytes) throws IOException {
+			DataInputStream in = new DataInputStream(new ByteArrayInputStream(bytes));
+			String packageName = PluginDescriptorCodec.readString(in);
+			String version = PluginDescriptorCodec.readString(in);
+			String installedPath = PluginDescriptorCodec.readString(in);
+			boolean enabled = in.readBoolean();
+			return new Section(packageName, version, installedPath, enabled, bytes);
+		}
+	}
+}
@@ -0,0 +1,43 @@
+package com.limpoxe.fairy.manager;
+
+/**
+ * PluginStatusChangeListener的空实现, 需要监听异步安装进度和dexopt状态时继承这个类,
+ * 只覆盖关心的方法。后续新增的回调只加在这里, 不再加到PluginStatusChangeListener接口中,
+ * 已有的接口实现不受影响
+ */
+public abstract class PluginStatusChangeAdapter implements PluginStatusChangeListener {
+
+    @Override
+    public void onInstall(int result, String packageName, String version, String src) {
+    }
+
+    @Override
+    public void onRemove(String packageName, int code) {
+    }
+
+    @Override
+    public void onStart(String packageName) {
+    }
+
+    @Override
+    public void onStop(String packageName) {
+    }
+
+    /**
+     * 异步安装、卸载的进度, 见PluginManagerHelper.installPluginAsync
+     * 取消的会话只会收到这个通知, 不会再回调onInstall、onRemove
+     * @param stage STAGE_*, 进入STAGE_COMMIT之前都可以取消
+     * @param code 只在STAGE_FINISHED时有效, 和同步安装、卸载的返回值相同,
+     *             取消时为PluginManagerHelper.INSTALL_CANCELED, 卸载取消时为PluginManagerHelper.REMOVE_CANCELED
+     */
+    public void onProgress(int sessionId, String target, int stage, int code) {
+    }
+
+    /**
+     * 插件dexopt状态变化
+     * @param state OPTIMIZE_QUEUED, OPTIMIZE_STARTED, OPTIMIZE_FINISHED, OPTIMIZE_FAILED, OPTIMIZE_CANCELED
+     * @param pending 还在排队的插件数
+     */
+    public void onOptimize(String packageName, String version, int state, int pending) {
+    }
+}
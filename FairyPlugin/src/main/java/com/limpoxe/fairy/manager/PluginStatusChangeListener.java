@@ -5,4 +5,32 @@ package com.limpoxe.fairy.manager;
  */
 public interface PluginStatusChangeListener extends PluginCallback {
 
+    public static final String TYPE_OPTIMIZE = "optimize";
+
+    public static final String EXTRA_OPTIMIZE_STATE = "optimize_state";
+    public static final String EXTRA_OPTIMIZE_PENDING = "optimize_pending";
+
+    public static final String TYPE_PROGRESS = "progress";
+
+    //安装、卸载广播中携带的已安装列表generation
+    public static final String EXTRA_GENERATION = "generation";
+
+    public static final String EXTRA_SESSION_ID = "session_id";
+    public static final String EXTRA_STAGE = "stage";
+
+    public static final int OPTIMIZE_QUEUED = 0;
+    public static final int OPTIMIZE_STARTED = 1;
+    public static final int OPTIMIZE_FINISHED = 2;
+    public static final int OPTIMIZE_FAILED = 3;
+    //还没有开始就因为卸载而取消
+    public static final int OPTIMIZE_CANCELED = 4;
+
+    //异步安装、卸载的阶段
+    public static final int STAGE_QUEUED = 0;
+    public static final int STAGE_COPY = 1;
+    public static final int STAGE_VERIFY = 2;
+    public static final int STAGE_EXTRACT = 3;
+    public static final int STAGE_COMMIT = 4;
+    public static final int STAGE_OPTIMIZE = 5;
+    public static final int STAGE_FINISHED = 6;
 }
@@ -0,0 +1,471 @@
+package com.limpoxe.fairy.manager;
+
+import android.content.Context;
+import android.content.SharedPreferences;
+import android.os.Build;
+import android.text.TextUtils;
+import android.util.Base64;
+
+import com.limpoxe.fairy.content.PluginDescriptor;
+import com.limpoxe.fairy.content.PluginDescriptorCodec;
+import com.limpoxe.fairy.core.FairyGlobal;
+import com.limpoxe.fairy.util.LogUtil;
+
+import java.io.BufferedInputStream;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.Closeable;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.ObjectInputStream;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.Hashtable;
+import java.util.Iterator;
+
+/**
+ * 已安装插件列表的持久化存储
+ *
+ * 每个插件对应一个独立的记录文件, 安装或卸载一个插件只会读写它自己的那条记录,
+ * 记录先写入临时文件再rename, 保证单条记录的写入是原子的。
+ * 正在进行的安装事务每个插件一个.txn文件, 见InstallTransaction。
+ *
+ * 记录格式：magic | recordVersion | headerLength | 头部(packageName, version, enabled, installedPath, stamp, localservice)
+ *          | codecVersion | bodyLength | body
+ * 头部放在最前面, 插件进程启动时只需要读头部, body在第一次访问时才解码。
+ * 头部带长度, 头部格式变化后旧记录仍然可以跳过头部读取body, 用body重建头部, 不需要重新安装。
+ *
+ * 所有插件的类名、fragment id、authority、localservice名字放在单独的一个索引文件中, 见PluginNameIndex
+ */
+class PluginStore {
+
+	private static final int RECORD_MAGIC = 0x46504452;//FPDR
+	private static final int RECORD_VERSION = 6;
+
+	private static final int NAME_INDEX_MAGIC = 0x46504E49;//FPNI
+	private static final int NAME_INDEX_VERSION = 1;
+	private static final String NAME_INDEX_NAME = "names.index";
+
+	private static final String RECORD_SUFFIX = ".rec";
+	private static final String TEMP_SUFFIX = ".tmp";
+	private static final String TRANSACTION_SUFFIX = ".txn";
+
+	//旧版本使用SharedPreferences存储整个列表, 仅用于升级迁移
+	private static final String LEGACY_PREFERENCE_NAME = "plugins.installed";
+	private static final String LEGACY_INSTALLED_KEY = "plugins.list";
+	private static final String LEGACY_PENDING_KEY = "plugins.pending";
+
+	private final File storeDir;
+
+	PluginStore(File storeDir) {
+		this.storeDir = storeDir;
+		if (!storeDir.exists()) {
+			storeDir.mkdirs();
+		}
+	}
+
+	/**
+	 * 读取所有已安装插件的头部
+	 *
+	 * 头部版本不同时用body重建头部并改写记录, body也无法读取的记录放入unreadable, 由调用方决定如何恢复
+	 *
+	 * @param unreadable 无法读取的记录对应的包名
+	 */
+	synchronized Hashtable<String, PluginHeader> readHeaders(ArrayList<String> unreadable) {
+		migrateLegacyPreferences();
+
+		Hashtable<String, PluginHeader> result = new Hashtable<String, PluginHeader>();
+		File[] files = storeDir.listFiles();
+		if (files == null) {
+			return result;
+		}
+		for (File file : files) {
+			String name = file.getName();
+			if (name.endsWith(TEMP_SUFFIX)) {
+				//上次写入过程中进程被杀掉留下的临时文件
+				file.delete();
+			} else if (name.endsWith(RECORD_SUFFIX)) {
+				PluginHeader header = readHeader(file);
+				if (header == null) {
+					header = rebuildHeader(file);
+				}
+				if (header != null) {
+					result.put(header.packageName, header);
+				} else {
+					LogUtil.e("插件记录无法读取", file.getAbsolutePath());
+					unreadable.add(name.substring(0, name.length() - RECORD_SUFFIX.length()));
+				}
+			}
+		}
+		return result;
+	}
+
+	/**
+	 * 读取并解码一条已安装插件的完整记录
+	 */
+	synchronized PluginDescriptor read(String packageName) {
+		File file = recordFile(packageName);
+		if (!file.exists()) {
+			return null;
+		}
+		return readRecord(file);
+	}
+
+	/**
+	 * @return 写入的头部, 失败返回null
+	 */
+	synchronized PluginHeader write(PluginDescriptor pluginDescriptor) {
+		return writeRecord(recordFile(pluginDescriptor.getPackageName()), pluginDescriptor);
+	}
+
+	/**
+	 * @return 索引文件不存在或者无法读取时返回null
+	 */
+	synchronized ArrayList<PluginNameIndex.Names> readNameIndex() {
+		File file = new File(storeDir, NAME_INDEX_NAME);
+		if (!file.exists()) {
+			return null;
+		}
+		DataInputStream in = null;
+		try {
+			in = new DataInputStream(new BufferedInputStream(new FileInputStream(file), 8 * 1024));
+			if (in.readInt() != NAME_INDEX_MAGIC || in.readInt() != NAME_INDEX_VERSION) {
+				return null;
+			}
+			int count = in.readInt();
+			ArrayList<PluginNameIndex.Names> list = new ArrayList<PluginNameIndex.Names>(count);
+			for (int i = 0; i < count; i++) {
+				String packageName = PluginDescriptorCodec.readString(in);
+				long stamp = in.readLong();
+				ArrayList<String> classNames = PluginDescriptorCodec.readStringList(in);
+				ArrayList<String> fragmentIds = PluginDescriptorCodec.readStringList(in);
+				ArrayList<String> authorities = PluginDescriptorCodec.readStringList(in);
+				ArrayList<String> serviceNames = PluginDescriptorCodec.readStringList(in);
+				list.add(new PluginNameIndex.Names(packageName, stamp, classNames, fragmentIds, authorities, serviceNames));
+			}
+			return list;
+		} catch (IOException e) {
+			LogUtil.printException("PluginStore.readNameIndex", e);
+		} finally {
+			closeQuietly(in);
+		}
+		return null;
+	}
+
+	synchronized boolean writeNameIndex(ArrayList<PluginNameIndex.Names> list) {
+		try {
+			ByteArrayOutputStream byteArrayOutputStream = new ByteArrayOutputStream();
+			DataOutputStream out = new DataOutputStream(byteArrayOutputStream);
+			out.writeInt(NAME_INDEX_MAGIC);
+			out.writeInt(NAME_INDEX_VERSION);
+			out.writeInt(list.size());
+			for (PluginNameIndex.Names names : list) {
+				PluginDescriptorCodec.writeString(out, names.packageName);
+				out.writeLong(names.stamp);
+				PluginDescriptorCodec.writeStringList(out, names.classNames);
+				PluginDescriptorCodec.writeStringList(out, names.fragmentIds);
+				PluginDescriptorCodec.writeStringList(out, names.authorities);
+				PluginDescriptorCodec.writeStringList(out, names.serviceNames);
+			}
+			out.flush();
+			return writeAtomically(new File(storeDir, NAME_INDEX_NAME), byteArrayOutputStream.toByteArray());
+		} catch (IOException e) {
+			LogUtil.printException("PluginStore.writeNameIndex", e);
+		}
+		return false;
+	}
+
+	synchronized boolean delete(String packageName) {
+		File file = recordFile(packageName);
+		return !file.exists() || file.delete();
+	}
+
+	synchronized boolean deleteAll() {
+		boolean isSuccess = true;
+		File[] files = storeDir.listFiles();
+		if (files != null) {
+			for (File file : files) {
+				isSuccess = file.delete() && isSuccess;
+			}
+		}
+		return isSuccess;
+	}
+
+	synchronized boolean writeTransaction(InstallTransaction transaction) {
+		try {
+			ByteArrayOutputStream byteArrayOutputStream = new ByteArrayOutputStream();
+			DataOutputStream out = new DataOutputStream(byteArrayOutputStream);
+			transaction.writeTo(out);
+			out.flush();
+			return writeAtomically(transactionFile(transaction.packageName), byteArrayOutputStream.toByteArray());
+		} catch (IOException e) {
+			LogUtil.printException("PluginStore.writeTransaction", e);
+		}
+		return false;
+	}
+
+	/**
+	 * 读取所有未完成的安装事务, 损坏的记录直接删除
+	 */
+	synchronized ArrayList<InstallTransaction> readTransactions() {
+		ArrayList<InstallTransaction> list = new ArrayList<InstallTransaction>();
+		File[] files = storeDir.listFiles();
+		if (files == null) {
+			return list;
+		}
+		for (File file : files) {
+			if (!file.getName().endsWith(TRANSACTION_SUFFIX)) {
+				continue;
+			}
+			DataInputStream in = null;
+			try {
+				in = new DataInputStream(new BufferedInputStream(new FileInputStream(file)));
+				list.add(InstallTransaction.readFrom(in));
+			} catch (IOException e) {
+				//写入是原子的, 一般不会出现
+				LogUtil.printException("PluginStore.readTransactions", e);
+				file.delete();
+			} finally {
+				closeQuietly(in);
+			}
+		}
+		return list;
+	}
+
+	synchronized void deleteTransaction(String packageName) {
+		transactionFile(packageName).delete();
+	}
+
+	private File transactionFile(String packageName) {
+		return new File(storeDir, checkName(packageName) + TRANSACTION_SUFFIX);
+	}
+
+	private File recordFile(String packageName) {
+		return new File(storeDir, checkName(packageName) + RECORD_SUFFIX);
+	}
+
+	private static String checkName(String packageName) {
+		if (packageName.indexOf(File.separatorChar) >= 0) {
+			throw new IllegalArgumentException("packageName contains a path separator");
+		}
+		return packageName;
+	}
+
+	private PluginHeader writeRecord(File target, PluginDescriptor pluginDescriptor) {
+		try {
+			byte[] body = PluginDescriptorCodec.encode(pluginDescriptor);
+			PluginHeader header = newHeader(pluginDescriptor, System.currentTimeMillis());
+			ByteArrayOutputStream headerBytes = new ByteArrayOutputStream(256);
+			DataOutputStream headerOut = new DataOutputStream(headerBytes);
+			writeHeader(headerOut, header);
+			headerOut.flush();
+
+			ByteArrayOutputStream byteArrayOutputStream = new ByteArrayOutputStream(body.length + headerBytes.size() + 32);
+			DataOutputStream out = new DataOutputStream(byteArrayOutputStream);
+			out.writeInt(RECORD_MAGIC);
+			out.writeInt(RECORD_VERSION);
+			out.writeInt(headerBytes.size());
+			headerBytes.writeTo(out);
+			out.writeInt(PluginDescriptorCodec.FORMAT_VERSION);
+			out.writeInt(body.length);
+			out.write(body);
+			out.flush();
+
+			if (writeAtomically(target, byteArrayOutputStream.toByteArray())) {
+				return header;
+			}
+		} catch (IOException e) {
+			LogUtil.printException("PluginStore.writeRecord", e);
+		}
+		return null;
+	}
+
+	/**
+	 * 读取body, 不关心头部的版本
+	 */
+	private PluginDescriptor readRecord(File file) {
+		DataInputStream in = null;
+		try {
+			in = new DataInputStream(new BufferedInputStream(new FileInputStream(file), 8 * 1024));
+			if (in.readInt() != RECORD_MAGIC) {
+				return null;
+			}
+			in.readInt();
+			int headerLength = in.readInt();
+			if (headerLength < 0 || headerLength > file.length()) {
+				LogUtil.e("插件记录头部长度错误", headerLength, file.getAbsolutePath());
+				return null;
+			}
+			in.readFully(new byte[headerLength]);
+			int codecVersion = in.readInt();
+			if (codecVersion != PluginDescriptorCodec.FORMAT_VERSION) {
+				LogUtil.e("不支持的插件描述版本", codecVersion, file.getAbsolutePath());
+				return null;
+			}
+
+			byte[] body = new byte[in.readInt()];
+			in.readFully(body);
+			return PluginDescriptorCodec.decode(body);
+		} catch (IOException e) {
+			LogUtil.printException("PluginStore.readRecord", e);
+		} finally {
+			closeQuietly(in);
+		}
+		return null;
+	}
+
+	/**
+	 * @return 头部版本不是当前版本时返回null
+	 */
+	private PluginHeader readHeader(File file) {
+		DataInputStream in = null;
+		try {
+			//头部很小, 不需要大的缓冲区
+			in = new DataInputStream(new BufferedInputStream(new FileInputStream(file), 1024));
+			if (in.readInt() != RECORD_MAGIC || in.readInt() != RECORD_VERSION) {
+				return null;
+			}
+			in.readInt();
+			String packageName = PluginDescriptorCodec.readString(in);
+			String version = PluginDescriptorCodec.readString(in);
+			boolean enabled = in.readBoolean();
+			String installedPath = PluginDescriptorCodec.readString(in);
+			long stamp = in.readLong();
+			HashMap<String, String> functions = PluginDescriptorCodec.readStringMap(in);
+			return new PluginHeader(packageName, version, enabled, installedPath, stamp, functions);
+		} catch (IOException e) {
+			LogUtil.printException("PluginStore.readHeader", e);
+		} finally {
+			closeQuietly(in);
+		}
+		return null;
+	}
+
+	/**
+	 * 头部版本不同或者头部无法读取时, 用body重建头部, 并按当前版本改写记录
+	 */
+	private PluginHeader rebuildHeader(File file) {
+		PluginDescriptor pluginDescriptor = readRecord(file);
+		if (pluginDescriptor == null || !file.getName().equals(pluginDescriptor.getPackageName() + RECORD_SUFFIX)) {
+			return null;
+		}
+		LogUtil.w("用记录body重建插件头部", file.getAbsolutePath());
+		PluginHeader header = writeRecord(file, pluginDescriptor);
+		if (header == null) {
+			//改写失败不影响使用, body仍然可以读取, 下次启动再改写
+			header = newHeader(pluginDescriptor, 0);
+		}
+		return header;
+	}
+
+	private static PluginHeader newHeader(PluginDescriptor pluginDescriptor, long stamp) {
+		return new PluginHeader(pluginDescriptor.getPackageName(),
+				pluginDescriptor.getVersion(),
+				pluginDescriptor.isEnabled(),
+				pluginDescriptor.getInstalledPath(),
+				stamp,
+				pluginDescriptor.getFunctions());
+	}
+
+	private static void writeHeader(DataOutputStream out, PluginHeader header) throws IOException {
+		PluginDescriptorCodec.writeString(out, header.packageName);
+		PluginDescriptorCodec.writeString(out, header.version);
+		out.writeBoolean(header.enabled);
+		PluginDescriptorCodec.writeString(out, header.installedPath);
+		out.writeLong(header.stamp);
+		PluginDescriptorCodec.writeStringMap(out, header.functions);
+	}
+
+	static boolean writeAtomically(File target, byte[] data) {
+		File temp = new File(target.getPath() + TEMP_SUFFIX);
+		FileOutputStream fos = null;
+		try {
+			fos = new FileOutputStream(temp);
+			fos.write(data);
+			fos.flush();
+			fos.getFD().sync();
+			fos.close();
+			fos = null;
+			if (temp.renameTo(target)) {
+				return true;
+			}
+			LogUtil.e("rename失败", temp.getAbsolutePath(), target.getAbsolutePath());
+		} catch (IOException e) {
+			LogUtil.printException("PluginStore.writeAtomically", e);
+		} finally {
+			closeQuietly(fos);
+		}
+		temp.delete();
+		return false;
+	}
+
+	static void closeQuietly(Closeable closeable) {
+		if (closeable != null) {
+			try {
+				closeable.close();
+			} catch (IOException e) {
+				LogUtil.printException("PluginStore.closeQuietly", e);
+			}
+		}
+	}
+
+	/**
+	 * 旧版本把整个Hashtable序列化后Base64存在SharedPreferences中,
+	 * 这里一次性转存为记录文件, 然后删除旧数据
+	 */
+	private void migrateLegacyPreferences() {
+		SharedPreferences sp = getLegacySharedPreference();
+		if (!sp.contains(LEGACY_INSTALLED_KEY) && !sp.contains(LEGACY_PENDING_KEY)) {
+			return;
+		}
+		LogUtil.w("迁移旧版本插件列表");
+
+		boolean isSuccess = true;
+		Hashtable<String, PluginDescriptor> installed = readLegacyPlugins(sp, LEGACY_INSTALLED_KEY);
+		if (installed != null) {
+			Iterator<PluginDescriptor> itr = installed.values().iterator();
+			while (itr.hasNext()) {
+				isSuccess = write(itr.next()) != null && isSuccess;
+			}
+		}
+		//旧版本在下次启动时用pending覆盖已安装的同名插件, 这里直接覆盖
+		Hashtable<String, PluginDescriptor> pending = readLegacyPlugins(sp, LEGACY_PENDING_KEY);
+		if (pending != null) {
+			Iterator<PluginDescriptor> itr = pending.values().iterator();
+			while (itr.hasNext()) {
+				isSuccess = write(itr.next()) != null && isSuccess;
+			}
+		}
+
+		if (isSuccess) {
+			sp.edit().remove(LEGACY_INSTALLED_KEY).remove(LEGACY_PENDING_KEY).commit();
+		}
+	}
+
+	private static SharedPreferences getLegacySharedPreference() {
+		return FairyGlobal.getHostApplication().getSharedPreferences(LEGACY_PREFERENCE_NAME,
+				Build.VERSION.SDK_INT < 11 ? Context.MODE_PRIVATE : Context.MODE_PRIVATE | 0x0004);
+	}
+
+	@SuppressWarnings("unchecked")
+	private static Hashtable<String, PluginDescriptor> readLegacyPlugins(SharedPreferences sp, String key) {
+		String list = sp.getString(key, "");
+		if (TextUtils.isEmpty(list)) {
+			return null;
+		}
+		ObjectInputStream objectInputStream = null;
+		try {
+			objectInputStream = new ObjectInputStream(new ByteArrayInputStream(Base64.decode(list, Base64.DEFAULT)));
+			return (Hashtable<String, PluginDescriptor>) objectInputStream.readObject();
+		} catch (Exception e) {
+			LogUtil.printException("PluginStore.readLegacyPlugins", e);
+		} finally {
+			closeQuietly(objectInputStream);
+		}
+		return null;
+	}
+}
@@ -0,0 +1,132 @@
+package com.limpoxe.fairy.manager;
+
+import android.content.pm.Signature;
+
+import com.limpoxe.fairy.util.LogUtil;
+
+import java.io.BufferedInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * 签名校验结果的缓存
+ *
+ * key是apk内容的摘要加上签名块的摘要, 内容完全相同的apk再次安装时不需要重新校验每个jar entry。
+ * 缓存文件在宿主私有目录中, 只保存最近使用的一部分
+ */
+class PluginVerifyCache {
+
+	private static final int CACHE_MAGIC = 0x46505643;//FPVC
+	private static final int CACHE_VERSION = 1;
+	private static final int MAX_ENTRIES = 64;
+
+	private final File cacheFile;
+	private LinkedHashMap<String, byte[][]> entries;
+
+	PluginVerifyCache(File cacheFile) {
+		this.cacheFile = cacheFile;
+	}
+
+	static String buildKey(String apkDigest, byte[] signingBlockDigest) {
+		if (signingBlockDigest == null) {
+			return apkDigest;
+		}
+		StringBuilder sb = new StringBuilder(apkDigest).append(':');
+		for (byte b : signingBlockDigest) {
+			sb.append(Character.forDigit((b >> 4) & 0xF, 16));
+			sb.append(Character.forDigit(b & 0xF, 16));
+		}
+		return sb.toString();
+	}
+
+	synchronized Signature[] get(String key) {
+		byte[][] certs = load().get(key);
+		if (certs == null) {
+			return null;
+		}
+		Signature[] signatures = new Signature[certs.length];
+		for (int i = 0; i < certs.length; i++) {
+			signatures[i] = new Signature(certs[i]);
+		}
+		return signatures;
+	}
+
+	synchronized void put(String key, Signature[] signatures) {
+		byte[][] certs = new byte[signatures.length][];
+		for (int i = 0; i < signatures.length; i++) {
+			certs[i] = signatures[i].toByteArray();
+		}
+		load().put(key, certs);
+		save();
+	}
+
+	private LinkedHashMap<String, byte[][]> load() {
+		if (entries != null) {
+			return entries;
+		}
+		entries = new LinkedHashMap<String, byte[][]>(MAX_ENTRIES, 0.75f, true) {
+			@Override
+			protected boolean removeEldestEntry(Map.Entry<String, byte[][]> eldest) {
+				return size() > MAX_ENTRIES;
+			}
+		};
+		if (!cacheFile.exists()) {
+			return entries;
+		}
+		DataInputStream in = null;
+		try {
+			in = new DataInputStream(new BufferedInputStream(new FileInputStream(cacheFile)));
+			if (in.readInt() != CACHE_MAGIC || in.readInt() != CACHE_VERSION) {
+				return entries;
+			}
+			int count = in.readInt();
+			for (int i = 0; i < count; i++) {
+				String key = in.readUTF();
+				byte[][] certs = new byte[in.readInt()][];
+				for (int j = 0; j < certs.length; j++) {
+					certs[j] = new byte[in.readInt()];
+					in.readFully(certs[j]);
+				}
+				entries.put(key, certs);
+			}
+		} catch (IOException e) {
+			//缓存损坏, 丢弃即可, 下次安装重新校验
+			LogUtil.printException("PluginVerifyCache.load", e);
+			entries.clear();
+		} finally {
+			PluginStore.closeQuietly(in);
+		}
+		return entries;
+	}
+
+	private void save() {
+		try {
+			ByteArrayOutputStream byteArrayOutputStream = new ByteArrayOutputStream();
+			DataOutputStream out = new DataOutputStream(byteArrayOutputStream);
+			out.writeInt(CACHE_MAGIC);
+			out.writeInt(CACHE_VERSION);
+			out.writeInt(entries.size());
+			Iterator<Map.Entry<String, byte[][]>> itr = entries.entrySet().iterator();
+			while (itr.hasNext()) {
+				Map.Entry<String, byte[][]> entry = itr.next();
+				out.writeUTF(entry.getKey());
+				out.writeInt(entry.getValue().length);
+				for (byte[] cert : entry.getValue()) {
+					out.writeInt(cert.length);
+					out.write(cert);
+				}
+			}
+			out.flush();
+			PluginStore.writeAtomically(cacheFile, byteArrayOutputStream.toByteArray());
+		} catch (IOException e) {
+			LogUtil.printException("PluginVerifyCache.save", e);
+		}
+	}
+}
@@ -0,0 +1,452 @@
+package com.limpoxe.fairy.util;
+
+import android.content.pm.Signature;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.BufferUnderflowException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.security.GeneralSecurityException;
+import java.security.KeyFactory;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.security.PublicKey;
+import java.security.cert.CertificateException;
+import java.security.cert.CertificateFactory;
+import java.security.cert.X509Certificate;
+import java.security.spec.X509EncodedKeySpec;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+
+/**
+ * 参考Android SDK中的ApkSignatureSchemeV2Verifier
+ *
+ * 只校验APK Signing Block中的v2/v3签名, 不需要像jar签名那样解压并摘要每一个entry,
+ * 整个apk按1M分块做一次摘要即可。
+ * apk中没有签名块, 或者签名块中的算法都不支持时返回null, 调用方应回退到PackageVerifyer.collectCertificates
+ */
+public class ApkSignatureSchemeV2Verifier {
+
+    private static final String TAG = "ApkSignatureSchemeV2Verifier";
+
+    private static final int SCHEME_V2_BLOCK_ID = 0x7109871a;
+    private static final int SCHEME_V3_BLOCK_ID = 0xf05368c0;
+
+    private static final long APK_SIG_BLOCK_MAGIC_LO = 0x20676953204b5041L;
+    private static final long APK_SIG_BLOCK_MAGIC_HI = 0x3234206b636f6c42L;
+    private static final int APK_SIG_BLOCK_MIN_SIZE = 32;
+    //签名块正常只有几K, 过大的认为是格式错误
+    private static final int APK_SIG_BLOCK_MAX_SIZE = 16 * 1024 * 1024;
+
+    private static final int EOCD_MIN_SIZE = 22;
+    private static final int EOCD_SIGNATURE = 0x06054b50;
+    private static final int EOCD_CD_SIZE_OFFSET = 12;
+    private static final int EOCD_CD_OFFSET_OFFSET = 16;
+    private static final int EOCD_COMMENT_LENGTH_OFFSET = 20;
+
+    private static final int CHUNK_SIZE = 1024 * 1024;
+
+    private static final int SIGNATURE_RSA_PKCS1_V1_5_WITH_SHA256 = 0x0103;
+    private static final int SIGNATURE_RSA_PKCS1_V1_5_WITH_SHA512 = 0x0104;
+    private static final int SIGNATURE_ECDSA_WITH_SHA256 = 0x0201;
+    private static final int SIGNATURE_ECDSA_WITH_SHA512 = 0x0202;
+    private static final int SIGNATURE_DSA_WITH_SHA256 = 0x0301;
+
+    /**
+     * 校验签名块并返回每个签名者的证书
+     *
+     * @return 没有签名块或者算法不支持时返回null
+     * @throws SecurityException 有签名块但是校验失败, apk被篡改过
+     */
+    public static Signature[] verify(String apkPath) throws IOException {
+        RandomAccessFile apk = new RandomAccessFile(apkPath, "r");
+        try {
+            SigningBlock block = findSigningBlock(apk);
+            if (block == null) {
+                return null;
+            }
+            //优先使用v2, 没有v2时才使用v3
+            ByteBuffer signers = block.findValue(SCHEME_V2_BLOCK_ID);
+            boolean isV3 = false;
+            if (signers == null) {
+                signers = block.findValue(SCHEME_V3_BLOCK_ID);
+                isV3 = true;
+            }
+            if (signers == null) {
+                return null;
+            }
+            return verifySigners(apk, block, getLengthPrefixedSlice(signers), isV3);
+        } catch (BufferUnderflowException e) {
+            throw new SecurityException("Malformed APK Signing Block", e);
+        } finally {
+            apk.close();
+        }
+    }
+
+    /**
+     * 签名块的SHA-256, 没有签名块返回null
+     */
+    public static byte[] getSigningBlockDigest(String apkPath) {
+        RandomAccessFile apk = null;
+        try {
+            apk = new RandomAccessFile(apkPath, "r");
+            SigningBlock block = findSigningBlock(apk);
+            if (block != null) {
+                MessageDigest digest = MessageDigest.getInstance("SHA-256");
+                digest.update(block.bytes.duplicate());
+                return digest.digest();
+            }
+        } catch (Exception e) {
+            LogUtil.printException("ApkSignatureSchemeV2Verifier.getSigningBlockDigest", e);
+        } finally {
+            if (apk != null) {
+                try {
+                    apk.close();
+                } catch (IOException e) {
+                    LogUtil.printException("ApkSignatureSchemeV2Verifier.getSigningBlockDigest", e);
+                }
+            }
+        }
+        return null;
+    }
+
+    private static Signature[] verifySigners(RandomAccessFile apk, SigningBlock block, ByteBuffer signers, boolean isV3) throws IOException {
+        ArrayList<Signature> result = new ArrayList<Signature>();
+        //同一种摘要算法只计算一次
+        HashMap<String, byte[]> contentDigests = new HashMap<String, byte[]>();
+        while (signers.hasRemaining()) {
+            ByteBuffer signer = getLengthPrefixedSlice(signers);
+            ByteBuffer signedData = getLengthPrefixedSlice(signer);
+            if (isV3) {
+                int minSdk = signer.getInt();
+                int maxSdk = signer.getInt();
+                if (android.os.Build.VERSION.SDK_INT < minSdk || android.os.Build.VERSION.SDK_INT > maxSdk) {
+                    //这个签名者不适用于当前系统
+                    continue;
+                }
+            }
+            ByteBuffer signatures = getLengthPrefixedSlice(signer);
+            byte[] publicKeyBytes = readLengthPrefixedBytes(signer);
+
+            //选择支持的最强算法
+            int bestAlgorithm = -1;
+            byte[] bestSignature = null;
+            while (signatures.hasRemaining()) {
+                ByteBuffer signature = getLengthPrefixedSlice(signatures);
+                int algorithm = signature.getInt();
+                if (!isSupportedAlgorithm(algorithm)) {
+                    continue;
+                }
+                if (bestAlgorithm == -1 || isStronger(algorithm, bestAlgorithm)) {
+                    bestAlgorithm = algorithm;
+                    bestSignature = readLengthPrefixedBytes(signature);
+                }
+            }
+            if (bestAlgorithm == -1) {
+                LogUtil.w(TAG, "签名算法都不支持, 回退到jar签名校验");
+                return null;
+            }
+
+            try {
+                String keyAlgorithm = getKeyAlgorithm(bestAlgorithm);
+                PublicKey publicKey = KeyFactory.getInstance(keyAlgorithm).generatePublic(new X509EncodedKeySpec(publicKeyBytes));
+                java.security.Signature sig = java.security.Signature.getInstance(getJcaSignatureAlgorithm(bestAlgorithm));
+                sig.initVerify(publicKey);
+                sig.update(signedData.duplicate());
+                if (!sig.verify(bestSignature)) {
+                    throw new SecurityException("signature did not verify");
+                }
+            } catch (NoSuchAlgorithmException e) {
+                //低版本系统可能不支持EC等算法
+                LogUtil.w(TAG, "当前系统不支持签名算法, 回退到jar签名校验", e.getMessage());
+                return null;
+            } catch (GeneralSecurityException e) {
+                throw new SecurityException("Failed to verify signature", e);
+            }
+
+            //签名数据：digests | certificates | ...
+            ByteBuffer digests = getLengthPrefixedSlice(signedData);
+            byte[] expectedDigest = null;
+            while (digests.hasRemaining()) {
+                ByteBuffer digest = getLengthPrefixedSlice(digests);
+                int algorithm = digest.getInt();
+                byte[] value = readLengthPrefixedBytes(digest);
+                if (algorithm == bestAlgorithm) {
+                    expectedDigest = value;
+                }
+            }
+            if (expectedDigest == null) {
+                throw new SecurityException("No digest for signature algorithm");
+            }
+
+            ByteBuffer certificates = getLengthPrefixedSlice(signedData);
+            if (!certificates.hasRemaining()) {
+                throw new SecurityException("No certificates listed");
+            }
+            byte[] certificateBytes = readLengthPrefixedBytes(certificates);
+            X509Certificate certificate;
+            try {
+                certificate = (X509Certificate) CertificateFactory.getInstance("X.509")
+                        .generateCertificate(new ByteArrayInputStream(certificateBytes));
+            } catch (CertificateException e) {
+                throw new SecurityException("Failed to decode certificate", e);
+            }
+            if (!Arrays.equals(publicKeyBytes, certificate.getPublicKey().getEncoded())) {
+                throw new SecurityException("Public key mismatch between certificate and signature record");
+            }
+
+            String digestAlgorithm = getContentDigestAlgorithm(bestAlgorithm);
+            byte[] actualDigest = contentDigests.get(digestAlgorithm);
+            if (actualDigest == null) {
+                actualDigest = computeContentDigest(apk, block, digestAlgorithm);
+                contentDigests.put(digestAlgorithm, actualDigest);
+            }
+            if (!MessageDigest.isEqual(expectedDigest, actualDigest)) {
+                throw new SecurityException(digestAlgorithm + " digest of contents did not verify");
+            }
+
+            result.add(new Signature(certificateBytes));
+        }
+        if (result.isEmpty()) {
+            //v3中没有适用于当前系统的签名者
+            return null;
+        }
+        return result.toArray(new Signature[result.size()]);
+    }
+
+    /**
+     * 按1M分块摘要, 覆盖签名块之前的内容、中央目录、EOCD(其中的中央目录偏移替换为签名块的偏移)
+     */
+    private static byte[] computeContentDigest(RandomAccessFile apk, SigningBlock block, String digestAlgorithm) throws IOException {
+        MessageDigest chunkDigest;
+        MessageDigest topDigest;
+        try {
+            chunkDigest = MessageDigest.getInstance(digestAlgorithm);
+            topDigest = MessageDigest.getInstance(digestAlgorithm);
+        } catch (GeneralSecurityException e) {
+            throw new SecurityException(digestAlgorithm + " not supported", e);
+        }
+
+        byte[] eocd = new byte[block.eocd.remaining()];
+        block.eocd.duplicate().get(eocd);
+        ByteBuffer modifiedEocd = ByteBuffer.wrap(eocd).order(ByteOrder.LITTLE_ENDIAN);
+        modifiedEocd.putInt(EOCD_CD_OFFSET_OFFSET, (int) block.blockOffset);
+
+        long[][] sections = new long[][] {
+                {0, block.blockOffset},
+                {block.cdOffset, block.cdSize},
+        };
+        long chunkCount = 0;
+        for (long[] section : sections) {
+            chunkCount += (section[1] + CHUNK_SIZE - 1) / CHUNK_SIZE;
+        }
+        chunkCount += (eocd.length + CHUNK_SIZE - 1) / CHUNK_SIZE;
+
+        topDigest.update((byte) 0x5a);
+        topDigest.update(intToLittleEndian((int) chunkCount));
+
+        byte[] buffer = new byte[CHUNK_SIZE];
+        byte[] prefix = new byte[5];
+        prefix[0] = (byte) 0xa5;
+        for (long[] section : sections) {
+            long offset = section[0];
+            long remaining = section[1];
+            while (remaining > 0) {
+                int chunkSize = (int) Math.min(remaining, CHUNK_SIZE);
+                apk.seek(offset);
+                apk.readFully(buffer, 0, chunkSize);
+                System.arraycopy(intToLittleEndian(chunkSize), 0, prefix, 1, 4);
+                chunkDigest.update(prefix);
+                chunkDigest.update(buffer, 0, chunkSize);
+                topDigest.update(chunkDigest.digest());
+                offset += chunkSize;
+                remaining -= chunkSize;
+            }
+        }
+        System.arraycopy(intToLittleEndian(eocd.length), 0, prefix, 1, 4);
+        chunkDigest.update(prefix);
+        chunkDigest.update(eocd);
+        topDigest.update(chunkDigest.digest());
+
+        return topDigest.digest();
+    }
+
+    private static SigningBlock findSigningBlock(RandomAccessFile apk) throws IOException {
+        long fileSize = apk.length();
+        if (fileSize < EOCD_MIN_SIZE) {
+            return null;
+        }
+        //EOCD在文件末尾, 后面最多跟着65535字节的注释
+        int maxCommentSize = (int) Math.min(0xffff, fileSize - EOCD_MIN_SIZE);
+        byte[] tail = new byte[maxCommentSize + EOCD_MIN_SIZE];
+        long tailOffset = fileSize - tail.length;
+        apk.seek(tailOffset);
+        apk.readFully(tail);
+        ByteBuffer tailBuffer = ByteBuffer.wrap(tail).order(ByteOrder.LITTLE_ENDIAN);
+        int eocdPosition = -1;
+        for (int commentSize = 0; commentSize <= maxCommentSize; commentSize++) {
+            int position = tail.length - EOCD_MIN_SIZE - commentSize;
+            if (tailBuffer.getInt(position) == EOCD_SIGNATURE
+                    && (tailBuffer.getShort(position + EOCD_COMMENT_LENGTH_OFFSET) & 0xffff) == commentSize) {
+                eocdPosition = position;
+                break;
+            }
+        }
+        if (eocdPosition < 0) {
+            return null;
+        }
+        tailBuffer.position(eocdPosition);
+        ByteBuffer eocd = tailBuffer.slice().order(ByteOrder.LITTLE_ENDIAN);
+
+        long cdSize = eocd.getInt(EOCD_CD_SIZE_OFFSET) & 0xffffffffL;
+        long cdOffset = eocd.getInt(EOCD_CD_OFFSET_OFFSET) & 0xffffffffL;
+        if (cdOffset + cdSize != tailOffset + eocdPosition || cdOffset < APK_SIG_BLOCK_MIN_SIZE) {
+            return null;
+        }
+
+        //签名块的结尾：size of block(8) | magic(16)
+        byte[] footer = new byte[24];
+        apk.seek(cdOffset - footer.length);
+        apk.readFully(footer);
+        ByteBuffer footerBuffer = ByteBuffer.wrap(footer).order(ByteOrder.LITTLE_ENDIAN);
+        if (footerBuffer.getLong(8) != APK_SIG_BLOCK_MAGIC_LO || footerBuffer.getLong(16) != APK_SIG_BLOCK_MAGIC_HI) {
+            return null;
+        }
+        long blockSizeInFooter = footerBuffer.getLong(0);
+        if (blockSizeInFooter < footer.length || blockSizeInFooter > APK_SIG_BLOCK_MAX_SIZE - 8) {
+            throw new SecurityException("APK Signing Block size out of range: " + blockSizeInFooter);
+        }
+        int totalSize = (int) (blockSizeInFooter + 8);
+        long blockOffset = cdOffset - totalSize;
+        if (blockOffset < 0) {
+            throw new SecurityException("APK Signing Block offset out of range: " + blockOffset);
+        }
+        byte[] bytes = new byte[totalSize];
+        apk.seek(blockOffset);
+        apk.readFully(bytes);
+        ByteBuffer blockBuffer = ByteBuffer.wrap(bytes).order(ByteOrder.LITTLE_ENDIAN);
+        if (blockBuffer.getLong(0) != blockSizeInFooter) {
+            throw new SecurityException("APK Signing Block sizes in header and footer do not match");
+        }
+        return new SigningBlock(blockBuffer, blockOffset, cdOffset, cdSize, eocd);
+    }
+
+    private static boolean isSupportedAlgorithm(int algorithm) {
+        switch (algorithm) {
+            case SIGNATURE_RSA_PKCS1_V1_5_WITH_SHA256:
+            case SIGNATURE_RSA_PKCS1_V1_5_WITH_SHA512:
+            case SIGNATURE_ECDSA_WITH_SHA256:
+            case SIGNATURE_ECDSA_WITH_SHA512:
+            case SIGNATURE_DSA_WITH_SHA256:
+                return true;
+            default:
+                return false;
+        }
+    }
+
+    private static boolean isStronger(int algorithm, int than) {
+        return "SHA-512".equals(getContentDigestAlgorithm(algorithm)) && !"SHA-512".equals(getContentDigestAlgorithm(than));
+    }
+
+    private static String getContentDigestAlgorithm(int algorithm) {
+        if (algorithm == SIGNATURE_RSA_PKCS1_V1_5_WITH_SHA512 || algorithm == SIGNATURE_ECDSA_WITH_SHA512) {
+            return "SHA-512";
+        }
+        return "SHA-256";
+    }
+
+    private static String getKeyAlgorithm(int algorithm) {
+        switch (algorithm) {
+            case SIGNATURE_RSA_PKCS1_V1_5_WITH_SHA256:
+            case SIGNATURE_RSA_PKCS1_V1_5_WITH_SHA512:
+                return "RSA";
+            case SIGNATURE_ECDSA_WITH_SHA256:
+            case SIGNATURE_ECDSA_WITH_SHA512:
+                return "EC";
+            default:
+                return "DSA";
+        }
+    }
+
+    private static String getJcaSignatureAlgorithm(int algorithm) {
+        switch (algorithm) {
+            case SIGNATURE_RSA_PKCS1_V1_5_WITH_SHA256:
+                return "SHA256withRSA";
+            case SIGNATURE_RSA_PKCS1_V1_5_WITH_SHA512:
+                return "SHA512withRSA";
+            case SIGNATURE_ECDSA_WITH_SHA256:
+                return "SHA256withECDSA";
+            case SIGNATURE_ECDSA_WITH_SHA512:
+                return "SHA512withECDSA";
+            default:
+                return "SHA256withDSA";
+        }
+    }
+
+    private static ByteBuffer getLengthPrefixedSlice(ByteBuffer source) {
+        int length = source.getInt();
+        if (length < 0 || length > source.remaining()) {
+            throw new SecurityException("Length-prefixed field out of range: " + length);
+        }
+        ByteBuffer slice = source.slice().order(ByteOrder.LITTLE_ENDIAN);
+        slice.limit(length);
+        source.position(source.position() + length);
+        return slice;
+    }
+
+    private static byte[] readLengthPrefixedBytes(ByteBuffer source) {
+        ByteBuffer slice = getLengthPrefixedSlice(source);
+        byte[] bytes = new byte[slice.remaining()];
+        slice.get(bytes);
+        return bytes;
+    }
+
+    private static byte[] intToLittleEndian(int value) {
+        return new byte[] {(byte) value, (byte) (value >>> 8), (byte) (value >>> 16), (byte) (value >>> 24)};
+    }
+
+    private static class SigningBlock {
+        final ByteBuffer bytes;
+        final long blockOffset;
+        final long cdOffset;
+        final long cdSize;
+        final ByteBuffer eocd;
+
+        SigningBlock(ByteBuffer bytes, long blockOffset, long cdOffset, long cdSize, ByteBuffer eocd) {
+            this.bytes = bytes;
+            this.blockOffset = blockOffset;
+            this.cdOffset = cdOffset;
+            this.cdSize = cdSize;
+            this.eocd = eocd;
+        }
+
+        /**
+         * id-value对：length(8) | id(4) | value(length - 4)
+         */
+        ByteBuffer findValue(int id) {
+            ByteBuffer pairs = bytes.duplicate().order(ByteOrder.LITTLE_ENDIAN);
+            pairs.position(8);
+            pairs.limit(bytes.capacity() - 24);
+            while (pairs.hasRemaining()) {
+                if (pairs.remaining() < 8) {
+                    throw new SecurityException("Insufficient data to read size of APK Signing Block entry");
+                }
+                long length = pairs.getLong();
+                if (length < 4 || length > pairs.remaining()) {
+                    throw new SecurityException("APK Signing Block entry size out of range: " + length);
+                }
+                int next = pairs.position() + (int) length;
+                if (pairs.getInt() == id) {
+                    ByteBuffer value = pairs.slice().order(ByteOrder.LITTLE_ENDIAN);
+                    value.limit((int) length - 4);
+                    return value;
+                }
+                pairs.position(next);
+            }
+            return null;
+        }
+    }
+}
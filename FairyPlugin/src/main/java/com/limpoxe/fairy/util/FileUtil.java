@@ -12,6 +12,7 @@ import com.limpoxe.fairy.core.FairyGlobal;
 import java.io.BufferedInputStream;
 import java.io.BufferedOutputStream;
 import java.io.BufferedReader;
+import java.io.Closeable;
 import java.io.File;
 import java.io.FileInputStream;
 import java.io.FileNotFoundException;
@@ -19,8 +20,13 @@ import java.io.FileOutputStream;
 import java.io.IOException;
 import java.io.InputStream;
 import java.io.InputStreamReader;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.security.MessageDigest;
 import java.util.Enumeration;
+import java.util.HashMap;
 import java.util.HashSet;
+import java.util.Map;
 import java.util.Set;
 import java.util.jar.JarEntry;
 import java.util.jar.JarFile;
@@ -242,6 +248,213 @@ public class FileUtil {
 		return result;
 	}
 
+	/**
+	 * 复制文件, 同时计算内容摘要, 源文件只读一遍
+	 *
+	 * @param digest 为null时不计算摘要, 直接用transferTo复制
+	 */
+	public static boolean copyFile(String source, String dest, MessageDigest digest) {
+		LogUtil.d("copyFile to " + dest);
+
+		FileInputStream fis = null;
+		FileOutputStream fos = null;
+		try {
+			File destFile = new File(dest);
+			File parentDir = destFile.getParentFile();
+			if (!parentDir.exists()) {
+				parentDir.mkdirs();
+			}
+			fis = new FileInputStream(source);
+			fos = new FileOutputStream(destFile);
+			FileChannel in = fis.getChannel();
+			FileChannel out = fos.getChannel();
+			if (digest == null) {
+				long size = in.size();
+				long position = 0;
+				while (position < size) {
+					position += in.transferTo(position, size - position, out);
+				}
+			} else {
+				ByteBuffer buffer = ByteBuffer.allocateDirect(256 * 1024);
+				while (in.read(buffer) != -1) {
+					buffer.flip();
+					digest.update(buffer.duplicate());
+					while (buffer.hasRemaining()) {
+						out.write(buffer);
+					}
+					buffer.clear();
+				}
+			}
+			//接下来会被rename到安装目录, 先落盘
+			out.force(true);
+			return true;
+		} catch (IOException e) {
+			LogUtil.printException("FileUtil.copyFile", e);
+		} finally {
+			closeQuietly(fos);
+			closeQuietly(fis);
+		}
+		return false;
+	}
+
+	/**
+	 * 计算文件内容的摘要
+	 *
+	 * @return 失败返回false
+	 */
+	public static boolean digestFile(String path, MessageDigest digest) {
+		FileInputStream fis = null;
+		try {
+			fis = new FileInputStream(path);
+			FileChannel in = fis.getChannel();
+			ByteBuffer buffer = ByteBuffer.allocateDirect(256 * 1024);
+			while (in.read(buffer) != -1) {
+				buffer.flip();
+				digest.update(buffer);
+				buffer.clear();
+			}
+			return true;
+		} catch (IOException e) {
+			LogUtil.printException("FileUtil.digestFile", e);
+		} finally {
+			closeQuietly(fis);
+		}
+		return false;
+	}
+
+	public static String toHex(byte[] bytes) {
+		StringBuilder sb = new StringBuilder(bytes.length * 2);
+		for (byte b : bytes) {
+			sb.append(Character.forDigit((b >> 4) & 0xF, 16));
+			sb.append(Character.forDigit(b & 0xF, 16));
+		}
+		return sb.toString();
+	}
+
+	/**
+	 * 按当前设备支持的abi, 把so直接解压到插件的lib目录, 只遍历一次apk,
+	 * 不再经过临时目录和copySo的二次复制
+	 *
+	 * 每个so单独选择abi, 和copySo的规则一致：优先选择设备更偏好的abi
+	 *
+	 * @return 解压出的so文件名, 没有so时返回null
+	 */
+	public static Set<String> extractSo(String apkFile, File libDir) {
+
+		String[] abis = getSupportedAbis();
+
+		ZipFile zfile = null;
+		InputStream is = null;
+		FileOutputStream fos = null;
+		HashSet<String> result = null;
+		boolean isSuccess = false;
+		try {
+			zfile = new ZipFile(apkFile);
+
+			//只读中央目录, 为每个so选出最匹配的entry, 不解压数据
+			HashMap<String, ZipEntry> selected = new HashMap<String, ZipEntry>();
+			HashMap<String, Integer> selectedRank = new HashMap<String, Integer>();
+			HashSet<String> allSo = new HashSet<String>();
+			Enumeration zList = zfile.entries();
+			while (zList.hasMoreElements()) {
+				ZipEntry ze = (ZipEntry) zList.nextElement();
+				String relativePath = ze.getName();
+				if (ze.isDirectory() || !relativePath.startsWith("lib/")) {
+					continue;
+				}
+				int slash = relativePath.indexOf('/', 4);
+				if (slash < 0 || relativePath.indexOf('/', slash + 1) >= 0) {
+					continue;
+				}
+				String soName = relativePath.substring(slash + 1);
+				allSo.add(soName);
+				int rank = indexOf(abis, relativePath.substring(4, slash));
+				if (rank < 0) {
+					continue;
+				}
+				Integer selectedAt = selectedRank.get(soName);
+				if (selectedAt == null || rank < selectedAt) {
+					selected.put(soName, ze);
+					selectedRank.put(soName, rank);
+				}
+			}
+
+			for (String soName : allSo) {
+				if (!selected.containsKey(soName)) {
+					LogUtil.e("安装 " + soName + " 失败: NO_MATCHING_ABIS");
+				}
+			}
+
+			if (!selected.isEmpty()) {
+				result = new HashSet<String>(selected.size());
+				if (!libDir.exists()) {
+					libDir.mkdirs();
+				}
+				byte[] buffer = new byte[16 * 1024];
+				for (Map.Entry<String, ZipEntry> entry : selected.entrySet()) {
+					File targetFile = new File(libDir, entry.getKey());
+					LogUtil.d("正在解压so文件", entry.getValue().getName(), targetFile.getAbsolutePath());
+					is = zfile.getInputStream(entry.getValue());
+					fos = new FileOutputStream(targetFile);
+					int count;
+					while ((count = is.read(buffer)) != -1) {
+						fos.write(buffer, 0, count);
+					}
+					fos.close();
+					fos = null;
+					is.close();
+					is = null;
+					result.add(entry.getKey());
+				}
+			}
+			isSuccess = true;
+		} catch (IOException e) {
+			LogUtil.printException("FileUtil.extractSo", e);
+		} finally {
+			closeQuietly(fos);
+			closeQuietly(is);
+			if (zfile != null) {
+				try {
+					zfile.close();
+				} catch (IOException e) {
+					LogUtil.printException("FileUtil.extractSo", e);
+				}
+			}
+		}
+
+		LogUtil.d("解压so文件结束", isSuccess);
+		return result;
+	}
+
+	private static String[] getSupportedAbis() {
+		if (Build.VERSION.SDK_INT >= 21) {
+			String[] abis = Build.SUPPORTED_ABIS;
+			if (abis != null) {
+				return abis;
+			}
+		}
+		return new String[] {Build.CPU_ABI, Build.CPU_ABI2, "armeabi"};
+	}
+
+	private static int indexOf(String[] array, String value) {
+		for (int i = 0; i < array.length; i++) {
+			if (value.equals(array[i])) {
+				return i;
+			}
+		}
+		return -1;
+	}
+
+	private static void closeQuietly(Closeable closeable) {
+		if (closeable != null) {
+			try {
+				closeable.close();
+			} catch (IOException e) {
+				LogUtil.printException("FileUtil.closeQuietly", e);
+			}
+		}
+	}
+
 	public static void readFileFromJar(String jarFilePath, String metaInfo) {
 		LogUtil.d("readFileFromJar:", jarFilePath, metaInfo);
 		JarFile jarFile = null;